@@ -42,6 +42,12 @@ public class PanktiGenMain implements Callable<Integer> {
                     "default: ${DEFAULT-VALUE}, candidates values: ${COMPLETION-CANDIDATES}")
     private TestFormat testFormat;
 
+    @CommandLine.Option(
+            names = {"--threads"},
+            paramLabel = "THREADS",
+            description = "Number of threads that parse object profiles, default: number of processors")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
     @CommandLine.Option(
             names = {"-h", "--help"},
             description = "Display help/usage.",
@@ -82,7 +88,7 @@ public class PanktiGenMain implements Callable<Integer> {
         System.out.println("POM found at: " + projectPom.getPath());
         System.out.println("Number of Maven modules: " + projectPom.getModel().getModules().size());
 
-        TestGenerator testGenerator = new TestGenerator(testFormat.toString(), launcher, generateMocks);
+        TestGenerator testGenerator = new TestGenerator(testFormat.toString(), launcher, generateMocks, threads);
         System.out.println("Number of new test cases: " + testGenerator.process(model,
                 methodCSVFilePath.toString(), objectXMLDirectoryPath.toString()));
 
@@ -2,6 +2,8 @@ package se.kth.castor.pankti.generate.data;
 
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
  * This class represents an element of an object profile
@@ -9,16 +11,35 @@ import java.time.Instant;
  * a (nested) returned object, or a (nested) parameter object array
  * <p>
  * It is useful when creating a serialized object from raw XML
+ * The raw XML of an object stored once by content hash is read when it is first needed
+ * Raw XML that is read from a supplier can be released, and is read again when it is next needed
  */
 public class ObjectProfileElement {
     String rawXML;
     String uuid;
     Instant timestamp;
+    Supplier<String> rawXMLSupplier;
 
     public ObjectProfileElement() {}
 
+    public ObjectProfileElement(String rawXML) {
+        this.rawXML = rawXML;
+    }
+
     public String getRawXML() {
-        return rawXML;
+        String xml = rawXML;
+        if (xml == null && rawXMLSupplier != null) {
+            xml = rawXMLSupplier.get();
+            rawXML = xml;
+        }
+        return xml;
+    }
+
+    // Drops the raw XML if it can be read again from its supplier
+    public void releaseRawXML() {
+        if (rawXMLSupplier != null) {
+            rawXML = null;
+        }
     }
 
     public String getUuid() {
@@ -31,6 +52,23 @@ public class ObjectProfileElement {
 
     public void setRawXML(String rawXML) {
         this.rawXML = rawXML;
+        this.rawXMLSupplier = null;
+    }
+
+    public void setRawXML(Supplier<String> rawXMLSupplier) {
+        this.rawXML = null;
+        this.rawXMLSupplier = rawXMLSupplier;
+    }
+
+    // Applies the mapping to the raw XML now if it was read, and when it is read again
+    public void mapRawXML(UnaryOperator<String> mapping) {
+        if (rawXMLSupplier != null) {
+            Supplier<String> supplier = rawXMLSupplier;
+            rawXMLSupplier = () -> mapping.apply(supplier.get());
+        }
+        if (rawXML != null) {
+            rawXML = mapping.apply(rawXML);
+        }
     }
 
     public void setUuid(String uuid) {
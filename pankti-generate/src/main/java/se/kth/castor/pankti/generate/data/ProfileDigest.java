@@ -0,0 +1,64 @@
+package se.kth.castor.pankti.generate.data;
+
+/**
+ * This class represents a 128-bit digest of the raw XML of the objects of an invocation
+ * <p>
+ * It is computed in one pass over the characters of each object, with two independent
+ * 64-bit hashes, so that duplicate profiles are found by comparing digests,
+ * without keeping or comparing their XML
+ */
+public final class ProfileDigest {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+    private static final long MIX_MULTIPLIER = 0xff51afd7ed558ccdL;
+    private final long high;
+    private final long low;
+
+    private ProfileDigest(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public static ProfileDigest of(String... rawXMLs) {
+        long high = FNV_OFFSET;
+        long low = GOLDEN_RATIO;
+        for (String rawXML : rawXMLs) {
+            int length = rawXML == null ? -1 : rawXML.length();
+            for (int i = 0; i < length; i++) {
+                char c = rawXML.charAt(i);
+                high = (high ^ c) * FNV_PRIME;
+                low = Long.rotateLeft(low + c, 27) * MIX_MULTIPLIER;
+            }
+            // The length ends each object, so that objects cannot run into each other
+            high = (high ^ length) * FNV_PRIME;
+            low = Long.rotateLeft(low + length, 27) * MIX_MULTIPLIER;
+        }
+        return new ProfileDigest(mix(high), mix(low));
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= MIX_MULTIPLIER;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ProfileDigest that = (ProfileDigest) o;
+        return high == that.high && low == that.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}
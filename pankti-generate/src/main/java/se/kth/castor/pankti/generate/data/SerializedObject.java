@@ -1,53 +1,68 @@
 package se.kth.castor.pankti.generate.data;
 
 import java.time.Instant;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
 
+/**
+ * This class represents an invocation with its receiving, returned,
+ * receiving-post and parameter objects, and its nested invocations
+ * <p>
+ * Objects are kept as profile elements, their raw XML is read when it is needed,
+ * and can be released once the test for the invocation is generated
+ * Invocations with the same objects are the same profile, they are compared by the digest of their objects
+ */
 public class SerializedObject {
-    Map<String, String> receivingObject = new HashMap<>();
-    Map<String, String> returnedObject = new HashMap<>();
-    Map<String, String> receivingPostObject = new HashMap<>();
-    Map<String, String> paramObjects = new HashMap<>();
-    Map<String, String> invocationUUID = new HashMap<>();
-    List<SerializedObject> nestedSerializedObjects;
-    Instant invocationTimestamp;
-    String invocationFQN;
+    private final ObjectProfileElement receivingObject;
+    private final ObjectProfileElement returnedObject;
+    private final ObjectProfileElement receivingPostObject;
+    private final ObjectProfileElement paramObjects;
+    private final String invocationUUID;
+    private final List<SerializedObject> nestedSerializedObjects;
+    private final Instant invocationTimestamp;
+    private final String invocationFQN;
+    private ProfileDigest digest;
 
     public SerializedObject(String receivingObject, String returnedObject,
                             String receivingPostObject, String paramObjects,
                             String uuid, List<SerializedObject> nested,
                             Instant invocationTimestamp, String invocationFQN) {
-        this.receivingObject.put("receivingObject", receivingObject);
-        this.returnedObject.put("returnedObject", returnedObject);
-        this.receivingPostObject.put("receivingPostObject", receivingPostObject);
-        this.paramObjects.put("paramObjects", paramObjects);
-        this.invocationUUID.put("invocationUUID", uuid);
+        this(new ObjectProfileElement(receivingObject), new ObjectProfileElement(returnedObject),
+                new ObjectProfileElement(receivingPostObject), new ObjectProfileElement(paramObjects),
+                uuid, nested, invocationTimestamp, invocationFQN);
+    }
+
+    public SerializedObject(ObjectProfileElement receivingObject, ObjectProfileElement returnedObject,
+                            ObjectProfileElement receivingPostObject, ObjectProfileElement paramObjects,
+                            String uuid, List<SerializedObject> nested,
+                            Instant invocationTimestamp, String invocationFQN) {
+        this.receivingObject = receivingObject;
+        this.returnedObject = returnedObject;
+        this.receivingPostObject = receivingPostObject;
+        this.paramObjects = paramObjects;
+        this.invocationUUID = uuid;
         this.nestedSerializedObjects = nested;
         this.invocationTimestamp = invocationTimestamp;
         this.invocationFQN = invocationFQN;
     }
 
     public String getReceivingObject() {
-        return this.receivingObject.get("receivingObject");
+        return receivingObject.getRawXML();
     }
 
     public String getParamObjects() {
-        return this.paramObjects.get("paramObjects");
+        return paramObjects.getRawXML();
     }
 
     public String getReturnedObject() {
-        return this.returnedObject.get("returnedObject");
+        return returnedObject.getRawXML();
     }
 
     public String getReceivingPostObject() {
-        return this.receivingPostObject.get("receivingPostObject");
+        return receivingPostObject.getRawXML();
     }
 
     public String getUUID() {
-        return this.invocationUUID.get("invocationUUID");
+        return invocationUUID;
     }
 
     public String getInvocationFQN() {
@@ -69,29 +84,45 @@ public class SerializedObject {
                 .replace("/", "");
     }
 
+    public ProfileDigest getDigest() {
+        if (digest == null) {
+            digest = ProfileDigest.of(getReceivingObject(), getReturnedObject(),
+                    getReceivingPostObject(), getParamObjects());
+        }
+        return digest;
+    }
+
+    // Releases the raw XML of this invocation and its nested invocations, it is read again if needed
+    public void release() {
+        receivingObject.releaseRawXML();
+        returnedObject.releaseRawXML();
+        receivingPostObject.releaseRawXML();
+        paramObjects.releaseRawXML();
+        if (nestedSerializedObjects != null) {
+            nestedSerializedObjects.forEach(SerializedObject::release);
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         SerializedObject that = (SerializedObject) o;
-        return receivingObject.equals(that.receivingObject) &&
-                returnedObject.equals(that.returnedObject) &&
-                receivingPostObject.equals(that.receivingPostObject) &&
-                paramObjects.equals(that.paramObjects);
+        return getDigest().equals(that.getDigest());
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(receivingObject, returnedObject, paramObjects, receivingPostObject);
+        return getDigest().hashCode();
     }
 
     @Override
     public String toString() {
         return "SerializedObject{" +
-                "receivingObject=" + receivingObject +
-                ", returnedObject=" + returnedObject +
-                ", receivingPostObject=" + receivingPostObject +
-                ", paramObjects=" + paramObjects +
+                "receivingObject=" + getReceivingObject() +
+                ", returnedObject=" + getReturnedObject() +
+                ", receivingPostObject=" + getReceivingPostObject() +
+                ", paramObjects=" + getParamObjects() +
                 ", invocationUUID=" + invocationUUID +
                 ", invocationTimestamp=" + invocationTimestamp +
                 ", invocationFQN=" + invocationFQN +
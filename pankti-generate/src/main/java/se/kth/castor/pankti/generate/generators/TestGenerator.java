@@ -3,6 +3,7 @@ package se.kth.castor.pankti.generate.generators;
 import se.kth.castor.pankti.generate.data.*;
 import se.kth.castor.pankti.generate.parsers.CSVFileParser;
 import se.kth.castor.pankti.generate.data.InstrumentedMethod;
+import se.kth.castor.pankti.generate.parsers.NestedProfileIndex;
 import se.kth.castor.pankti.generate.parsers.ObjectXMLParser;
 import se.kth.castor.pankti.generate.data.SerializedObject;
 import se.kth.castor.pankti.generate.util.*;
@@ -17,16 +18,19 @@ import spoon.reflect.reference.CtExecutableReference;
 import java.io.File;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class TestGenerator {
-    private static Factory factory;
     private static final String XSTREAM_REFERENCE = "com.thoughtworks.xstream.XStream";
     private static final String XSTREAM_DRIVER_REFERENCE = "com.thoughtworks.xstream.io.json.JettisonMappedXmlDriver";
     private static final String XSTREAM_CONSTRUCTOR = "new XStream()";
     private static final String XSTREAM_VARIABLE = "xStream";
     private static final String JUNIT_JUPITER_TEST_REFERENCE = "org.junit.jupiter.api.Test";
-    private static final String JUNIT_JUPITER_DISABLED_REFERENCE = "org.junit.jupiter.api.Disabled";
     private static final String JUNIT_BEFORE_REFERENCE = "org.junit.Before";
     private static final String JUNIT_ASSERT_REFERENCE = "org.junit.jupiter.api.Assertions";
     private static final String JAVA_UTIL_ARRAYS_REFERENCE = "java.util.Arrays";
@@ -37,27 +41,36 @@ public class TestGenerator {
 
     private static final String TEST_CLASS_PREFIX = "Test";
     private static final String TEST_CLASS_POSTFIX = "PanktiGen";
-    private static int numberOfTestCasesWithMocksGenerated;
+    private int numberOfTestCasesWithMocksGenerated;
     private final String testFormat;
     private final boolean generateMocks;
-    private static CtAnnotation<?> testAnnotation;
-    private static CtAnnotation<?> disabledAnnotation;
+    private final int parsingThreads;
     Set<CtClass<?>> generatedTestClasses = new LinkedHashSet<>();
 
-    private final TestGeneratorUtil testGenUtil = new TestGeneratorUtil();
+    // Launcher, factory, test format and annotations of this run
+    private final GenerationContext context;
+    private final Factory factory;
+    private final TestGeneratorUtil testGenUtil;
+    // Nested invocation files are parsed once for all the methods of a run
+    private final NestedProfileIndex nestedProfileIndex = new NestedProfileIndex();
+    // Duplicate profiles dropped for each method, reported at the end of the run
+    private final Map<String, Integer> duplicateProfilesByMethod = new ConcurrentHashMap<>();
 
     public TestGenerator(String testFormat, Launcher launcher, boolean generateMocks) {
+        this(testFormat, launcher, generateMocks, Runtime.getRuntime().availableProcessors());
+    }
+
+    public TestGenerator(String testFormat, Launcher launcher, boolean generateMocks, int parsingThreads) {
         this.generateMocks = generateMocks;
+        this.parsingThreads = Math.max(1, parsingThreads);
         this.testFormat = testFormat;
-        TestGeneratorUtil.launcher = launcher;
-        if (!testFormat.equals("xml")) {
-            TestGeneratorUtil.testFormat = testFormat;
-        }
+        this.context = new GenerationContext(launcher, testFormat);
+        this.factory = context.getFactory();
+        this.testGenUtil = new TestGeneratorUtil(context);
     }
 
-    public static void generateTestAndDisabledAnnotations() throws ClassNotFoundException {
-        testAnnotation = factory.createAnnotation(factory.createCtTypeReference(Class.forName(JUNIT_JUPITER_TEST_REFERENCE)));
-        disabledAnnotation = factory.createAnnotation(factory.createCtTypeReference(Class.forName(JUNIT_JUPITER_DISABLED_REFERENCE)));
+    public void generateTestAndDisabledAnnotations() throws ClassNotFoundException {
+        context.createTestAndDisabledAnnotations();
     }
 
     public String getGeneratedClassName(CtPackage ctPackage, String className) {
@@ -452,9 +465,9 @@ public class TestGenerator {
                     .replaceAll("[.,]", "_");
         }
         generatedMethod.setSimpleName("test" + method.getSimpleName().substring(0, 1).toUpperCase() + method.getSimpleName().substring(1) + postfix + methodCounter);
-        generatedMethod.addAnnotation(testAnnotation);
+        generatedMethod.addAnnotation(context.getTestAnnotation());
         if (generateMocks) {
-            generatedMethod.addAnnotation(disabledAnnotation);
+            generatedMethod.addAnnotation(context.getDisabledAnnotation());
         }
         generatedMethod.setModifiers(Collections.singleton(ModifierKind.PUBLIC));
         generatedMethod.setType(factory.createCtTypeReference(void.class));
@@ -511,7 +524,8 @@ public class TestGenerator {
                                     CtClass<?> generatedClass) throws ClassNotFoundException {
         // If mocks can be used to test this method
         if (instrumentedMethod.hasMockableInvocations()) {
-            MockGenerator mockGenerator = new MockGenerator(factory);
+            MockGenerator mockGenerator = new MockGenerator(context);
+            MockGeneratorUtil mockGeneratorUtil = new MockGeneratorUtil(context);
 
             // Annotate generated class with @ExtendWith(MockitoExtension.class)
             if (generatedClass.getAnnotations()
@@ -548,11 +562,11 @@ public class TestGenerator {
             String methodNameCO = String.format("test_%s%s_CO_%s", instrumentedMethod.getMethodName(), postfix, uuid);
             if (generatedClass.getMethodsByName(methodNameCO).size() == 0 &
                     serializedObject.getNestedSerializedObjects().size() > 0) {
-                MethodSequenceGenerator sequenceGenerator = new MethodSequenceGenerator(factory);
+                MethodSequenceGenerator sequenceGenerator = new MethodSequenceGenerator(context);
                 CtMethod<?> testCO = sequenceGenerator.generateTestToVerifyMethodSequence(Collections.unmodifiableSet(new HashSet(Arrays.asList(testPO))), serializedObject);
                 testCO.setSimpleName(methodNameCO);
-                testCO.addAnnotation(testAnnotation);
-                testCO.addAnnotation(MockGeneratorUtil.generateDisplayName(testMethodCounter, MockOracle.CO, instrumentedMethod.getMethodName(),
+                testCO.addAnnotation(context.getTestAnnotation());
+                testCO.addAnnotation(mockGeneratorUtil.generateDisplayName(testMethodCounter, MockOracle.CO, instrumentedMethod.getMethodName(),
                         instrumentedMethod.getNestedInvocations().stream().map(NestedInvocation::getInvocation).collect(Collectors.toList()).toString()));
                 generatedClass.addMethod(testCO);
                 generatedTestsWithMocks.add(testCO);
@@ -578,13 +592,43 @@ public class TestGenerator {
         }
     }
 
+    // Does not use the Spoon model, so profiles of different methods can be parsed concurrently
+    public Set<SerializedObject> parseSerializedObjects(InstrumentedMethod instrumentedMethod,
+                                                       String objectXMLDirectoryPath) {
+        ObjectXMLParser objectXMLParser = new ObjectXMLParser(nestedProfileIndex);
+        Set<SerializedObject> serializedObjects = objectXMLParser.parseXML(
+                objectXMLDirectoryPath + File.separatorChar, instrumentedMethod, generateMocks);
+        if (objectXMLParser.getNumberOfDuplicates() > 0) {
+            duplicateProfilesByMethod.merge(instrumentedMethod.getFullMethodPath(),
+                    objectXMLParser.getNumberOfDuplicates(), Integer::sum);
+        }
+        return serializedObjects;
+    }
+
+    public Map<String, Integer> getDuplicateProfilesByMethod() {
+        return duplicateProfilesByMethod;
+    }
+
+    public void reportDuplicateProfiles() {
+        System.out.println("Number of duplicate pairs/triples of object values dropped: " +
+                duplicateProfilesByMethod.values().stream().mapToInt(Integer::intValue).sum());
+        duplicateProfilesByMethod.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .forEach(entry -> System.out.println("  " + entry.getKey() + ": " + entry.getValue()));
+    }
+
     public CtClass<?> generateFullTestClass(CtType<?> type,
                                             CtMethod<?> method,
                                             InstrumentedMethod instrumentedMethod,
                                             String objectXMLDirectoryPath) throws ClassNotFoundException {
-        ObjectXMLParser objectXMLParser = new ObjectXMLParser();
-        Set<SerializedObject> serializedObjects = objectXMLParser.parseXML(
-                objectXMLDirectoryPath + File.separatorChar, instrumentedMethod, generateMocks);
+        return generateFullTestClass(type, method, instrumentedMethod,
+                parseSerializedObjects(instrumentedMethod, objectXMLDirectoryPath));
+    }
+
+    public CtClass<?> generateFullTestClass(CtType<?> type,
+                                            CtMethod<?> method,
+                                            InstrumentedMethod instrumentedMethod,
+                                            Set<SerializedObject> serializedObjects) throws ClassNotFoundException {
         System.out.println("Number of unique pairs/triples of object values: " + serializedObjects.size());
 
         if (serializedObjects.size() == 0) {
@@ -594,7 +638,6 @@ public class TestGenerator {
             System.out.println("NO MOCKABLE INVOCATIONS FOUND FOR " + instrumentedMethod.getFullMethodPath() + " - SKIPPING");
             return null;
         } else {
-            factory = type.getFactory();
             generateTestAndDisabledAnnotations();
             CtClass<?> generatedClass = factory.Class().get(getGeneratedClassName(type.getPackage(), type.getSimpleName()));
             if (generatedClass == null) {
@@ -617,10 +660,12 @@ public class TestGenerator {
                     CtMethod<?> baseMethod = generatedMethod.clone();
                     generateMockMethods(methodCounter, instrumentedMethod, serializedObject, baseMethod, generatedClass);
                 }
+                // The objects are in the generated methods, or in resource files, from here on
+                serializedObject.release();
                 methodCounter++;
             }
-            if (generatedClass.getMethods().stream().anyMatch(m -> m.getAnnotations().contains(testAnnotation) &
-                    !m.getAnnotations().contains(disabledAnnotation)))
+            if (generatedClass.getMethods().stream().anyMatch(m -> m.getAnnotations().contains(context.getTestAnnotation()) &
+                    !m.getAnnotations().contains(context.getDisabledAnnotation())))
                 return generatedClass;
             else {
                 System.out.println("No non-disabled test, not generating class " + generatedClass.getQualifiedName());
@@ -668,38 +713,83 @@ public class TestGenerator {
         List<InstrumentedMethod> instrumentedMethods = CSVFileParser.parseCSVFile(methodCSVFilePath);
         System.out.println("Number of instrumented methods: " + instrumentedMethods.size());
         System.out.println("--------------------------------------------------------------");
+        // Instrumented methods are looked up by the class that declares them
+        Map<String, List<InstrumentedMethod>> methodsByParentFQN = instrumentedMethods.stream()
+                .collect(Collectors.groupingBy(InstrumentedMethod::getParentFQN, LinkedHashMap::new, Collectors.toList()));
         List<CtType<?>> types = getTypesToProcess(ctModel);
 
-        for (CtType<?> type : types) {
-            for (InstrumentedMethod instrumentedMethod : instrumentedMethods) {
-                if (type.getQualifiedName().equals(instrumentedMethod.getParentFQN())) {
+        // Profiles are parsed in parallel, test classes are built one at a time,
+        // in the same order, as the Spoon model is not thread-safe. Parsing runs
+        // a bounded number of methods ahead, so that the profiles of only these
+        // methods are in memory while their test classes wait to be built
+        int parseAhead = parsingThreads * 2;
+        ExecutorService parsingExecutor = Executors.newFixedThreadPool(parsingThreads);
+        try {
+            List<MethodToGenerateTestsFor> methodsToGenerateTestsFor = new ArrayList<>();
+            for (CtType<?> type : types) {
+                for (InstrumentedMethod instrumentedMethod :
+                        methodsByParentFQN.getOrDefault(type.getQualifiedName(), Collections.emptyList())) {
                     List<CtMethod<?>> methodsByName = type.getMethodsByName(instrumentedMethod.getMethodName());
                     if (methodsByName.size() > 0) {
                         Map.Entry<CtMethod<?>, Boolean> methodAndOverload = findMethodToGenerateTestMethodsFor(methodsByName, instrumentedMethod);
-                        CtMethod<?> methodToGenerateTestsFor = methodAndOverload.getKey();
                         instrumentedMethod.setOverloaded(methodAndOverload.getValue());
-                        System.out.println("Generating test method for: " +
-                                instrumentedMethod.getParentFQN() + "." + instrumentedMethod.getMethodName());
-                        try {
-                            CtClass<?> generatedClass = generateFullTestClass(
-                                    type, methodToGenerateTestsFor, instrumentedMethod, objectXMLDirectoryPath);
-                            if (generatedClass != null) {
-                                System.out.println("Generated test class: " + generatedClass.getQualifiedName());
-                                generatedTestClasses.add(generatedClass);
-                            }
-                            System.out.println("--------------------------------------------------------------");
-                        } catch (ClassNotFoundException e) {
-                            e.printStackTrace();
-                        }
+                        methodsToGenerateTestsFor.add(new MethodToGenerateTestsFor(type, methodAndOverload.getKey(),
+                                instrumentedMethod));
                     }
                 }
             }
+            int nextToParse = 0;
+            for (int i = 0; i < methodsToGenerateTestsFor.size(); i++) {
+                for (; nextToParse < Math.min(i + parseAhead, methodsToGenerateTestsFor.size()); nextToParse++) {
+                    MethodToGenerateTestsFor methodToParse = methodsToGenerateTestsFor.get(nextToParse);
+                    methodToParse.serializedObjects = parsingExecutor.submit(() ->
+                            parseSerializedObjects(methodToParse.instrumentedMethod, objectXMLDirectoryPath));
+                }
+                MethodToGenerateTestsFor methodToGenerateTestsFor = methodsToGenerateTestsFor.get(i);
+                InstrumentedMethod instrumentedMethod = methodToGenerateTestsFor.instrumentedMethod;
+                System.out.println("Generating test method for: " +
+                        instrumentedMethod.getParentFQN() + "." + instrumentedMethod.getMethodName());
+                try {
+                    Future<Set<SerializedObject>> serializedObjects = methodToGenerateTestsFor.serializedObjects;
+                    methodToGenerateTestsFor.serializedObjects = null;
+                    CtClass<?> generatedClass = generateFullTestClass(
+                            methodToGenerateTestsFor.type, methodToGenerateTestsFor.method, instrumentedMethod,
+                            serializedObjects.get());
+                    if (generatedClass != null) {
+                        System.out.println("Generated test class: " + generatedClass.getQualifiedName());
+                        generatedTestClasses.add(generatedClass);
+                    }
+                    System.out.println("--------------------------------------------------------------");
+                } catch (ClassNotFoundException | ExecutionException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            parsingExecutor.shutdownNow();
         }
+        reportDuplicateProfiles();
         int allGeneratedTests = 0;
         for (CtClass<?> generated : generatedTestClasses) {
             allGeneratedTests += generated.getMethods().stream()
-                    .filter(m -> m.getAnnotations().contains(testAnnotation)).count();
+                    .filter(m -> m.getAnnotations().contains(context.getTestAnnotation())).count();
         }
         return allGeneratedTests - numberOfTestCasesWithMocksGenerated;
     }
+
+    private static final class MethodToGenerateTestsFor {
+        final CtType<?> type;
+        final CtMethod<?> method;
+        final InstrumentedMethod instrumentedMethod;
+        // Set when parsing is submitted, cleared when the test class is built
+        Future<Set<SerializedObject>> serializedObjects;
+
+        MethodToGenerateTestsFor(CtType<?> type, CtMethod<?> method, InstrumentedMethod instrumentedMethod) {
+            this.type = type;
+            this.method = method;
+            this.instrumentedMethod = instrumentedMethod;
+        }
+    }
 }
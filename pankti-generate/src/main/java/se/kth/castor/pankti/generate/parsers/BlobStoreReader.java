@@ -0,0 +1,111 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class resolves references to objects stored once by content hash
+ * by pankti-instrument (see BlobStore). The blob file is indexed the first
+ * time a reference is resolved, and each object is read when it is first
+ * needed. A resolved object is kept, so that all profiles referring to it
+ * share the same string.
+ */
+public class BlobStoreReader {
+    static final String FILE_NAME = "object-blobs.bin";
+    static final byte[] MAGIC = {'P', 'K', 'T', 'B'};
+    private static final int HASH_LENGTH = 20;
+    private static final Pattern REFERENCE_PATTERN =
+            Pattern.compile("^<pankti-blob-ref\\s+hash=\"([0-9a-f]+)\"\\s*/>$");
+    private final File blobFile;
+    // Offset and length of each blob in the (decompressed) file
+    private Map<String, long[]> index;
+    private final Map<String, String> resolvedBlobs = new HashMap<>();
+
+    public BlobStoreReader(File directory) {
+        this.blobFile = new File(directory, FILE_NAME);
+    }
+
+    // The hash of the referenced object, or null if the XML is not a reference
+    public static String getReferencedHash(String rawXML) {
+        if (rawXML == null || !rawXML.startsWith("<pankti-blob-ref"))
+            return null;
+        Matcher matcher = REFERENCE_PATTERN.matcher(rawXML.trim());
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    public synchronized String resolve(String hash) {
+        String resolvedBlob = resolvedBlobs.get(hash);
+        if (resolvedBlob != null)
+            return resolvedBlob;
+        try {
+            if (index == null) {
+                index = readIndex();
+            }
+            long[] location = index.get(hash);
+            if (location == null) {
+                System.out.println("NO BLOB " + hash + " IN " + blobFile + " - SKIPPING");
+                return "";
+            }
+            byte[] bytes = new byte[(int) location[1]];
+            try (DataInputStream in = new DataInputStream(CompressedProfileInputStream.open(blobFile))) {
+                skipFully(in, location[0]);
+                in.readFully(bytes);
+            }
+            resolvedBlob = new String(bytes, StandardCharsets.UTF_8).trim();
+            resolvedBlobs.put(hash, resolvedBlob);
+            return resolvedBlob;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "";
+        }
+    }
+
+    private Map<String, long[]> readIndex() throws IOException {
+        Map<String, long[]> index = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(CompressedProfileInputStream.open(blobFile))) {
+            skipFully(in, MAGIC.length);
+            long offset = MAGIC.length;
+            byte[] hash = new byte[HASH_LENGTH];
+            while (true) {
+                try {
+                    in.readFully(hash);
+                    int length = in.readInt();
+                    offset += HASH_LENGTH + 4;
+                    // The first copy of a blob is kept
+                    index.putIfAbsent(toHex(hash), new long[]{offset, length});
+                    skipFully(in, length);
+                    offset += length;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+        return index;
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class reads profile files written with capture.compression=deflate
+ * by pankti-instrument (see ProfileFileRegistry). After COMPRESSED_MAGIC,
+ * the file is a sequence of blocks: int uncompressed length,
+ * int compressed length, and the compressed bytes. Blocks are decompressed
+ * one at a time, and skipped without being decompressed if possible.
+ */
+public class CompressedProfileInputStream extends InputStream {
+    static final byte[] COMPRESSED_MAGIC = {'P', 'K', 'T', 'Z'};
+    private final DataInputStream in;
+    private final Inflater inflater = new Inflater();
+    private byte[] compressedBlock = new byte[0];
+    private byte[] block = new byte[0];
+    private int position;
+    private int limit;
+
+    CompressedProfileInputStream(InputStream in) {
+        this.in = new DataInputStream(in);
+    }
+
+    // Opens a profile file, decompressing it if it was written with compression,
+    // from its journal if it is not a file
+    public static InputStream open(File inputFile) throws IOException {
+        if (!inputFile.exists()) {
+            // Profiles captured with capture.layout=journal are read through the index of the journal
+            InputStream journaledFile = ProfileJournalReader.open(inputFile);
+            if (journaledFile != null)
+                return journaledFile;
+        }
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(inputFile), 1 << 16);
+        in.mark(COMPRESSED_MAGIC.length);
+        byte[] magic = new byte[COMPRESSED_MAGIC.length];
+        int read = 0;
+        while (read < magic.length) {
+            int n = in.read(magic, read, magic.length - read);
+            if (n < 0)
+                break;
+            read += n;
+        }
+        if (Arrays.equals(COMPRESSED_MAGIC, magic))
+            return new CompressedProfileInputStream(in);
+        in.reset();
+        return in;
+    }
+
+    // Reads the header of the next block, returns its uncompressed length, or -1 at the end of the file
+    private int readBlockHeader() throws IOException {
+        try {
+            return in.readInt();
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    private boolean nextBlock() throws IOException {
+        int uncompressedLength = readBlockHeader();
+        if (uncompressedLength < 0)
+            return false;
+        inflateBlock(uncompressedLength, in.readInt());
+        return true;
+    }
+
+    private void inflateBlock(int uncompressedLength, int compressedLength) throws IOException {
+        if (compressedBlock.length < compressedLength)
+            compressedBlock = new byte[compressedLength];
+        if (block.length < uncompressedLength)
+            block = new byte[uncompressedLength];
+        in.readFully(compressedBlock, 0, compressedLength);
+        inflater.reset();
+        inflater.setInput(compressedBlock, 0, compressedLength);
+        try {
+            int inflated = 0;
+            while (inflated < uncompressedLength && !inflater.finished()) {
+                inflated += inflater.inflate(block, inflated, uncompressedLength - inflated);
+            }
+            if (inflated != uncompressedLength)
+                throw new IOException("Corrupt compressed block");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed block", e);
+        }
+        position = 0;
+        limit = uncompressedLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while (position == limit) {
+            if (!nextBlock())
+                return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        while (position == limit) {
+            if (!nextBlock())
+                return -1;
+        }
+        int n = Math.min(length, limit - position);
+        System.arraycopy(block, position, bytes, offset, n);
+        position += n;
+        return n;
+    }
+
+    // Blocks that are skipped entirely are not decompressed
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.min(n, limit - position);
+        position += (int) skipped;
+        while (skipped < n) {
+            int uncompressedLength = readBlockHeader();
+            if (uncompressedLength < 0)
+                break;
+            int compressedLength = in.readInt();
+            if (uncompressedLength <= n - skipped) {
+                int remaining = compressedLength;
+                while (remaining > 0) {
+                    int skippedBytes = in.skipBytes(remaining);
+                    if (skippedBytes == 0)
+                        throw new EOFException();
+                    remaining -= skippedBytes;
+                }
+                skipped += uncompressedLength;
+            } else {
+                // Decompress the block in which the skip ends
+                inflateBlock(uncompressedLength, compressedLength);
+                position = (int) (n - skipped);
+                skipped = n;
+            }
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,194 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class reads the objects of an XML profile file without parsing the
+ * whole file. The file is memory-mapped, and the offsets of its top-level
+ * elements, which start at the beginning of a line (text content can not,
+ * as XStream escapes '<'), are indexed once. The index is kept in a cache
+ * directory, and built again if the profile file changed.
+ * Objects are read, from the mapped file, when their raw XML is needed.
+ */
+public class IndexedProfileReader {
+    static final File INDEX_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "pankti-index");
+    private static final byte[] INDEX_MAGIC = {'P', 'K', 'T', 'I'};
+    private static final Pattern UUID_PATTERN = Pattern.compile("\\s(?:parent-)?uuid=\"([^\"]*)\"");
+    private static final Pattern TIMESTAMP_PATTERN = Pattern.compile("\\stimestamp=\"(\\d+)\"");
+    private final File inputFile;
+    private final MappedByteBuffer mappedFile;
+    // Start of each object, followed by the end of the file
+    private final long[] offsets;
+
+    public IndexedProfileReader(File inputFile) throws IOException {
+        this.inputFile = inputFile;
+        try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            this.mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        long[] offsets = readIndex();
+        if (offsets == null) {
+            offsets = buildIndex();
+            writeIndex(offsets);
+        }
+        this.offsets = offsets;
+    }
+
+    // Plain XML files that can be mapped at once, compressed and binary files are read as streams
+    public static boolean canRead(File inputFile) throws IOException {
+        if (!inputFile.isFile() || inputFile.length() > Integer.MAX_VALUE)
+            return false;
+        byte[] magic = new byte[4];
+        int read = 0;
+        try (InputStream in = new FileInputStream(inputFile)) {
+            while (read < magic.length) {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+        }
+        return !Arrays.equals(magic, CompressedProfileInputStream.COMPRESSED_MAGIC)
+                && !Arrays.equals(magic, ProfileRecordReader.MAGIC);
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    // The XML of an object as it was written
+    public String getRawXML(int i) {
+        int start = (int) offsets[i];
+        byte[] bytes = new byte[(int) offsets[i + 1] - start];
+        ByteBuffer view = mappedFile.duplicate();
+        view.position(start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8).trim();
+    }
+
+    // The uuid and timestamp of an object, from its first tag, and its raw XML without them
+    public ObjectProfileElement getElement(int i) {
+        ObjectProfileElement element = new ObjectProfileElement();
+        String firstTag = getFirstTag(i);
+        Matcher uuidMatcher = UUID_PATTERN.matcher(firstTag);
+        if (uuidMatcher.find()) {
+            element.setUuid(uuidMatcher.group(1).replace("-", ""));
+        }
+        Matcher timestampMatcher = TIMESTAMP_PATTERN.matcher(firstTag);
+        if (timestampMatcher.find()) {
+            element.setTimestamp(Instant.ofEpochMilli(Long.parseLong(timestampMatcher.group(1))));
+        }
+        element.setRawXML(() -> ObjectXMLParser.cleanUpRawObjectXML(
+                ObjectXMLParser.removeAddedAttributes(getRawXML(i))));
+        return element;
+    }
+
+    public List<ObjectProfileElement> readElements() {
+        List<ObjectProfileElement> elements = new ArrayList<>(size());
+        for (int i = 0; i < size(); i++) {
+            elements.add(getElement(i));
+        }
+        return elements;
+    }
+
+    private String getFirstTag(int i) {
+        ByteBuffer view = mappedFile.duplicate();
+        int start = (int) offsets[i];
+        int end = start;
+        while (end < offsets[i + 1] && view.get(end) != '>') {
+            end++;
+        }
+        byte[] bytes = new byte[end - start];
+        view.position(start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private long[] buildIndex() {
+        List<Long> starts = new ArrayList<>();
+        int length = mappedFile.limit();
+        ByteBuffer view = mappedFile.duplicate();
+        boolean isLineStart = true;
+        for (int position = 0; position < length; position++) {
+            byte b = view.get(position);
+            if (isLineStart && b == '<' && position + 1 < length) {
+                byte next = view.get(position + 1);
+                if (next != '/' && next != '?' && next != '!') {
+                    starts.add((long) position);
+                }
+            }
+            isLineStart = b == '\n';
+        }
+        long[] offsets = new long[starts.size() + 1];
+        for (int i = 0; i < starts.size(); i++) {
+            offsets[i] = starts.get(i);
+        }
+        offsets[starts.size()] = length;
+        return offsets;
+    }
+
+    private File getIndexFile() {
+        String path = inputFile.getAbsolutePath();
+        return new File(INDEX_DIRECTORY, Integer.toHexString(path.hashCode()) + "-" + inputFile.getName() + ".idx");
+    }
+
+    // The index is used if it was built for the same path, length and modification time of the file
+    private long[] readIndex() {
+        File indexFile = getIndexFile();
+        if (!indexFile.exists())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC) || !in.readUTF().equals(inputFile.getAbsolutePath())
+                    || in.readLong() != inputFile.length()
+                    || in.readLong() != inputFile.lastModified())
+                return null;
+            long[] offsets = new long[in.readInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readLong();
+            }
+            return offsets;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeIndex(long[] offsets) {
+        INDEX_DIRECTORY.mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getIndexFile())))) {
+            out.write(INDEX_MAGIC);
+            out.writeUTF(inputFile.getAbsolutePath());
+            out.writeLong(inputFile.length());
+            out.writeLong(inputFile.lastModified());
+            out.writeInt(offsets.length);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+        } catch (IOException e) {
+            // The index is built again next time
+            System.out.println("COULD NOT WRITE INDEX FOR " + inputFile + " - " + e.getMessage());
+        }
+    }
+}
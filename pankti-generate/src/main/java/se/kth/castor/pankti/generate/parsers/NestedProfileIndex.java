@@ -0,0 +1,54 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * This class indexes the objects in nested invocation files by the uuid
+ * of the invocation they were captured in. A nested file is parsed the first time
+ * it is looked up, and its index is shared by all the instrumented methods
+ * of a run, so each file is parsed once regardless of how many methods mock the same invocation.
+ * Different files are parsed concurrently, a lookup only waits for the file it needs.
+ */
+public class NestedProfileIndex {
+    private final Map<File, FutureTask<Map<String, List<ObjectProfileElement>>>> elementsByFile =
+            new ConcurrentHashMap<>();
+
+    // Elements of the nested file, grouped by parent uuid, in the order they were captured
+    public Map<String, List<ObjectProfileElement>> getElementsByParentUUID(
+            ObjectXMLParser parser, File nestedFile) throws Exception {
+        File key = nestedFile.getAbsoluteFile();
+        FutureTask<Map<String, List<ObjectProfileElement>>> task = elementsByFile.get(key);
+        if (task == null) {
+            FutureTask<Map<String, List<ObjectProfileElement>>> newTask = new FutureTask<>(() -> {
+                Map<String, List<ObjectProfileElement>> elementsByParentUUID = new HashMap<>();
+                for (ObjectProfileElement element : parser.parseXMLInFile(nestedFile)) {
+                    elementsByParentUUID.computeIfAbsent(element.getUuid(), uuid -> new ArrayList<>()).add(element);
+                }
+                return elementsByParentUUID;
+            });
+            task = elementsByFile.putIfAbsent(key, newTask);
+            if (task == null) {
+                // The file is parsed by the thread that looked it up first
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            // The file is parsed again the next time it is looked up
+            elementsByFile.remove(key, task);
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    public int size() {
+        return elementsByFile.size();
+    }
+}
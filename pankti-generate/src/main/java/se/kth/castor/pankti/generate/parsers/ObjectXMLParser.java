@@ -1,10 +1,5 @@
 package se.kth.castor.pankti.generate.parsers;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
 import se.kth.castor.pankti.generate.data.InstrumentedMethod;
 import se.kth.castor.pankti.generate.data.NestedInvocation;
 import se.kth.castor.pankti.generate.data.ObjectProfileElement;
@@ -12,30 +7,33 @@ import se.kth.castor.pankti.generate.data.SerializedObject;
 import se.kth.castor.pankti.generate.util.MethodInvocationUtil;
 import se.kth.castor.pankti.generate.util.TestGeneratorUtil;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
 import java.time.Instant;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.regex.Pattern;
 
 public class ObjectXMLParser {
     Set<SerializedObject> serializedObjects = new HashSet<>();
+    private int numberOfDuplicates;
+    private final Map<File, BlobStoreReader> blobStores = new HashMap<>();
+    private final NestedProfileIndex nestedProfileIndex;
     private static final String nestedInvocationObjectFilePrefix = "nested-";
     private static final String receivingObjectFilePostfix = "-receiving.xml";
     private static final String paramObjectsFilePostfix = "-params.xml";
     private static final String returnedObjectFilePostfix = "-returned.xml";
     private static final String receivingPostObjectFilePostfix = "-receiving-post.xml";
+    private static final Pattern ADDED_ATTRIBUTES_PATTERN =
+            Pattern.compile("\\s+(?:uuid|parent-uuid|timestamp)=\"[^\"]*\"");
 
-    public InputStream addRootElementToXMLFile(File inputFile) throws FileNotFoundException {
-        FileInputStream fis = new FileInputStream(inputFile);
-        List<InputStream> streams =
-                Arrays.asList(
-                        new ByteArrayInputStream("<root>".getBytes()),
-                        fis,
-                        new ByteArrayInputStream("</root>".getBytes()));
-        return new SequenceInputStream(Collections.enumeration(streams));
+    public ObjectXMLParser() {
+        this(new NestedProfileIndex());
     }
+
+    // Parsers of the same run share the index, so nested files are parsed once
+    public ObjectXMLParser(NestedProfileIndex nestedProfileIndex) {
+        this.nestedProfileIndex = nestedProfileIndex;
+    }
+
     public static final String PROPERTY_FILE_PATH = "/tmp/pankti-object-data/paths.properties";
     static Properties loadProperties()  {
         Properties properties = new Properties();
@@ -65,69 +63,68 @@ public class ObjectXMLParser {
         return new File(mappedFileName);
     }
 
-    public String cleanUpRawObjectXML(String rawXMLForObject) {
-        rawXMLForObject = rawXMLForObject.replaceAll("(\\<\\?xml version=\"1\\.0\" encoding=\"UTF-16\"\\?>)", "");
+    public static String cleanUpRawObjectXML(String rawXMLForObject) {
         rawXMLForObject = rawXMLForObject.trim();
         rawXMLForObject = rawXMLForObject.replaceAll("(&amp;#x)(\\w+;)", "&#x$2");
         return rawXMLForObject;
     }
 
-    private void removeAddedAttributes(Node thisNode) {
-        List<String> attributesToRemove = Arrays.asList("uuid", "parent-uuid", "timestamp");
-        for (String attributeToRemove : attributesToRemove) {
-            if (thisNode.getAttributes().getNamedItem(attributeToRemove) != null)
-                thisNode.getAttributes().removeNamedItem(attributeToRemove);
+    // Removes the attributes added to the first tag of an object when it was captured
+    static String removeAddedAttributes(String rawXMLForObject) {
+        int firstTagEnd = rawXMLForObject.indexOf('>');
+        if (firstTagEnd < 0)
+            return rawXMLForObject;
+        return ADDED_ATTRIBUTES_PATTERN.matcher(rawXMLForObject.substring(0, firstTagEnd)).replaceAll("")
+                + rawXMLForObject.substring(firstTagEnd);
+    }
+
+    // Objects stored once by content hash are resolved from the blob file in the same directory,
+    // when their raw XML is read
+    private void resolveBlobReferences(File inputFile, List<ObjectProfileElement> objectProfileElements) {
+        File directory = inputFile.getAbsoluteFile().getParentFile();
+        for (ObjectProfileElement element : objectProfileElements) {
+            element.mapRawXML(rawXML -> {
+                String hash = BlobStoreReader.getReferencedHash(rawXML);
+                if (hash == null)
+                    return rawXML;
+                synchronized (blobStores) {
+                    return blobStores.computeIfAbsent(directory, BlobStoreReader::new).resolve(hash);
+                }
+            });
         }
     }
 
     public List<ObjectProfileElement> parseXMLInFile(File inputFile) throws Exception {
-        List<ObjectProfileElement> objectProfileElements = new ArrayList<>();
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-
-        InputStream wellFormedXML = addRootElementToXMLFile(inputFile);
-
-        Document doc = dBuilder.parse(wellFormedXML);
-
-        DOMImplementationLS ls = (DOMImplementationLS) doc.getImplementation();
-        LSSerializer ser = ls.createLSSerializer();
-
-        Node rootNode = doc.getDocumentElement();
-        rootNode.normalize();
-        NodeList childNodes = rootNode.getChildNodes();
-
-        for (int i = 0; i < childNodes.getLength(); i++) {
-            Node thisNode = childNodes.item(i);
-            ObjectProfileElement element = new ObjectProfileElement();
+        List<ObjectProfileElement> objectProfileElements = parseObjectsInFile(inputFile);
+        resolveBlobReferences(inputFile, objectProfileElements);
+        return objectProfileElements;
+    }
 
-            // ignore newline xml elements => !thisNode.toString().equals("[#text: \n]")
-            if (!thisNode.hasAttributes() & !thisNode.toString().equals("[#text: \n]")) {
-                element.setUuid(null);
-            }
-            if (thisNode.hasAttributes() & !thisNode.toString().equals("[#text: \n]")) {
-                for (int j = 0; j < thisNode.getAttributes().getLength(); j++) {
-                    if (thisNode.getAttributes().item(j).getNodeName().contains("uuid")) {
-                        element.setUuid(thisNode.getAttributes().item(j).getNodeValue()
-                                .replace("-", ""));
-                    }
-                    if (thisNode.getAttributes().item(j).getNodeName().equals("timestamp")) {
-                        element.setTimestamp(Instant.ofEpochMilli(
-                                Long.parseLong(thisNode.getAttributes().item(j).getNodeValue())));
-                    }
-                }
-                removeAddedAttributes(thisNode);
-            }
-            String rawXMLForObject = ser.writeToString(thisNode);
-            String cleanedUpXML = cleanUpRawObjectXML(rawXMLForObject);
-            if (!cleanedUpXML.equals("")) {
-                element.setRawXML(cleanedUpXML);
-                objectProfileElements.add(element);
+    private List<ObjectProfileElement> parseObjectsInFile(File inputFile) throws Exception {
+        // Profiles captured with capture.format=binary
+        if (ProfileRecordReader.isProfileRecordFile(inputFile)) {
+            return new ProfileRecordReader().readRecordsInFile(inputFile);
+        }
+        // Plain XML files are indexed and read without building a document
+        if (IndexedProfileReader.canRead(inputFile)) {
+            return new IndexedProfileReader(inputFile).readElements();
+        }
+        // Compressed and journaled files are parsed as a stream, one object at a time,
+        // and objects are read again from their offset when they are needed
+        List<ObjectProfileElement> objectProfileElements = new ArrayList<>();
+        try (StreamingProfileParser parser = new StreamingProfileParser(inputFile)) {
+            while (parser.hasNext()) {
+                objectProfileElements.add(parser.next());
             }
-
         }
         return objectProfileElements;
     }
 
+    // Number of profiles dropped because an invocation with the same objects was already parsed
+    public int getNumberOfDuplicates() {
+        return numberOfDuplicates;
+    }
+
     // Create object profiles from object xml files
     public Set<SerializedObject> parseXML(String directory,
                                           InstrumentedMethod instrumentedMethod,
@@ -145,13 +142,10 @@ public class ObjectXMLParser {
             // Get objects from xxx-receiving.xml
             File receivingObjectFile = findXMLFileByObjectType(basePath, postfix + receivingObjectFilePostfix);
             List<ObjectProfileElement> receivingElements = parseXMLInFile(receivingObjectFile);
-            List<String> receivingObjects = new ArrayList<>();
             List<String> parentUUIDs = new ArrayList<>();
             for (ObjectProfileElement element : receivingElements) {
-                receivingObjects.add(element.getRawXML());
                 parentUUIDs.add(element.getUuid());
             }
-            List<String> returnedOrReceivingPostObjects = new ArrayList<>();
             List<ObjectProfileElement> returnedOrReceivingPostElements;
             if (!instrumentedMethod.getReturnType().equals("void")) {
                 // Get objects from xxx-returned.xml for non-void methods
@@ -162,21 +156,15 @@ public class ObjectXMLParser {
                 File receivingPostObjectFile = findXMLFileByObjectType(basePath, postfix + receivingPostObjectFilePostfix);
                 returnedOrReceivingPostElements = parseXMLInFile(receivingPostObjectFile);
             }
-            for (ObjectProfileElement returnedOrReceivingPostElement : returnedOrReceivingPostElements) {
-                returnedOrReceivingPostObjects.add(returnedOrReceivingPostElement.getRawXML());
-            }
 
             // Get objects from xxx-params.xml
-            List<String> paramObjects = new ArrayList<>();
+            List<ObjectProfileElement> paramElements = new ArrayList<>();
             if (hasParams) {
                 File paramObjectsFile = findXMLFileByObjectType(basePath, postfix + paramObjectsFilePostfix);
-                List<ObjectProfileElement> paramElements = parseXMLInFile(paramObjectsFile);
-                for (ObjectProfileElement paramElement : paramElements) {
-                    paramObjects.add(paramElement.getRawXML());
-                }
+                paramElements = parseXMLInFile(paramObjectsFile);
             }
 
-            List<SerializedObject> nestedSerializedObjects = new ArrayList<>();
+            Map<String, List<SerializedObject>> nestedSerializedObjectsByParentUUID = new HashMap<>();
 
             // Get objects from nested-xxx-params.xml and nested-xxx-returned.xml
             // Get nested xml if --rick
@@ -191,11 +179,6 @@ public class ObjectXMLParser {
                     String methodName = MethodInvocationUtil.getMethodName(mockedMethodWithParams);
                     List<String> params = MethodInvocationUtil.getMethodParams(mockedMethodWithParams);
                     String nestedInvocationPostfix = TestGeneratorUtil.getParamListPostFix(params);
-                    List<String> nestedParamObjects = new ArrayList<>();
-                    List<String> nestedUuids = new ArrayList<>();
-                    List<String> nestedReturnedObjects = new ArrayList<>();
-                    List<Instant> nestedTimestamps = new ArrayList<>();
-                    List<String> nestedInvocationFQNs = new ArrayList<>();
                     String filePathNestedParams = directory + nestedInvocationObjectFilePrefix + declaringType + "." + methodName +
                             nestedInvocationPostfix + paramObjectsFilePostfix;
                     String filePathNestedParamsMappedFileName = getMappedFileName(filePathNestedParams);
@@ -203,33 +186,30 @@ public class ObjectXMLParser {
                             nestedInvocationPostfix + returnedObjectFilePostfix;
                     String filePathNestedReturnedMappedFileName = getMappedFileName(filePathNestedReturned);
                     try {
-                        List<ObjectProfileElement> nestedParamElements = parseXMLInFile(new File(filePathNestedParamsMappedFileName));
-                        for (ObjectProfileElement nestedParamElement : nestedParamElements) {
-                            if (parentUUIDs.contains(nestedParamElement.getUuid())) {
-                                nestedParamObjects.add(nestedParamElement.getRawXML());
-                                nestedTimestamps.add(nestedParamElement.getTimestamp());
-                                nestedInvocationFQNs.add(declaringType + "." + mockedMethodWithParams);
+                        Map<String, List<ObjectProfileElement>> nestedParamElements = nestedProfileIndex
+                                .getElementsByParentUUID(this, new File(filePathNestedParamsMappedFileName));
+                        Map<String, List<ObjectProfileElement>> nestedReturnedElements = nestedProfileIndex
+                                .getElementsByParentUUID(this, new File(filePathNestedReturnedMappedFileName));
+                        for (String parentUUID : new LinkedHashSet<>(parentUUIDs)) {
+                            List<ObjectProfileElement> nestedParams =
+                                    nestedParamElements.getOrDefault(parentUUID, Collections.emptyList());
+                            List<ObjectProfileElement> nestedReturned =
+                                    nestedReturnedElements.getOrDefault(parentUUID, Collections.emptyList());
+                            // Params and returned objects of a parent invocation are captured in the same order
+                            for (int i = 0; i < Math.min(nestedParams.size(), nestedReturned.size()); i++) {
+                                nestedSerializedObjectsByParentUUID.computeIfAbsent(parentUUID, uuid -> new ArrayList<>())
+                                        .add(new SerializedObject(
+                                                new ObjectProfileElement(),
+                                                nestedReturned.get(i),
+                                                new ObjectProfileElement(),
+                                                nestedParams.get(i),
+                                                nestedReturned.get(i).getUuid(),
+                                                null,
+                                                nestedParams.get(i).getTimestamp(),
+                                                declaringType + "." + mockedMethodWithParams
+                                        ));
                             }
                         }
-                        List<ObjectProfileElement> nestedReturnedElements = parseXMLInFile(new File(filePathNestedReturnedMappedFileName));
-                        for (ObjectProfileElement nestedReturnedElement : nestedReturnedElements) {
-                            if (parentUUIDs.contains(nestedReturnedElement.getUuid())) {
-                                nestedUuids.add(nestedReturnedElement.getUuid());
-                                nestedReturnedObjects.add(nestedReturnedElement.getRawXML());
-                            }
-                        }
-                        for (int i = 0; i < nestedParamObjects.size(); i++) {
-                            nestedSerializedObjects.add(new SerializedObject(
-                                    null,
-                                    nestedReturnedObjects.get(i),
-                                    null,
-                                    nestedParamObjects.get(i),
-                                    nestedUuids.get(i),
-                                    null,
-                                    nestedTimestamps.get(i),
-                                    nestedInvocationFQNs.get(i)
-                            ));
-                        }
                     } catch (Exception e) {
                         System.out.println("NO NESTED OBJECT FILE - " + filePathNestedParams + " " + filePathNestedParamsMappedFileName + " AND / OR " +
                                 filePathNestedReturned + " " + filePathNestedParamsMappedFileName + " - SKIPPING");
@@ -237,34 +217,42 @@ public class ObjectXMLParser {
                     }
                 }
 
-                System.out.println("Nested serialized objects: " + nestedSerializedObjects.size());
+                System.out.println("Nested serialized objects: " + nestedSerializedObjectsByParentUUID.values().stream()
+                        .mapToInt(List::size).sum());
             }
 
             int serializedObjectCount = 0;
-            for (int i = 0; i < receivingObjects.size(); i++) {
-                if (!receivingObjects.get(i).isEmpty() && !returnedOrReceivingPostObjects.get(i).isEmpty()) {
-                    String params = hasParams ? paramObjects.get(i) : "";
+            int duplicateCount = 0;
+            ObjectProfileElement empty = new ObjectProfileElement("");
+            for (int i = 0; i < receivingElements.size(); i++) {
+                ObjectProfileElement receivingElement = receivingElements.get(i);
+                ObjectProfileElement returnedOrReceivingPostElement = returnedOrReceivingPostElements.get(i);
+                if (!receivingElement.getRawXML().isEmpty() && !returnedOrReceivingPostElement.getRawXML().isEmpty()) {
+                    ObjectProfileElement params = hasParams ? paramElements.get(i) : empty;
                     // Create object profiles from all serialized objects
-                    int finalI = i;
                     SerializedObject serializedObject = new SerializedObject(
-                            receivingObjects.get(i),
-                            (!instrumentedMethod.getReturnType().equals("void") ? returnedOrReceivingPostObjects.get(i) : ""),
-                            (instrumentedMethod.getReturnType().equals("void") ? returnedOrReceivingPostObjects.get(i) : ""),
+                            receivingElement,
+                            (!instrumentedMethod.getReturnType().equals("void") ? returnedOrReceivingPostElement : empty),
+                            (instrumentedMethod.getReturnType().equals("void") ? returnedOrReceivingPostElement : empty),
                             params,
                             parentUUIDs.get(i),
-                            nestedSerializedObjects.stream()
-                                    .filter(Objects::nonNull)
-                                    .filter(nestedSerializedObject -> nestedSerializedObject.getUUID().equals(parentUUIDs.get(finalI)))
-                                    .collect(Collectors.toList()),
+                            new ArrayList<>(nestedSerializedObjectsByParentUUID
+                                    .getOrDefault(parentUUIDs.get(i), Collections.emptyList())),
                             null,
                             null);
                     serializedObject.getNestedSerializedObjects()
                             .sort(Comparator.comparing(SerializedObject::getInvocationTimestamp));
-                    serializedObjects.add(serializedObject);
+                    // Profiles are compared by digest, only the digest is kept until the test is generated
+                    if (!serializedObjects.add(serializedObject)) {
+                        duplicateCount++;
+                    }
+                    serializedObject.release();
                     serializedObjectCount++;
                 }
             }
+            numberOfDuplicates += duplicateCount;
             System.out.println("Number of pairs/triples of object values: " + serializedObjectCount);
+            System.out.println("Number of duplicate pairs/triples of object values dropped: " + duplicateCount);
         } catch (FileNotFoundException e) {
             System.out.println("NO OBJECT FILES FOUND FOR " + basePath + " PARAMS" + postfix + " - SKIPPING");
         } catch (Exception e) {
@@ -0,0 +1,186 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * This class reads profile files written with capture.layout=journal
+ * by pankti-instrument (see ProfileJournal). The index of the journal is
+ * read once, and a file is read as the sequence of its chunks, each chunk
+ * being read from its segment, and decompressed, when it is reached.
+ */
+public class ProfileJournalReader {
+    static final String DIRECTORY_NAME = "journal";
+    static final String INDEX_FILE_NAME = "journal.idx";
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final Map<File, ProfileJournalReader> journals = new ConcurrentHashMap<>();
+    private final File directory;
+    private final long indexLength;
+    private final Map<String, List<Chunk>> chunksByFileName = new HashMap<>();
+
+    static final class Chunk {
+        final int segmentNumber;
+        final long offset;
+        final int storedLength;
+        final int length;
+        final boolean compressed;
+
+        Chunk(int segmentNumber, long offset, int storedLength, int length, boolean compressed) {
+            this.segmentNumber = segmentNumber;
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+
+    ProfileJournalReader(File directory) throws IOException {
+        this.directory = directory;
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        this.indexLength = indexFile.length();
+        for (String line : Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length < 6)
+                continue;
+            chunksByFileName.computeIfAbsent(fields[0], k -> new ArrayList<>())
+                    .add(new Chunk(Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+                            Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), fields[5].equals("1")));
+        }
+    }
+
+    // Opens a profile file from the journal in its directory, or returns null if it is not in a journal
+    public static InputStream open(File inputFile) throws IOException {
+        File directory = new File(inputFile.getAbsoluteFile().getParentFile(), DIRECTORY_NAME);
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        if (!indexFile.exists())
+            return null;
+        ProfileJournalReader journal = journals.get(directory);
+        // The index is read again if it was appended to since
+        if (journal == null || journal.indexLength != indexFile.length()) {
+            journal = new ProfileJournalReader(directory);
+            journals.put(directory, journal);
+        }
+        List<Chunk> chunks = journal.chunksByFileName.get(inputFile.getName());
+        return chunks == null ? null : journal.new JournalInputStream(chunks);
+    }
+
+    public static String getSegmentFileName(int segmentNumber) {
+        return String.format("segment-%06d.pkj", segmentNumber);
+    }
+
+    final class JournalInputStream extends InputStream {
+        private final List<Chunk> chunks;
+        private final Map<Integer, RandomAccessFile> segments = new HashMap<>();
+        private final Inflater inflater = new Inflater();
+        private int nextChunk;
+        private byte[] block = new byte[0];
+        private int position;
+        private int limit;
+
+        JournalInputStream(List<Chunk> chunks) {
+            this.chunks = chunks;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (nextChunk == chunks.size())
+                return false;
+            Chunk chunk = chunks.get(nextChunk++);
+            RandomAccessFile segment = segments.get(chunk.segmentNumber);
+            if (segment == null) {
+                segment = new RandomAccessFile(new File(directory, getSegmentFileName(chunk.segmentNumber)), "r");
+                segments.put(chunk.segmentNumber, segment);
+            }
+            byte[] stored = new byte[chunk.storedLength];
+            segment.seek(chunk.offset + CHUNK_HEADER_SIZE);
+            segment.readFully(stored);
+            if (chunk.compressed) {
+                if (block.length < chunk.length)
+                    block = new byte[chunk.length];
+                inflate(stored, chunk.length);
+            } else {
+                block = stored;
+            }
+            position = 0;
+            limit = chunk.length;
+            return true;
+        }
+
+        private void inflate(byte[] stored, int length) throws IOException {
+            inflater.reset();
+            inflater.setInput(stored);
+            try {
+                int inflated = 0;
+                while (inflated < length && !inflater.finished()) {
+                    inflated += inflater.inflate(block, inflated, length - inflated);
+                }
+                if (inflated != length)
+                    throw new IOException("Corrupt journal chunk");
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt journal chunk", e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (position == limit) {
+                if (!nextChunk())
+                    return -1;
+            }
+            return block[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            while (position == limit) {
+                if (!nextChunk())
+                    return -1;
+            }
+            int n = Math.min(length, limit - position);
+            System.arraycopy(block, position, bytes, offset, n);
+            position += n;
+            return n;
+        }
+
+        // Chunks that are skipped entirely are not read
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = Math.min(n, limit - position);
+            position += (int) skipped;
+            while (skipped < n && nextChunk < chunks.size()
+                    && chunks.get(nextChunk).length <= n - skipped) {
+                skipped += chunks.get(nextChunk++).length;
+            }
+            if (skipped < n && nextChunk()) {
+                position = (int) (n - skipped);
+                skipped = n;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            for (RandomAccessFile segment : segments.values()) {
+                segment.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class reads object profiles written as binary records by pankti-instrument
+ * (see ProfileRecords). Records have the same layout as written there:
+ * a file starts with MAGIC, and each record starts with its kind (SECTION,
+ * DEFINITION or OBJECT). The uuid of an element is the run id followed by
+ * the invocation id, in hexadecimal, as in XML profiles without the hyphen.
+ */
+public class ProfileRecordReader {
+    static final byte[] MAGIC = {'P', 'K', 'T', 'R'};
+    static final byte SECTION = 0;
+    static final byte DEFINITION = 1;
+    static final byte OBJECT = 2;
+
+    public static boolean isProfileRecordFile(File inputFile) throws IOException {
+        try (InputStream in = CompressedProfileInputStream.open(inputFile)) {
+            byte[] magic = new byte[MAGIC.length];
+            int read = 0;
+            while (read < magic.length) {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0)
+                    return false;
+                read += n;
+            }
+            return Arrays.equals(MAGIC, magic);
+        }
+    }
+
+    public List<ObjectProfileElement> readRecordsInFile(File inputFile) throws IOException {
+        List<ObjectProfileElement> objectProfileElements = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(CompressedProfileInputStream.open(inputFile))) {
+            in.skipBytes(MAGIC.length);
+            Map<Integer, String> names = new HashMap<>();
+            while (true) {
+                int kind = in.read();
+                if (kind < 0)
+                    break;
+                try {
+                    if (kind == SECTION) {
+                        names.clear();
+                    } else if (kind == DEFINITION) {
+                        int id = in.readInt();
+                        names.put(id, in.readUTF());
+                    } else if (kind == OBJECT) {
+                        objectProfileElements.add(readObject(in, names));
+                    } else {
+                        throw new IOException("Unknown record kind " + kind + " in " + inputFile);
+                    }
+                } catch (EOFException e) {
+                    // The last record was not written completely
+                    System.out.println("Truncated record at the end of " + inputFile + " - SKIPPING");
+                    break;
+                }
+            }
+        }
+        return objectProfileElements;
+    }
+
+    private ObjectProfileElement readObject(DataInputStream in, Map<Integer, String> names) throws IOException {
+        int methodId = in.readInt();
+        int typeId = in.readInt();
+        long runId = in.readLong();
+        long invocationId = in.readLong();
+        long timestamp = in.readLong();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        if (!names.containsKey(methodId) || !names.containsKey(typeId)) {
+            throw new IOException("Record refers to an undefined name");
+        }
+        ObjectProfileElement element = new ObjectProfileElement();
+        if (invocationId != 0L) {
+            element.setUuid(Long.toHexString(runId) + Long.toHexString(invocationId));
+        }
+        if (timestamp != 0L) {
+            element.setTimestamp(Instant.ofEpochMilli(timestamp));
+        }
+        element.setRawXML(new String(payload, StandardCharsets.UTF_8).trim());
+        return element;
+    }
+}
@@ -0,0 +1,195 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class parses the objects of an XML profile stream one at a time, in a
+ * single pass, so that only the current object is kept in memory. An object
+ * is the text from a line starting with its first tag, up to the next such
+ * line (text content can not start with '<', as XStream escapes it), and is
+ * kept as it was written. Its uuid and timestamp are read from its first tag
+ * with an XMLStreamReader, which stops there.
+ * Objects parsed from a file are not kept: their offset in the (decompressed)
+ * file is, and their raw XML is read again from there when it is needed,
+ * so that it can be released like the objects of an IndexedProfileReader.
+ */
+public class StreamingProfileParser implements Iterator<ObjectProfileElement>, Closeable {
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    private final InputStream in;
+    // The file the objects are read again from, or null if they are kept
+    private final File inputFile;
+    private final byte[] buffer = new byte[1 << 16];
+    private int bufferPosition;
+    private int bufferLimit;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    // Offset of the next line in the stream
+    private long position;
+    // The first line of the next object, or null at the end of the stream
+    private String nextObjectLine;
+    private long nextObjectOffset;
+
+    public StreamingProfileParser(InputStream in) throws IOException {
+        this(in, null);
+    }
+
+    // Parses a profile file, compressed or journaled, whose objects are read again when they are needed
+    public StreamingProfileParser(File inputFile) throws IOException {
+        this(CompressedProfileInputStream.open(inputFile), inputFile);
+    }
+
+    private StreamingProfileParser(InputStream in, File inputFile) throws IOException {
+        this.in = in;
+        this.inputFile = inputFile;
+        nextObjectOffset = position;
+        String line = readLine();
+        while (line != null && !isObjectStart(line)) {
+            nextObjectOffset = position;
+            line = readLine();
+        }
+        this.nextObjectLine = line;
+    }
+
+    static boolean isObjectStart(String line) {
+        return line.length() > 1 && line.charAt(0) == '<'
+                && line.charAt(1) != '/' && line.charAt(1) != '?' && line.charAt(1) != '!';
+    }
+
+    // Reads a line, without its terminator, or returns null at the end of the stream
+    private String readLine() throws IOException {
+        lineLength = 0;
+        boolean isRead = false;
+        while (true) {
+            if (bufferPosition == bufferLimit) {
+                bufferLimit = in.read(buffer);
+                bufferPosition = 0;
+                if (bufferLimit < 0) {
+                    bufferLimit = 0;
+                    break;
+                }
+            }
+            isRead = true;
+            int end = bufferPosition;
+            while (end < bufferLimit && buffer[end] != '\n') {
+                end++;
+            }
+            appendToLine(bufferPosition, end - bufferPosition);
+            position += end - bufferPosition;
+            bufferPosition = end;
+            if (end < bufferLimit) {
+                // Skip the terminator
+                bufferPosition++;
+                position++;
+                break;
+            }
+        }
+        if (!isRead)
+            return null;
+        int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void appendToLine(int offset, int length) {
+        if (lineLength + length > line.length)
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        System.arraycopy(buffer, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextObjectLine != null;
+    }
+
+    @Override
+    public ObjectProfileElement next() {
+        if (nextObjectLine == null)
+            throw new NoSuchElementException();
+        long offset = nextObjectOffset;
+        StringBuilder rawXML = new StringBuilder(nextObjectLine);
+        try {
+            long lineOffset = position;
+            String line = readLine();
+            while (line != null && !isObjectStart(line)) {
+                rawXML.append('\n').append(line);
+                lineOffset = position;
+                line = readLine();
+            }
+            nextObjectLine = line;
+            nextObjectOffset = lineOffset;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        ObjectProfileElement element = toElement(rawXML.toString().trim());
+        if (inputFile != null) {
+            File file = inputFile;
+            int length = (int) (nextObjectOffset - offset);
+            element.setRawXML(() -> ObjectXMLParser.cleanUpRawObjectXML(
+                    ObjectXMLParser.removeAddedAttributes(readRawXML(file, offset, length))));
+        }
+        return element;
+    }
+
+    // The XML of an object as it was written, read from its offset in the file
+    static String readRawXML(File inputFile, long offset, int length) {
+        try (DataInputStream in = new DataInputStream(CompressedProfileInputStream.open(inputFile))) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = in.skip(offset - skipped);
+                if (n <= 0)
+                    throw new IOException("Profile file " + inputFile + " is shorter than when it was parsed");
+                skipped += n;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8).trim();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ObjectProfileElement toElement(String rawXML) {
+        ObjectProfileElement element = new ObjectProfileElement();
+        try {
+            XMLStreamReader firstTag = xmlInputFactory.createXMLStreamReader(new StringReader(rawXML));
+            try {
+                firstTag.nextTag();
+                for (int i = 0; i < firstTag.getAttributeCount(); i++) {
+                    String name = firstTag.getAttributeLocalName(i);
+                    if (name.contains("uuid")) {
+                        element.setUuid(firstTag.getAttributeValue(i).replace("-", ""));
+                    } else if (name.equals("timestamp")) {
+                        element.setTimestamp(Instant.ofEpochMilli(Long.parseLong(firstTag.getAttributeValue(i))));
+                    }
+                }
+            } finally {
+                firstTag.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            System.out.println("COULD NOT READ FIRST TAG OF OBJECT - " + e.getMessage());
+        }
+        element.setRawXML(ObjectXMLParser.cleanUpRawObjectXML(ObjectXMLParser.removeAddedAttributes(rawXML)));
+        return element;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
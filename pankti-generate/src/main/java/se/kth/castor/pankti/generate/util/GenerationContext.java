@@ -0,0 +1,53 @@
+package se.kth.castor.pankti.generate.util;
+
+import spoon.Launcher;
+import spoon.reflect.declaration.CtAnnotation;
+import spoon.reflect.factory.Factory;
+
+/**
+ * This class holds the state of one test generation run: the launcher
+ * of the project, the factory of its model, the string format of the generated tests,
+ * and the annotations generated tests are marked with. It is given to generators
+ * and utils when they are created, so several runs can generate tests in the same JVM.
+ */
+public class GenerationContext {
+    private static final String JUNIT_JUPITER_TEST_REFERENCE = "org.junit.jupiter.api.Test";
+    private static final String JUNIT_JUPITER_DISABLED_REFERENCE = "org.junit.jupiter.api.Disabled";
+    private final Launcher launcher;
+    private final String testFormat;
+    private CtAnnotation<?> testAnnotation;
+    private CtAnnotation<?> disabledAnnotation;
+
+    public GenerationContext(Launcher launcher, String testFormat) {
+        this.launcher = launcher;
+        this.testFormat = testFormat;
+    }
+
+    public Launcher getLauncher() {
+        return launcher;
+    }
+
+    public Factory getFactory() {
+        return launcher.getFactory();
+    }
+
+    public String getTestFormat() {
+        return testFormat;
+    }
+
+    public synchronized void createTestAndDisabledAnnotations() throws ClassNotFoundException {
+        if (testAnnotation != null)
+            return;
+        Factory factory = getFactory();
+        testAnnotation = factory.createAnnotation(factory.createCtTypeReference(Class.forName(JUNIT_JUPITER_TEST_REFERENCE)));
+        disabledAnnotation = factory.createAnnotation(factory.createCtTypeReference(Class.forName(JUNIT_JUPITER_DISABLED_REFERENCE)));
+    }
+
+    public synchronized CtAnnotation<?> getTestAnnotation() {
+        return testAnnotation;
+    }
+
+    public synchronized CtAnnotation<?> getDisabledAnnotation() {
+        return disabledAnnotation;
+    }
+}
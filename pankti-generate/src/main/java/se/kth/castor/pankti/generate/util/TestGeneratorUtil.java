@@ -7,7 +7,6 @@ import com.thoughtworks.xstream.io.json.JettisonMappedXmlDriver;
 import com.thoughtworks.xstream.io.xml.XppReader;
 import org.apache.commons.text.StringEscapeUtils;
 import org.xmlpull.mxp1.MXParser;
-import spoon.Launcher;
 import spoon.compiler.SpoonResource;
 import spoon.compiler.SpoonResourceHelper;
 import spoon.reflect.code.*;
@@ -28,8 +27,15 @@ import java.util.List;
 import java.util.Scanner;
 
 public class TestGeneratorUtil {
-    public static Launcher launcher;
-    public static String testFormat = "xml";
+    private final GenerationContext context;
+
+    public TestGeneratorUtil() {
+        this(new GenerationContext(null, "xml"));
+    }
+
+    public TestGeneratorUtil(GenerationContext context) {
+        this.context = context;
+    }
 
     public CtMethod<?> generateDeserializationMethod(Factory factory, String serializedObjectSource) {
         String methodName = String.format("deserializeObjectFrom%s", serializedObjectSource);
@@ -54,13 +60,13 @@ public class TestGeneratorUtil {
         String fileName = "";
         try {
             methodIdentifier = methodIdentifier.replaceAll("\\[]", "_arr_");
-            File longObjectStrFile = new File("./output/object-data/" + methodIdentifier + "-" + profileType + "." + testFormat);
+            File longObjectStrFile = new File("./output/object-data/" + methodIdentifier + "-" + profileType + "." + context.getTestFormat());
             longObjectStrFile.getParentFile().mkdirs();
             FileWriter myWriter = new FileWriter(longObjectStrFile);
             myWriter.write(longObjectStr);
             myWriter.close();
             SpoonResource newResource = SpoonResourceHelper.createResource(longObjectStrFile);
-            launcher.addInputResource(longObjectStrFile.getAbsolutePath());
+            context.getLauncher().addInputResource(longObjectStrFile.getAbsolutePath());
             fileName = newResource.getName();
         } catch (Exception e) {
             e.printStackTrace();
@@ -3,16 +3,18 @@ package se.kth.castor.pankti.generate;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import se.kth.castor.pankti.generate.data.InstrumentedMethod;
+import se.kth.castor.pankti.generate.data.SerializedObject;
 import se.kth.castor.pankti.generate.generators.TestGenerator;
 import se.kth.castor.pankti.generate.parsers.CSVFileParser;
 import spoon.Launcher;
 import spoon.reflect.CtModel;
+import spoon.reflect.declaration.CtClass;
 import spoon.reflect.declaration.CtMethod;
 import spoon.reflect.declaration.CtType;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Optional;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -76,4 +78,86 @@ public class TestGeneratorTest {
                 methodAndOverload.getKey().getParameters().get(0).getType().getQualifiedName());
         assertTrue(methodAndOverload.getValue());
     }
+
+    @Test
+    public void testThatGeneratorsOfDifferentRunsUseTheirOwnModel() {
+        Launcher firstLauncher = new Launcher();
+        firstLauncher.addInputResource("src/test/resources/example/");
+        CtModel firstModel = firstLauncher.buildModel();
+        Launcher secondLauncher = new Launcher();
+        secondLauncher.addInputResource("src/test/resources/example/");
+        CtModel secondModel = secondLauncher.buildModel();
+        TestGenerator firstTestGenerator = new TestGenerator("xml", firstLauncher, false);
+        TestGenerator secondTestGenerator = new TestGenerator("json", secondLauncher, false);
+
+        CtType<?> firstType = firstTestGenerator.getTypesToProcess(firstModel).get(0);
+        CtType<?> secondType = secondTestGenerator.getTypesToProcess(secondModel).get(0);
+        assertSame(firstLauncher.getFactory(),
+                firstTestGenerator.generateTestClass(firstType.getPackage(), firstType.getSimpleName()).getFactory());
+        assertSame(secondLauncher.getFactory(),
+                secondTestGenerator.generateTestClass(secondType.getPackage(), secondType.getSimpleName()).getFactory());
+    }
+
+    // Generates test classes for the example methods, from one profile per method,
+    // returns the source of the generated classes in the order they were generated
+    private static List<String> generateTestClassesWithParsingThreads(int parsingThreads,
+                                                                      AtomicInteger maxParsedAhead) {
+        Launcher threadsLauncher = new Launcher();
+        threadsLauncher.addInputResource("src/test/resources/example/");
+        CtModel threadsModel = threadsLauncher.buildModel();
+        AtomicInteger parsedAhead = new AtomicInteger();
+        List<String> generatedClassNames = new ArrayList<>();
+        TestGenerator testGenerator = new TestGenerator("xml", threadsLauncher, false, parsingThreads) {
+            @Override
+            public Set<SerializedObject> parseSerializedObjects(InstrumentedMethod instrumentedMethod,
+                                                               String objectXMLDirectoryPath) {
+                // Each method takes a different time to parse, so that parsing completes out of order
+                try {
+                    Thread.sleep(Math.abs(instrumentedMethod.getFullMethodPath().hashCode() % 20));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                maxParsedAhead.accumulateAndGet(parsedAhead.incrementAndGet(), Math::max);
+                String receiving = "<" + instrumentedMethod.getParentFQN() + "/>";
+                String params = instrumentedMethod.hasParams() ? "<object-array><null/></object-array>" : "";
+                boolean isVoid = instrumentedMethod.getReturnType().equals("void");
+                return new LinkedHashSet<>(Collections.singletonList(new SerializedObject(receiving,
+                        isVoid ? "" : "<" + instrumentedMethod.getReturnType() + ">0</" +
+                                instrumentedMethod.getReturnType() + ">",
+                        isVoid ? receiving : "", params, "uuid", new ArrayList<>(), Instant.EPOCH,
+                        instrumentedMethod.getFullMethodPath())));
+            }
+
+            @Override
+            public CtClass<?> generateFullTestClass(CtType<?> type, CtMethod<?> method,
+                                                    InstrumentedMethod instrumentedMethod,
+                                                    Set<SerializedObject> serializedObjects) throws ClassNotFoundException {
+                parsedAhead.decrementAndGet();
+                CtClass<?> generatedClass = super.generateFullTestClass(type, method, instrumentedMethod, serializedObjects);
+                if (generatedClass != null && !generatedClassNames.contains(generatedClass.getQualifiedName()))
+                    generatedClassNames.add(generatedClass.getQualifiedName());
+                return generatedClass;
+            }
+        };
+        testGenerator.process(threadsModel, "src/test/resources/example-object-data/invoked-methods.csv",
+                "src/test/resources/example-object-data");
+        List<String> generatedClasses = new ArrayList<>();
+        for (String generatedClassName : generatedClassNames) {
+            generatedClasses.add(threadsLauncher.getFactory().Class().get(generatedClassName).toString());
+        }
+        return generatedClasses;
+    }
+
+    @Test
+    public void testThatParsingThreadsDoNotChangeTheGeneratedClasses() {
+        AtomicInteger maxParsedAheadWithOneThread = new AtomicInteger();
+        AtomicInteger maxParsedAheadWithFourThreads = new AtomicInteger();
+        List<String> withOneThread = generateTestClassesWithParsingThreads(1, maxParsedAheadWithOneThread);
+        List<String> withFourThreads = generateTestClassesWithParsingThreads(4, maxParsedAheadWithFourThreads);
+        assertFalse(withOneThread.isEmpty());
+        assertEquals(withOneThread, withFourThreads);
+        // Parsing runs at most twice the number of threads ahead of the classes being built
+        assertTrue(maxParsedAheadWithOneThread.get() <= 2);
+        assertTrue(maxParsedAheadWithFourThreads.get() <= 8);
+    }
 }
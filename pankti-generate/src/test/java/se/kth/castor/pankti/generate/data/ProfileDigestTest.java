@@ -0,0 +1,38 @@
+package se.kth.castor.pankti.generate.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * These tests verify that profiles with the same objects have the same digest,
+ * and that duplicate profiles are found by their digests
+ */
+public class ProfileDigestTest {
+
+    @Test
+    public void testDigestsOfObjects() {
+        assertEquals(ProfileDigest.of("<int>1</int>", "<null/>"), ProfileDigest.of("<int>1</int>", "<null/>"));
+        assertNotEquals(ProfileDigest.of("<int>1</int>", "<null/>"), ProfileDigest.of("<int>2</int>", "<null/>"));
+        // Objects are not run into each other
+        assertNotEquals(ProfileDigest.of("ab", "c"), ProfileDigest.of("a", "bc"));
+        assertNotEquals(ProfileDigest.of(null, ""), ProfileDigest.of("", null));
+        assertEquals(32, ProfileDigest.of("<int>1</int>").toString().length());
+    }
+
+    @Test
+    public void testDuplicateProfilesAreFoundByDigest() {
+        Set<SerializedObject> serializedObjects = new HashSet<>();
+        assertTrue(serializedObjects.add(new SerializedObject("<receiving/>", "<int>1</int>", "",
+                "<object-array/>", "uuid1", null, null, null)));
+        // Invocations with the same objects, but different uuids, are the same profile
+        assertFalse(serializedObjects.add(new SerializedObject("<receiving/>", "<int>1</int>", "",
+                "<object-array/>", "uuid2", null, null, null)));
+        assertTrue(serializedObjects.add(new SerializedObject("<receiving/>", "<int>2</int>", "",
+                "<object-array/>", "uuid3", null, null, null)));
+        assertEquals(2, serializedObjects.size());
+    }
+}
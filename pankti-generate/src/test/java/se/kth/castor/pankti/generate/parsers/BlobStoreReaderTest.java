@@ -0,0 +1,62 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * These tests verify that references to objects stored
+ * once by content hash are resolved from the blob file
+ */
+public class BlobStoreReaderTest {
+    static final String serviceXML = "<some.package.Service>\n  <name>service</name>\n</some.package.Service>";
+
+    @TempDir
+    Path tempDir;
+
+    static String writeBlob(DataOutputStream out, String xml) throws Exception {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(bytes);
+        out.write(hash);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : hash) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Test
+    public void testReferencesAreResolvedLazily() throws Exception {
+        String hash;
+        try (DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(tempDir.resolve(BlobStoreReader.FILE_NAME).toFile()))) {
+            out.write(BlobStoreReader.MAGIC);
+            writeBlob(out, "<int>0</int>");
+            hash = writeBlob(out, serviceXML);
+        }
+        Path receivingFile = tempDir.resolve("blobs-receiving.xml");
+        Files.write(receivingFile, ("<pankti-blob-ref hash=\"" + hash + "\" uuid=\"99e60398-1\"/>\n" +
+                "<pankti-blob-ref hash=\"" + hash + "\" uuid=\"99e60398-2\"/>\n" +
+                "<int>5</int>\n").getBytes(StandardCharsets.UTF_8));
+
+        List<ObjectProfileElement> receivingObjects = new ObjectXMLParser().parseXMLInFile(receivingFile.toFile());
+        assertEquals(3, receivingObjects.size());
+        assertEquals("99e603982", receivingObjects.get(1).getUuid());
+        assertEquals(serviceXML, receivingObjects.get(0).getRawXML());
+        assertSame(receivingObjects.get(0).getRawXML(), receivingObjects.get(1).getRawXML());
+        assertEquals("<int>5</int>", receivingObjects.get(2).getRawXML());
+    }
+}
@@ -0,0 +1,80 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * These tests verify that profile files written in compressed
+ * blocks are read as if they were not compressed
+ */
+public class CompressedProfileInputStreamTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Write each string as a block, as pankti-instrument does
+    static File writeCompressedFile(File file, String... blocks) throws Exception {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.write(CompressedProfileInputStream.COMPRESSED_MAGIC);
+            for (String block : blocks) {
+                byte[] bytes = block.getBytes(StandardCharsets.UTF_8);
+                Deflater deflater = new Deflater();
+                deflater.setInput(bytes);
+                deflater.finish();
+                byte[] compressed = new byte[bytes.length + 64];
+                int compressedLength = deflater.deflate(compressed);
+                deflater.end();
+                out.writeInt(bytes.length);
+                out.writeInt(compressedLength);
+                out.write(compressed, 0, compressedLength);
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void testObjectExtractionFromCompressedFile() throws Exception {
+        File compressedFile = writeCompressedFile(tempDir.resolve("compressed-params.xml").toFile(),
+                "<object-array parent-uuid=\"99e60398-7ded-4d09-9408-54731c0c6bd0\" timestamp=\"1645987454616\">\n" +
+                        "    <int>32</int>\n</object-array>\n<object-array parent-uuid=\"99e60398",
+                "-7ded-4d09-9408-54731c0c6bd0\" timestamp=\"1645987454617\">\n    <int>33</int>\n</object-array>\n");
+        List<ObjectProfileElement> params = new ObjectXMLParser().parseXMLInFile(compressedFile);
+        assertEquals(2, params.size());
+        assertEquals("99e603987ded4d09940854731c0c6bd0", params.get(1).getUuid());
+        assertEquals("<object-array><int>33</int></object-array>",
+                params.get(1).getRawXML().replaceAll("\\s", ""));
+    }
+
+    @Test
+    public void testSkipAcrossBlocks() throws Exception {
+        File compressedFile = writeCompressedFile(tempDir.resolve("skip-returned.xml").toFile(),
+                "<int>1</int>\n", "<int>2</int>\n", "<int>3</int>\n");
+        try (InputStream in = CompressedProfileInputStream.open(compressedFile)) {
+            assertEquals(18, in.skip(18));
+            byte[] rest = new byte[21];
+            int read = 0;
+            while (read < rest.length) {
+                int n = in.read(rest, read, rest.length - read);
+                if (n < 0)
+                    break;
+                read += n;
+            }
+            assertEquals("2</int>\n<int>3</int>\n",
+                    new String(Arrays.copyOf(rest, read), StandardCharsets.UTF_8));
+            assertEquals(-1, in.read());
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+import se.kth.castor.pankti.generate.data.SerializedObject;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * These tests verify that objects are read from a profile file
+ * through an index of their offsets, without parsing the whole file
+ */
+public class IndexedProfileReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    static String profile(int i) {
+        return "<some.package.Service uuid=\"99e60398-" + i + "\" timestamp=\"1645987454616\">\n" +
+                "  <name>line one\nline &lt;two&gt;</name>\n" +
+                "  <items>\n    <int>" + i + "</int>\n  </items>\n" +
+                "</some.package.Service>\n";
+    }
+
+    @Test
+    public void testObjectsAreReadByIndex() throws Exception {
+        File profileFile = tempDir.resolve("indexed-receiving.xml").toFile();
+        StringBuilder profiles = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            profiles.append(profile(i));
+        }
+        Files.write(profileFile.toPath(), profiles.toString().getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(IndexedProfileReader.canRead(profileFile));
+        IndexedProfileReader reader = new IndexedProfileReader(profileFile);
+        assertEquals(100, reader.size());
+        assertEquals(profile(42).trim(), reader.getRawXML(42));
+        ObjectProfileElement element = reader.getElement(42);
+        assertEquals("99e6039842", element.getUuid());
+        assertEquals("2022-02-27T18:44:14.616Z", element.getTimestamp().toString());
+        assertTrue(element.getRawXML().startsWith("<some.package.Service>\n  <name>line one\nline &lt;two&gt;"));
+        // The same objects are parsed from the document
+        assertEquals(100, new ObjectXMLParser().parseXMLInFile(profileFile).size());
+    }
+
+    @Test
+    public void testIndexIsBuiltAgainWhenTheFileChanges() throws Exception {
+        File profileFile = tempDir.resolve("appended-params.xml").toFile();
+        Files.write(profileFile.toPath(), profile(0).getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, new IndexedProfileReader(profileFile).size());
+        assertEquals(1, new IndexedProfileReader(profileFile).size());
+        Files.write(profileFile.toPath(), profile(1).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        IndexedProfileReader reader = new IndexedProfileReader(profileFile);
+        assertEquals(2, reader.size());
+        assertEquals("99e603981", reader.getElement(1).getUuid());
+    }
+
+    @Test
+    public void testReleasedObjectsAreReadAgainFromTheFile() throws Exception {
+        File profileFile = tempDir.resolve("released-receiving.xml").toFile();
+        Files.write(profileFile.toPath(), (profile(0) + profile(1) + profile(0)).getBytes(StandardCharsets.UTF_8));
+        IndexedProfileReader reader = new IndexedProfileReader(profileFile);
+        ObjectProfileElement empty = new ObjectProfileElement("");
+        SerializedObject first = new SerializedObject(reader.getElement(0), empty, empty, empty,
+                "uuid0", null, null, null);
+        SerializedObject second = new SerializedObject(reader.getElement(2), empty, empty, empty,
+                "uuid2", null, null, null);
+
+        String receivingObject = first.getReceivingObject();
+        assertSame(receivingObject, first.getReceivingObject());
+        first.release();
+        assertNotSame(receivingObject, first.getReceivingObject());
+        assertEquals(receivingObject, first.getReceivingObject());
+        // Objects with the same content are the same profile
+        assertEquals(first, second);
+        assertNotEquals(first, new SerializedObject(reader.getElement(1), empty, empty, empty,
+                "uuid1", null, null, null));
+    }
+}
@@ -0,0 +1,94 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * These tests verify that nested invocation files are parsed once,
+ * and that their objects are grouped by the uuid of the parent invocation
+ */
+public class NestedProfileIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testNestedObjectsAreGroupedByParentUUID() throws Exception {
+        Path nestedFile = tempDir.resolve("nested-params.xml");
+        Files.write(nestedFile, ("<int uuid=\"aaaa-1\">1</int>\n" +
+                "<int uuid=\"bbbb-2\">2</int>\n" +
+                "<int uuid=\"aaaa-1\">3</int>\n").getBytes(StandardCharsets.UTF_8));
+
+        NestedProfileIndex index = new NestedProfileIndex();
+        Map<String, List<ObjectProfileElement>> elementsByParentUUID =
+                index.getElementsByParentUUID(new ObjectXMLParser(index), nestedFile.toFile());
+        assertEquals(2, elementsByParentUUID.size());
+        List<ObjectProfileElement> elements = elementsByParentUUID.get("aaaa1");
+        assertEquals(2, elements.size());
+        assertEquals("<int>1</int>", elements.get(0).getRawXML());
+        assertEquals("<int>3</int>", elements.get(1).getRawXML());
+
+        // Another parser of the same run gets the index built by the first one
+        assertSame(elementsByParentUUID,
+                index.getElementsByParentUUID(new ObjectXMLParser(index), nestedFile.toFile()));
+        assertEquals(1, index.size());
+    }
+
+    // Test that a file being parsed does not hold up the lookup of another file,
+    // and that threads looking up the same file wait for it to be parsed once
+    @Test
+    public void testFilesAreParsedConcurrently() throws Exception {
+        Path slowFile = tempDir.resolve("nested-slow-params.xml");
+        Path otherFile = tempDir.resolve("nested-other-params.xml");
+        Files.write(slowFile, "<int uuid=\"aaaa-1\">1</int>\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(otherFile, "<int uuid=\"bbbb-2\">2</int>\n".getBytes(StandardCharsets.UTF_8));
+        CountDownLatch slowFileStarted = new CountDownLatch(1);
+        CountDownLatch otherFileParsed = new CountDownLatch(1);
+        AtomicInteger slowFileParses = new AtomicInteger();
+        ObjectXMLParser slowParser = new ObjectXMLParser() {
+            @Override
+            public List<ObjectProfileElement> parseXMLInFile(File inputFile) throws Exception {
+                slowFileParses.incrementAndGet();
+                slowFileStarted.countDown();
+                otherFileParsed.await(10, TimeUnit.SECONDS);
+                return super.parseXMLInFile(inputFile);
+            }
+        };
+
+        NestedProfileIndex index = new NestedProfileIndex();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Map<String, List<ObjectProfileElement>>> slow =
+                    executor.submit(() -> index.getElementsByParentUUID(slowParser, slowFile.toFile()));
+            slowFileStarted.await(10, TimeUnit.SECONDS);
+            Future<Map<String, List<ObjectProfileElement>>> slowAgain =
+                    executor.submit(() -> index.getElementsByParentUUID(slowParser, slowFile.toFile()));
+            assertEquals(1, index.getElementsByParentUUID(new ObjectXMLParser(index), otherFile.toFile()).size());
+            assertFalse(slow.isDone());
+            otherFileParsed.countDown();
+            assertSame(slow.get(10, TimeUnit.SECONDS), slowAgain.get(10, TimeUnit.SECONDS));
+            assertEquals(1, slowFileParses.get());
+            assertEquals(2, index.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -1,12 +1,18 @@
 package se.kth.castor.pankti.generate.parsers;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import se.kth.castor.pankti.generate.data.ObjectProfileElement;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 /**
  * These tests verify that (nested) objects profiles are correctly
@@ -16,6 +22,9 @@ public class ObjectXMLParserTest {
 
     static ObjectXMLParser objectXMLParser = new ObjectXMLParser();
 
+    @TempDir
+    Path tempDir;
+
     @Test
     public void testObjectExtractionFromXMLFile() throws Exception {
         File objectXMLFile = new File("src/test/resources/param-objects.xml");
@@ -33,4 +42,38 @@ public class ObjectXMLParserTest {
         assertEquals("<object-array><int>32</int></object-array>",
                 xmlNestedParams.get(0).getRawXML().replaceAll("\\s", ""));
     }
+
+    @Test
+    public void testObjectExtractionFromBinaryRecords() throws Exception {
+        File recordFile = tempDir.resolve("nested-records-params.xml").toFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(recordFile))) {
+            out.write(ProfileRecordReader.MAGIC);
+            out.writeByte(ProfileRecordReader.SECTION);
+            out.writeByte(ProfileRecordReader.DEFINITION);
+            out.writeInt(0);
+            out.writeUTF("java.io.OutputStream.write_int");
+            out.writeByte(ProfileRecordReader.DEFINITION);
+            out.writeInt(1);
+            out.writeUTF("[Ljava.lang.Object;");
+            for (int i = 0; i < 2; i++) {
+                byte[] payload = ("<object-array>\n  <int>" + i + "</int>\n</object-array>\n")
+                        .getBytes(StandardCharsets.UTF_8);
+                out.writeByte(ProfileRecordReader.OBJECT);
+                out.writeInt(0);
+                out.writeInt(1);
+                out.writeLong(0x99e603987ded4d09L);
+                out.writeLong(i);
+                out.writeLong(1645987454616L);
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+        }
+        List<ObjectProfileElement> recordParams = objectXMLParser.parseXMLInFile(recordFile);
+        assertEquals(2, recordParams.size());
+        assertNull(recordParams.get(0).getUuid());
+        assertEquals("99e603987ded4d091", recordParams.get(1).getUuid());
+        assertEquals("2022-02-27T18:44:14.616Z", recordParams.get(1).getTimestamp().toString());
+        assertEquals("<object-array><int>1</int></object-array>",
+                recordParams.get(1).getRawXML().replaceAll("\\s", ""));
+    }
 }
@@ -0,0 +1,79 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * These tests verify that profile files appended to a journal,
+ * in plain and compressed chunks, are read through its index
+ */
+public class ProfileJournalReaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Appends a chunk to the segment, and returns its line in the index
+    static String writeChunk(DataOutputStream segment, String fileName, String content, boolean compress) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        byte[] stored = bytes;
+        if (compress) {
+            Deflater deflater = new Deflater();
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+            stored = compressed.toByteArray();
+        }
+        String indexLine = fileName + "\t1\t" + segment.size() + "\t" + stored.length + "\t" +
+                bytes.length + "\t" + (compress ? 1 : 0) + "\n";
+        try {
+            segment.writeInt(bytes.length);
+            segment.writeInt(stored.length);
+            segment.write(stored);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return indexLine;
+    }
+
+    @Test
+    public void testFilesAreReadFromTheJournal() throws Exception {
+        Path journalDir = Files.createDirectories(tempDir.resolve(ProfileJournalReader.DIRECTORY_NAME));
+        StringBuilder index = new StringBuilder();
+        try (DataOutputStream segment = new DataOutputStream(new FileOutputStream(
+                journalDir.resolve(ProfileJournalReader.getSegmentFileName(1)).toFile()))) {
+            segment.write(new byte[]{'P', 'K', 'T', 'J'});
+            index.append(writeChunk(segment, "journaled-receiving.xml",
+                    "<int uuid=\"99e60398-1\" timestamp=\"1\">1</int>\n", false));
+            index.append(writeChunk(segment, "journaled-params.xml", "<int>2</int>\n", false));
+            index.append(writeChunk(segment, "journaled-receiving.xml",
+                    "<int uuid=\"99e60398-2\" timestamp=\"2\">3</int>\n", true));
+        }
+        Files.write(journalDir.resolve(ProfileJournalReader.INDEX_FILE_NAME),
+                index.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<ObjectProfileElement> receivingObjects = new ObjectXMLParser()
+                .parseXMLInFile(tempDir.resolve("journaled-receiving.xml").toFile());
+        assertEquals(2, receivingObjects.size());
+        assertEquals("<int>1</int>", receivingObjects.get(0).getRawXML());
+        assertEquals("<int>3</int>", receivingObjects.get(1).getRawXML());
+        assertEquals("99e603982", receivingObjects.get(1).getUuid());
+        assertEquals(1, new ObjectXMLParser()
+                .parseXMLInFile(tempDir.resolve("journaled-params.xml").toFile()).size());
+    }
+}
@@ -0,0 +1,71 @@
+package se.kth.castor.pankti.generate.parsers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.kth.castor.pankti.generate.data.ObjectProfileElement;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * These tests verify that objects are parsed one at a time
+ * from a profile stream, and kept as they were written
+ */
+public class StreamingProfileParserTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testObjectsAreParsedOneAtATime() throws Exception {
+        String profiles = "<object-array parent-uuid=\"99e60398-7ded\" timestamp=\"1645987454616\">\n" +
+                "  <string>line one\nline &lt;two&gt; &quot;quoted&quot; &amp;#x1f;</string>\n" +
+                "</object-array>\n" +
+                "<int>5</int>\n" +
+                "<some.package.Service uuid=\"8539dacd-6d50\"/>\n";
+        try (StreamingProfileParser parser = new StreamingProfileParser(
+                new ByteArrayInputStream(profiles.getBytes(StandardCharsets.UTF_8)))) {
+            ObjectProfileElement element = parser.next();
+            assertEquals("99e603987ded", element.getUuid());
+            assertEquals("2022-02-27T18:44:14.616Z", element.getTimestamp().toString());
+            assertEquals("<object-array>\n  <string>line one\nline &lt;two&gt; &quot;quoted&quot; &#x1f;</string>\n" +
+                    "</object-array>", element.getRawXML());
+            element = parser.next();
+            assertNull(element.getUuid());
+            assertEquals("<int>5</int>", element.getRawXML());
+            element = parser.next();
+            assertEquals("8539dacd6d50", element.getUuid());
+            assertEquals("<some.package.Service/>", element.getRawXML());
+            assertFalse(parser.hasNext());
+        }
+    }
+
+    // Test that objects of a compressed file are not kept, and are read again from their offset once released
+    @Test
+    public void testObjectsOfAFileAreReadAgainFromTheirOffset() throws Exception {
+        File compressedFile = CompressedProfileInputStreamTest.writeCompressedFile(
+                tempDir.resolve("compressed-returned.xml").toFile(),
+                "<int uuid=\"aaaa-1\">1</int>\r\n<string uuid=\"bbbb-2\">é\n  &lt;two&gt;</str",
+                "ing>\n<int uuid=\"cccc-3\">3</int>\n");
+        List<ObjectProfileElement> elements = new ArrayList<>();
+        try (StreamingProfileParser parser = new StreamingProfileParser(compressedFile)) {
+            while (parser.hasNext()) {
+                elements.add(parser.next());
+            }
+        }
+        assertEquals(3, elements.size());
+        assertEquals("bbbb2", elements.get(1).getUuid());
+        for (int i = 0; i < 2; i++) {
+            assertEquals("<int>1</int>", elements.get(0).getRawXML());
+            assertEquals("<string>é\n  &lt;two&gt;</string>", elements.get(1).getRawXML());
+            assertEquals("<int>3</int>", elements.get(2).getRawXML());
+            elements.forEach(ObjectProfileElement::releaseRawXML);
+        }
+    }
+}
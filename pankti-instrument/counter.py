@@ -174,9 +174,8 @@ def update_glowroot_plugin_json(aspects):
       aspect_lines += "    \"" + aspect_path + whole + "\""
     else:
       aspect_lines += "    \"" + aspect_path + whole + "Nested" + frac + "\""
-    if i < len(aspects) - 1:
-      aspect_lines += ","
-    aspect_lines += "\n"
+    # The list always ends with InvocationContextAspect
+    aspect_lines += ",\n"
   with open(plugin_json_path, "r+") as json_file:
     for num, line in enumerate(json_file, 1):
       if "aspects" in line:
@@ -80,9 +80,8 @@ def update_glowroot_plugin_json(aspect_count):
   aspect_lines = ""
   for i in range(1, aspect_count + 1):
     aspect_lines += "    \"" + aspect_path + str(i) + "\""
-    if i < aspect_count:
-      aspect_lines += ","
-    aspect_lines += "\n"
+    # The list always ends with InvocationContextAspect
+    aspect_lines += ",\n"
   with open(plugin_json_path, "r") as json_file:
     for num, line in enumerate(json_file, 1):
       if "aspects" in line:
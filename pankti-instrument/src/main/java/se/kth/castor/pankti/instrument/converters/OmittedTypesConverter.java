@@ -0,0 +1,44 @@
+package se.kth.castor.pankti.instrument.converters;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A single converter for all the types that XStream could not convert
+ * during a run; objects of these types are written as empty elements.
+ * Types are added to it, instead of registering one converter per type.
+ */
+public class OmittedTypesConverter implements Converter {
+    private final Set<String> omittedTypeNames = ConcurrentHashMap.newKeySet();
+
+    public void omit(String className) {
+        if (className != null && !className.isEmpty()) {
+            omittedTypeNames.add(className);
+        }
+    }
+
+    @Override
+    public void marshal(Object o, HierarchicalStreamWriter hierarchicalStreamWriter, MarshallingContext marshallingContext) {
+    }
+
+    @Override
+    public Object unmarshal(HierarchicalStreamReader hierarchicalStreamReader, UnmarshallingContext unmarshallingContext) {
+        return null;
+    }
+
+    @Override
+    public boolean canConvert(Class aClass) {
+        if (aClass == null || omittedTypeNames.isEmpty())
+            return false;
+        // Exception messages use the binary name, e.g., some.Outer$Inner
+        String canonicalName = aClass.getCanonicalName();
+        return omittedTypeNames.contains(aClass.getName())
+                || (canonicalName != null && omittedTypeNames.contains(canonicalName));
+    }
+}
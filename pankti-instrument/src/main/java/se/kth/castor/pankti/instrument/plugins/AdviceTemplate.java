@@ -1,12 +1,15 @@
 package se.kth.castor.pankti.instrument.plugins;
 
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.core.ClassLoaderReference;
+import com.thoughtworks.xstream.core.util.CompositeClassLoader;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
 import se.kth.castor.pankti.instrument.converters.*;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,44 +23,84 @@ public interface AdviceTemplate {
     public static final String PROPERTY_FILE_PATH = "/tmp/pankti-object-data/paths.properties";
     public static final int FILE_NAME_LENGTH = 50;
 
-    XStream xStream = new XStream();
+    String STORAGE_DIR = "/tmp/pankti-object-data/";
 
-    static void setUpXStream() {
+    // Types that could not be converted during the run, registered before xStream is set up
+    OmittedTypesConverter omittedTypes = new OmittedTypesConverter();
+
+    XStream xStream = setUpXStream();
+
+    ObjectSerializer serializer = new ObjectSerializer(xStream, 1 << 20);
+
+    CaptureBudget captureBudget = new CaptureBudget(
+            CaptureConfig.getLong(CaptureConfig.CAPTURE_BUDGET_TOTAL_MB, 2048),
+            CaptureConfig.getLong(CaptureConfig.CAPTURE_BUDGET_METHOD_MB, 200));
+
+    ProfileFileRegistry profileFiles = new ProfileFileRegistry(
+            CaptureConfig.getInt(CaptureConfig.CAPTURE_BUFFER_SIZE, 8192),
+            CaptureConfig.getLong(CaptureConfig.CAPTURE_FLUSH_INTERVAL_MILLIS, 1000),
+            CaptureConfig.getInt(CaptureConfig.CAPTURE_MAX_OPEN_FILES, 512),
+            captureBudget,
+            CaptureConfig.isCompressedCapture(),
+            CaptureConfig.isJournalLayout() ? new ProfileJournal(
+                    STORAGE_DIR + ProfileJournal.DIRECTORY_NAME,
+                    CaptureConfig.getLong(CaptureConfig.CAPTURE_JOURNAL_SEGMENT_MB, 256) << 20,
+                    CaptureConfig.isCompressedCapture()) : null);
+
+    ProfileWriter profileWriter = new ProfileWriter(
+            profileFiles,
+            CaptureConfig.isAsyncCapture(),
+            CaptureConfig.getInt(CaptureConfig.CAPTURE_QUEUE_CAPACITY, 10000),
+            CaptureConfig.getBoolean(CaptureConfig.CAPTURE_DROP_ON_FULL, true),
+            CaptureConfig.isBinaryFormat() ? new ProfileRecords(profileFiles) : null,
+            CaptureConfig.isRingCapture() ?
+                    ProfileRingBuffer.ofSizeMB(CaptureConfig.getLong(CaptureConfig.CAPTURE_RING_SIZE_MB, 64)) : null);
+
+    BlobStore blobStore = new BlobStore(
+            profileFiles,
+            STORAGE_DIR + BlobStore.FILE_NAME,
+            CaptureConfig.getBoolean(CaptureConfig.CAPTURE_DEDUP, false),
+            CaptureConfig.getInt(CaptureConfig.CAPTURE_DEDUP_MIN_SIZE, 1024),
+            captureBudget);
+
+    InvokedMethodsFile invokedMethods = new InvokedMethodsFile(STORAGE_DIR + "invoked-methods.csv");
+
+    // Converters are registered once, when the interface is initialized
+    static XStream setUpXStream() {
+        CaptureLimits captureLimits = CaptureLimits.fromConfig();
+        ClassValueConverterLookup converterLookup = new ClassValueConverterLookup();
+        XStream xStream = new XStream(null, new XppDriver(),
+                new ClassLoaderReference(new CompositeClassLoader()), null, converterLookup, converterLookup) {
+            @Override
+            protected MapperWrapper wrapMapper(MapperWrapper next) {
+                return captureLimits.wrapMapper(next);
+            }
+        };
+        xStream.setMarshallingStrategy(captureLimits.marshallingStrategy());
         xStream.registerConverter(new ClassLoaderConverter());
         xStream.registerConverter(new FileCleanableConverter());
         xStream.registerConverter(new InflaterConverter());
         xStream.registerConverter(new CleanerImplConverter());
         xStream.registerConverter(new ThreadConverter());
         xStream.registerConverter(new ThreadGroupConverter());
+        xStream.registerConverter(omittedTypes);
+        converterLookup.freeze();
+        return xStream;
     }
 
-    static String setUpInvokedMethodsCSVFile(String storageDir) throws Exception {
-        String[] HEADERS = {"visibility", "parent-FQN", "method-name", "param-list", "return-type",
-                "param-signature", "has-mockable-invocations", "nested-invocations"};
-
-        File invokedMethodsCSVFile = new File(storageDir + "invoked-methods.csv");
-        if (!invokedMethodsCSVFile.exists()) {
-            FileWriter myWriter = new FileWriter(invokedMethodsCSVFile);
-            myWriter.write(String.join(",", HEADERS));
-            myWriter.close();
-        }
-        return invokedMethodsCSVFile.getAbsolutePath();
-    }
-
+    // Called once per aspect, the first time its method is invoked
     static Map<Type, String> setUpFiles(String path) {
         Map<Type, String> fileNameMap = new HashMap<>();
         try {
-            String storageDir = "/tmp/pankti-object-data/";
-            Files.createDirectories(Paths.get(storageDir));
-            String invokedMethodsCSVFilePath = setUpInvokedMethodsCSVFile(storageDir);
-            String filePath = storageDir + getUniqueCode(path);
+            Files.createDirectories(Paths.get(STORAGE_DIR));
+            invokedMethods.setUp();
+            String filePath = STORAGE_DIR + getUniqueCode(path);
             fileNameMap.put(Type.RECEIVING_PRE, filePath + "-receiving.xml");
             fileNameMap.put(Type.RECEIVING_POST, filePath + "-receiving-post.xml");
             fileNameMap.put(Type.PARAMS, filePath + "-params.xml");
             fileNameMap.put(Type.RETURNED, filePath + "-returned.xml");
-            fileNameMap.put(Type.INVOCATION_COUNT, filePath + "-count.txt");
             fileNameMap.put(Type.OBJECT_PROFILE_SIZE, filePath + "-object-profile-sizes.txt");
-            fileNameMap.put(Type.INVOKED_METHODS, invokedMethodsCSVFilePath);
+            fileNameMap.put(Type.INVOKED_METHODS, invokedMethods.getFilePath());
             return fileNameMap;
         } catch (Exception e) {
             e.printStackTrace();
@@ -67,14 +110,7 @@ public interface AdviceTemplate {
     }
 
     static String getUniqueCode(String path) throws IOException {
-        Properties properties = loadProperties();
-        String uniqueCode = properties.getProperty(path);
-        if (uniqueCode == null) {
-            uniqueCode = generateShortFileName(FILE_NAME_LENGTH);
-            properties.setProperty(path, uniqueCode);
-            saveProperties(properties);
-        }
-        return uniqueCode;
+        return ProfileFileNames.getUniqueCode(path);
     }
 
     static Properties loadProperties() throws IOException {
@@ -0,0 +1,95 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class stores serialized objects by the hash of their content, so that
+ * an object captured again and again (e.g., a long-lived receiving object) is
+ * written once. The profile of each invocation then only holds a reference,
+ * an element such as <pankti-blob-ref hash="..."/>, that pankti-generate
+ * resolves when it needs the object. The blob file starts with MAGIC,
+ * followed by blobs: the SHA-1 hash (20 bytes), int length, and the XML in UTF-8.
+ * Objects are deduplicated within a run, blobs stored again by a later run
+ * are ignored by the reader. The blob file counts towards the total capture budget.
+ */
+public class BlobStore {
+    public static final String FILE_NAME = "object-blobs.bin";
+    public static final String REFERENCE_ELEMENT = "pankti-blob-ref";
+    public static final byte[] MAGIC = {'P', 'K', 'T', 'B'};
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private final ProfileFileRegistry profileFiles;
+    private final String filePath;
+    private final boolean enabled;
+    private final int minSize;
+    private final Set<String> storedHashes = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(BlobStore::newDigest);
+
+    public BlobStore(ProfileFileRegistry profileFiles, String filePath, boolean enabled, int minSize,
+                     CaptureBudget captureBudget) {
+        this.profileFiles = profileFiles;
+        this.filePath = filePath;
+        this.enabled = enabled;
+        this.minSize = minSize;
+        if (enabled && captureBudget != null) {
+            captureBudget.trackSharedFile(filePath);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Returns a reference to the stored object, or the object itself if it is too small to be worth it
+    public String deduplicate(String xml) {
+        if (!enabled || xml == null || xml.length() < minSize)
+            return xml;
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = digests.get().digest(bytes);
+        String hexHash = toHex(hash);
+        if (storedHashes.add(hexHash)) {
+            store(hash, bytes);
+        }
+        return "<" + REFERENCE_ELEMENT + " hash=\"" + hexHash + "\"/>";
+    }
+
+    // Synchronized, so that MAGIC is written once, before the first blob
+    private synchronized void store(byte[] hash, byte[] bytes) {
+        try {
+            ByteArrayOutputStream blob = new ByteArrayOutputStream(bytes.length + hash.length + 8);
+            DataOutputStream out = new DataOutputStream(blob);
+            if (profileFiles.size(filePath) == 0) {
+                out.write(MAGIC);
+            }
+            out.write(hash);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            profileFiles.append(filePath, blob.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+}
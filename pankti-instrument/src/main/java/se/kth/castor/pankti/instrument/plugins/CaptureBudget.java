@@ -0,0 +1,141 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.Logger;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * This class keeps track of the bytes of object profiles written by all
+ * aspects, as they are appended to files. Capture stops for a method once
+ * its object files reach the per-method quota, and for all methods once
+ * all object files together reach the total quota. Files shared by all
+ * methods, such as the blob file, count towards the total quota only.
+ */
+public class CaptureBudget {
+    private static final Logger logger = Logger.getLogger(CaptureBudget.class);
+    private static final long MB = 1024 * 1024;
+    private final long totalLimitBytes;
+    private final long methodLimitBytes;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final Map<String, MethodBudget> methodBudgets = new ConcurrentHashMap<>();
+    private final Map<String, MethodBudget> methodBudgetsByFile = new ConcurrentHashMap<>();
+    private final Set<String> sharedFiles = ConcurrentHashMap.newKeySet();
+    private volatile boolean isTotalLimitReached;
+    // Sizes of files written by earlier runs, read from the journal if there is one
+    private volatile ToLongFunction<String> storedSizes = filePath -> new File(filePath).length();
+
+    public CaptureBudget(long totalLimitMB, long methodLimitMB) {
+        this.totalLimitBytes = totalLimitMB * MB;
+        this.methodLimitBytes = methodLimitMB * MB;
+        Housekeeper.onShutdown(Housekeeper.PHASE_REPORT, this::printUsage);
+    }
+
+    public final class MethodBudget {
+        private final String methodKey;
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile boolean isMethodLimitReached;
+
+        MethodBudget(String methodKey) {
+            this.methodKey = methodKey;
+        }
+
+        // Files written by earlier runs are counted once, when they are tracked
+        public void trackFiles(String... filePaths) {
+            for (String filePath : filePaths) {
+                if (methodBudgetsByFile.putIfAbsent(filePath, this) == null) {
+                    record(this, storedSizes.applyAsLong(filePath));
+                }
+            }
+        }
+
+        public boolean isWithinLimits() {
+            return !isMethodLimitReached && !isTotalLimitReached;
+        }
+
+        public long getUsedBytes() {
+            return bytes.get();
+        }
+    }
+
+    void measureStoredSizesWith(ToLongFunction<String> storedSizes) {
+        this.storedSizes = storedSizes;
+    }
+
+    public MethodBudget forMethod(String methodKey) {
+        return methodBudgets.computeIfAbsent(methodKey, MethodBudget::new);
+    }
+
+    // A file shared by all methods counts towards the total quota only
+    public void trackSharedFile(String filePath) {
+        if (sharedFiles.add(filePath)) {
+            recordTotal(storedSizes.applyAsLong(filePath));
+        }
+    }
+
+    // Called for every append to a profile file, files not tracked by a method or shared are ignored
+    public void record(String filePath, long length) {
+        MethodBudget methodBudget = methodBudgetsByFile.get(filePath);
+        if (methodBudget != null) {
+            record(methodBudget, length);
+        } else if (sharedFiles.contains(filePath)) {
+            recordTotal(length);
+        }
+    }
+
+    private void record(MethodBudget methodBudget, long length) {
+        if (length <= 0)
+            return;
+        if (methodBudget.bytes.addAndGet(length) >= methodLimitBytes && !methodBudget.isMethodLimitReached) {
+            methodBudget.isMethodLimitReached = true;
+            logger.warn("Object profiles for " + methodBudget.methodKey + " reached "
+                    + methodLimitBytes / MB + " MB, capture stopped for this method");
+        }
+        recordTotal(length);
+    }
+
+    private void recordTotal(long length) {
+        if (length <= 0)
+            return;
+        if (totalBytes.addAndGet(length) >= totalLimitBytes && !isTotalLimitReached) {
+            isTotalLimitReached = true;
+            logger.warn("Object profiles reached " + totalLimitBytes / MB
+                    + " MB in total, capture stopped");
+        }
+    }
+
+    public long getUsedBytes() {
+        return totalBytes.get();
+    }
+
+    public long getTotalLimitBytes() {
+        return totalLimitBytes;
+    }
+
+    public long getMethodLimitBytes() {
+        return methodLimitBytes;
+    }
+
+    public boolean isTotalLimitReached() {
+        return isTotalLimitReached;
+    }
+
+    private void printUsage() {
+        if (totalBytes.get() > 0) {
+            logger.info("Object profiles use " + totalBytes.get() / MB + " MB of "
+                    + totalLimitBytes / MB + " MB");
+        }
+    }
+
+    // Used bytes of each method, by method
+    public Map<String, Long> getUsedBytesByMethod() {
+        Map<String, Long> usedBytes = new TreeMap<>();
+        methodBudgets.forEach((methodKey, methodBudget) -> usedBytes.put(methodKey, methodBudget.getUsedBytes()));
+        return usedBytes;
+    }
+}
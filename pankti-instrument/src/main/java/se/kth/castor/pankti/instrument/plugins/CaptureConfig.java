@@ -0,0 +1,115 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * This class holds the configuration of object profile capture.
+ * Values are read once from /tmp/pankti-object-data/pankti.properties
+ * (or the file given with -Dpankti.config), and can be overridden
+ * with system properties prefixed with "pankti.", e.g.
+ * -Dpankti.capture.mode=async
+ */
+public final class CaptureConfig {
+    public static final String CONFIG_FILE_PATH = "/tmp/pankti-object-data/pankti.properties";
+    private static final String SYSTEM_PROPERTY_PREFIX = "pankti.";
+    private static final Properties properties = loadProperties();
+
+    public static final String CAPTURE_MODE = "capture.mode";
+    public static final String CAPTURE_RING_SIZE_MB = "capture.ring.size.mb";
+    public static final String CAPTURE_QUEUE_CAPACITY = "capture.queue.capacity";
+    public static final String CAPTURE_DROP_ON_FULL = "capture.drop.on.full";
+    public static final String CAPTURE_BUFFER_SIZE = "capture.buffer.size";
+    public static final String CAPTURE_FLUSH_INTERVAL_MILLIS = "capture.flush.interval.millis";
+    public static final String CAPTURE_MAX_OPEN_FILES = "capture.max.open.files";
+    public static final String CAPTURE_FORMAT = "capture.format";
+    public static final String CAPTURE_COMPRESSION = "capture.compression";
+    public static final String CAPTURE_LAYOUT = "capture.layout";
+    public static final String CAPTURE_JOURNAL_SEGMENT_MB = "capture.journal.segment.mb";
+    public static final String CAPTURE_DEDUP = "capture.dedup";
+    public static final String CAPTURE_DEDUP_MIN_SIZE = "capture.dedup.min.size";
+    public static final String CAPTURE_MAX_DEPTH = "capture.max.depth";
+    public static final String CAPTURE_MAX_COLLECTION_ELEMENTS = "capture.max.collection.elements";
+    public static final String CAPTURE_MAX_STRING_LENGTH = "capture.max.string.length";
+    public static final String CAPTURE_EXCLUDE_PACKAGES = "capture.exclude.packages";
+    public static final String CAPTURE_EXCLUDE_FIELDS = "capture.exclude.fields";
+    public static final String COUNT_SNAPSHOT_INTERVAL_MILLIS = "count.snapshot.interval.millis";
+    public static final String CAPTURE_BUDGET_TOTAL_MB = "capture.budget.total.mb";
+    public static final String CAPTURE_BUDGET_METHOD_MB = "capture.budget.method.mb";
+    public static final String SAMPLING_TARGET = "sampling.target";
+    public static final String SAMPLING_NESTED = "sampling.nested";
+    public static final String SAMPLING_COUNTER = "sampling.counter";
+    public static final String SAMPLING_METHOD_PREFIX = "sampling.method.";
+
+    private CaptureConfig() {
+    }
+
+    private static Properties loadProperties() {
+        Properties properties = new Properties();
+        File file = new File(System.getProperty(SYSTEM_PROPERTY_PREFIX + "config", CONFIG_FILE_PATH));
+        if (file.exists()) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                properties.load(inputStream);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return properties;
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + key);
+        if (value == null) {
+            value = properties.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+
+    // "sync" (default) writes on the application thread, "async" queues serialized profiles for a writer thread
+    public static boolean isAsyncCapture() {
+        return getString(CAPTURE_MODE, "sync").equalsIgnoreCase("async");
+    }
+
+    // "none" (default) writes files as they are, "deflate" in compressed blocks
+    public static boolean isCompressedCapture() {
+        return getString(CAPTURE_COMPRESSION, "none").equalsIgnoreCase("deflate");
+    }
+
+    // "sync" (default), "async" or "ring", which copies serialized profiles to an off-heap ring buffer
+    public static boolean isRingCapture() {
+        return getString(CAPTURE_MODE, "sync").equalsIgnoreCase("ring");
+    }
+
+    // "files" (default) writes one file per profile, "journal" appends chunks to shared segments
+    public static boolean isJournalLayout() {
+        return getString(CAPTURE_LAYOUT, "files").equalsIgnoreCase("journal");
+    }
+
+    // "xml" (default) writes XStream XML, "binary" writes length-prefixed records
+    public static boolean isBinaryFormat() {
+        return getString(CAPTURE_FORMAT, "xml").equalsIgnoreCase("binary");
+    }
+}
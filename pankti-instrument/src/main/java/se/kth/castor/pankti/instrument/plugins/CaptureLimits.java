@@ -0,0 +1,193 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.converters.collections.ArrayConverter;
+import com.thoughtworks.xstream.converters.collections.CollectionConverter;
+import com.thoughtworks.xstream.converters.collections.MapConverter;
+import com.thoughtworks.xstream.core.ReferenceByXPathMarshaller;
+import com.thoughtworks.xstream.core.ReferenceByXPathMarshallingStrategy;
+import com.thoughtworks.xstream.core.TreeMarshaller;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This class bounds how much of an object graph is serialized on each capture.
+ * Objects nested deeper than the maximum depth, and objects of excluded packages,
+ * are written as empty elements, except for immutable values; collections, maps and arrays are cut after the
+ * maximum number of elements, and strings after the maximum length. These elements
+ * are marked with a TRUNCATED attribute, with the reason or the original size.
+ * Excluded fields, given as "fully.qualified.Class.field" or "*.field",
+ * are not serialized at all. A limit of 0 means no limit.
+ */
+public class CaptureLimits {
+    public static final String TRUNCATED = "pankti-truncated";
+    private final int maxDepth;
+    private final int maxCollectionElements;
+    private final int maxStringLength;
+    private final List<String> excludedPackages;
+    private final Set<String> excludedFields;
+
+    public CaptureLimits(int maxDepth, int maxCollectionElements, int maxStringLength,
+                         List<String> excludedPackages, Set<String> excludedFields) {
+        this.maxDepth = maxDepth;
+        this.maxCollectionElements = maxCollectionElements;
+        this.maxStringLength = maxStringLength;
+        this.excludedPackages = excludedPackages;
+        this.excludedFields = excludedFields;
+    }
+
+    public static CaptureLimits fromConfig() {
+        return new CaptureLimits(
+                CaptureConfig.getInt(CaptureConfig.CAPTURE_MAX_DEPTH, 0),
+                CaptureConfig.getInt(CaptureConfig.CAPTURE_MAX_COLLECTION_ELEMENTS, 0),
+                CaptureConfig.getInt(CaptureConfig.CAPTURE_MAX_STRING_LENGTH, 0),
+                splitList(CaptureConfig.getString(CaptureConfig.CAPTURE_EXCLUDE_PACKAGES, "")),
+                new HashSet<>(splitList(CaptureConfig.getString(CaptureConfig.CAPTURE_EXCLUDE_FIELDS, ""))));
+    }
+
+    static List<String> splitList(String list) {
+        List<String> values = new ArrayList<>();
+        for (String value : list.split(",")) {
+            if (!value.trim().isEmpty()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    public boolean isExcludedPackage(Class<?> type) {
+        String typeName = type.getName();
+        for (String excludedPackage : excludedPackages) {
+            if (typeName.startsWith(excludedPackage)
+                    && (typeName.length() == excludedPackage.length() || typeName.charAt(excludedPackage.length()) == '.'
+                    || typeName.charAt(excludedPackage.length()) == '$')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isExcludedField(Class<?> definedIn, String fieldName) {
+        return !excludedFields.isEmpty() && definedIn != null &&
+                (excludedFields.contains("*." + fieldName) || excludedFields.contains(definedIn.getName() + "." + fieldName));
+    }
+
+    // Used when XStream is created, to leave out excluded fields
+    public MapperWrapper wrapMapper(MapperWrapper next) {
+        return new MapperWrapper(next) {
+            @Override
+            public boolean shouldSerializeMember(Class definedIn, String fieldName) {
+                return !isExcludedField(definedIn, fieldName) && super.shouldSerializeMember(definedIn, fieldName);
+            }
+        };
+    }
+
+    public ReferenceByXPathMarshallingStrategy marshallingStrategy() {
+        return new ReferenceByXPathMarshallingStrategy(ReferenceByXPathMarshallingStrategy.RELATIVE) {
+            @Override
+            protected TreeMarshaller createMarshallingContext(HierarchicalStreamWriter writer,
+                                                              ConverterLookup converterLookup, Mapper mapper) {
+                return new LimitedMarshaller(writer, converterLookup, mapper);
+            }
+        };
+    }
+
+    // A marshaller is created for each serialized object, so it can keep track of the depth
+    private final class LimitedMarshaller extends ReferenceByXPathMarshaller {
+        private int depth = -1;
+
+        LimitedMarshaller(HierarchicalStreamWriter writer, ConverterLookup converterLookup, Mapper mapper) {
+            super(writer, converterLookup, mapper, ReferenceByXPathMarshallingStrategy.RELATIVE);
+        }
+
+        @Override
+        public void convertAnother(Object item, Converter converter) {
+            // Immutable values (e.g., strings, numbers, enums) are leaves, they are kept
+            if (item != null && depth >= 0 && !getMapper().isImmutableValueType(item.getClass())) {
+                if (maxDepth > 0 && depth >= maxDepth) {
+                    writer.addAttribute(TRUNCATED, "depth");
+                    return;
+                }
+                if (isExcludedPackage(item.getClass())) {
+                    writer.addAttribute(TRUNCATED, "excluded");
+                    return;
+                }
+            }
+            // Fields are usually converted without a local converter, collections are recognized by their converter
+            if (item != null && converter == null) {
+                converter = converterLookup.lookupConverterForType(item.getClass());
+            }
+            depth++;
+            try {
+                super.convertAnother(truncate(item, converter), converter);
+            } finally {
+                depth--;
+            }
+        }
+
+        // Returns the item cut to the limits, as a copy that the same converter can convert
+        @SuppressWarnings("unchecked")
+        private Object truncate(Object item, Converter converter) {
+            if (item == null)
+                return null;
+            if (item instanceof String && maxStringLength > 0 && ((String) item).length() > maxStringLength) {
+                writer.addAttribute(TRUNCATED, String.valueOf(((String) item).length()));
+                return ((String) item).substring(0, maxStringLength);
+            }
+            if (maxCollectionElements <= 0)
+                return item;
+            if (item instanceof Collection && converter instanceof CollectionConverter
+                    && ((Collection<?>) item).size() > maxCollectionElements) {
+                // Sorted sets keep their comparator, which their converter writes first
+                Collection<Object> elements = item instanceof SortedSet ?
+                        new TreeSet<>(((SortedSet<Object>) item).comparator()) : new ArrayList<>(maxCollectionElements);
+                if (!converter.canConvert(elements.getClass()))
+                    return item;
+                writer.addAttribute(TRUNCATED, String.valueOf(((Collection<?>) item).size()));
+                Iterator<?> iterator = ((Collection<?>) item).iterator();
+                while (elements.size() < maxCollectionElements && iterator.hasNext()) {
+                    elements.add(iterator.next());
+                }
+                return elements;
+            }
+            if (item instanceof Map && converter instanceof MapConverter
+                    && ((Map<?, ?>) item).size() > maxCollectionElements) {
+                Map<Object, Object> entries = item instanceof SortedMap ?
+                        new TreeMap<>(((SortedMap<Object, ?>) item).comparator()) : new LinkedHashMap<>();
+                if (!converter.canConvert(entries.getClass()))
+                    return item;
+                writer.addAttribute(TRUNCATED, String.valueOf(((Map<?, ?>) item).size()));
+                Iterator<? extends Map.Entry<?, ?>> iterator = ((Map<?, ?>) item).entrySet().iterator();
+                while (entries.size() < maxCollectionElements && iterator.hasNext()) {
+                    Map.Entry<?, ?> entry = iterator.next();
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+                return entries;
+            }
+            if (item.getClass().isArray() && converter instanceof ArrayConverter
+                    && Array.getLength(item) > maxCollectionElements) {
+                writer.addAttribute(TRUNCATED, String.valueOf(Array.getLength(item)));
+                Object elements = Array.newInstance(item.getClass().getComponentType(), maxCollectionElements);
+                System.arraycopy(item, 0, elements, 0, maxCollectionElements);
+                return elements;
+            }
+            return item;
+        }
+    }
+}
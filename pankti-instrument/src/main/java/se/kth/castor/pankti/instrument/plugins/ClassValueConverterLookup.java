@@ -0,0 +1,55 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.ConverterLookup;
+import com.thoughtworks.xstream.converters.ConverterRegistry;
+import com.thoughtworks.xstream.core.Caching;
+import com.thoughtworks.xstream.core.DefaultConverterLookup;
+
+/**
+ * This class indexes XStream converters by type. The converter of a type is
+ * found by scanning the registered converters once, then kept in a ClassValue,
+ * so that later captures of the same type read it without locking or
+ * comparing names. Registering a converter starts a new index, until the
+ * lookup is frozen, once XStream is set up.
+ */
+public class ClassValueConverterLookup implements ConverterLookup, ConverterRegistry, Caching {
+    private final DefaultConverterLookup converters = new DefaultConverterLookup();
+    private volatile ClassValue<Converter> convertersByType = newIndex();
+    private volatile boolean isFrozen;
+
+    private ClassValue<Converter> newIndex() {
+        return new ClassValue<Converter>() {
+            @Override
+            protected Converter computeValue(Class<?> type) {
+                // Throws if no converter can convert the type, which is not kept
+                return converters.lookupConverterForType(type);
+            }
+        };
+    }
+
+    @Override
+    public Converter lookupConverterForType(Class type) {
+        if (type == null)
+            return converters.lookupConverterForType(null);
+        return convertersByType.get(type);
+    }
+
+    @Override
+    public void registerConverter(Converter converter, int priority) {
+        if (isFrozen)
+            throw new IllegalStateException("Converters are registered before objects are captured");
+        converters.registerConverter(converter, priority);
+        flushCache();
+    }
+
+    public void freeze() {
+        isFrozen = true;
+    }
+
+    @Override
+    public void flushCache() {
+        converters.flushCache();
+        convertersByType = newIndex();
+    }
+}
@@ -1,25 +1,17 @@
 package se.kth.castor.pankti.instrument.plugins;
 
-import com.thoughtworks.xstream.converters.Converter;
-import com.thoughtworks.xstream.converters.MarshallingContext;
-import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.io.HierarchicalStreamReader;
-import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import org.glowroot.agent.plugin.api.*;
 import org.glowroot.agent.plugin.api.weaving.*;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class CounterAspect0Nested0 {
-    private static int INVOCATION_COUNT;
-    private static boolean fileSizeWithinLimits = true;
+    private static final LongAdder INVOCATION_COUNT = InvocationCounters.counterFor("nested-" + TargetMethodAdvice.methodFQN);
 
     @Pointcut(className = "fully.qualified.path.to.class",
             methodName = "methodToInstrument",
@@ -32,8 +24,6 @@ public class CounterAspect0Nested0 {
         private static long profileSizePre;
         private static String paramObjectsFilePath;
         private static String returnedObjectFilePath;
-        private static String invocationCountFilePath;
-        private static String invokedMethodsCSVFilePath;
         private static String objectProfileSizeFilePath;
         private static String libraryInvocationFilePath;
         private static String parentInvocationClassName = CounterAspect0.TargetMethodAdvice.class.getAnnotation(Pointcut.class).className();
@@ -43,11 +33,11 @@ public class CounterAspect0Nested0 {
         private static final String postfix = methodParamTypesString.isEmpty() ? "" : "_" + methodParamTypesString;
         private static final String methodFQN = TargetMethodAdvice.class.getAnnotation(Pointcut.class).className() + "."
                 + TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodName() + postfix;
-        static UUID invocationUuid = null;
-        static long invocationTimestamp;
+        private static final SamplingPolicy samplingPolicy =
+                SamplingPolicy.forMethod("nested-" + methodFQN, CaptureConfig.SAMPLING_NESTED, "first:10");
         private static final boolean invocationOnLibraryMethod = false;
-        private static final String invocationString = String.format("Invocation count for %s: ", methodFQN.replaceAll("\\[\\]", "%5b%5d"));
-        private static File[] allObjectFiles;
+        private static final CaptureBudget.MethodBudget methodBudget = captureBudget.forMethod("nested-" + methodFQN);
+        private static volatile boolean isSetUp;
 
         private static String sanitizeMethodFQN() {
             return methodFQN.replaceAll("\\[\\]", "%5b%5d")
@@ -58,51 +48,32 @@ public class CounterAspect0Nested0 {
         private static synchronized void gatherDataForInvocationOfLibraryMethod() {
             setup();
 //            logger.info(String.format("Writing invocation %s to file %s",
-//                    INVOCATION_COUNT, libraryInvocationFilePath));
-            INVOCATION_COUNT++;
-            invocationTimestamp = Instant.now().toEpochMilli();
-            try {
-                FileWriter objectFileWriter = new FileWriter(libraryInvocationFilePath, true);
-                String toWrite = String.format("<%s parent=\"%s.%s\" parent-uuid=\"%s\" timestamp=\"%s\"/>",
-                        sanitizeMethodFQN(),
-                        parentInvocationClassName, parentInvocationMethodName,
-                        invocationUuid, invocationTimestamp);
-                objectFileWriter.write(toWrite + "\n");
-                objectFileWriter.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+//                    INVOCATION_COUNT.sum(), libraryInvocationFilePath));
+            INVOCATION_COUNT.increment();
+            long parentInvocationId = InvocationContext.getInvocationId(CounterAspect0.TargetMethodAdvice.class);
+            long invocationTimestamp = Instant.now().toEpochMilli();
+            String toWrite = String.format("<%s parent=\"%s.%s\" parent-uuid=\"%s\" timestamp=\"%s\"/>",
+                    sanitizeMethodFQN(),
+                    parentInvocationClassName, parentInvocationMethodName,
+                    InvocationIds.toString(parentInvocationId), invocationTimestamp);
+            profileFiles.append(libraryInvocationFilePath, toWrite + "\n");
         }
 
+        // Files are set up the first time the method is invoked, not on every invocation
         private static void setup() {
-            AdviceTemplate.setUpXStream();
-            Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles("nested-" + methodFQN);
-            paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
-            returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
-            invocationCountFilePath = fileNameMap.get(Type.INVOCATION_COUNT);
-            invokedMethodsCSVFilePath = fileNameMap.get(Type.INVOKED_METHODS);
-            objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
-            allObjectFiles = new File[]{
-                    new File(returnedObjectFilePath),
-                    new File(paramObjectsFilePath)};
-            checkFileSizeLimit();
-        }
-
-        public static long getObjectProfileSize() {
-            long objectProfileSize = 0L;
-            for (File file : allObjectFiles) {
-                objectProfileSize += file.length();
-            }
-            return objectProfileSize;
-        }
-
-        // Limit object XML files to ~200 MB
-        public static void checkFileSizeLimit() {
-            for (File file : allObjectFiles) {
-                if (file.exists() && (file.length() / (1024 * 1024) >= 200)) {
-                    fileSizeWithinLimits = false;
-                    break;
-                }
+            if (isSetUp)
+                return;
+            synchronized (TargetMethodAdvice.class) {
+                if (isSetUp)
+                    return;
+                Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles("nested-" + methodFQN);
+                paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
+                returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
+                objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
+                methodBudget.trackFiles(
+                        returnedObjectFilePath,
+                        paramObjectsFilePath);
+                isSetUp = true;
             }
         }
 
@@ -113,7 +84,7 @@ public class CounterAspect0Nested0 {
 
             if (paramTypes.length == 0 ||
                     Arrays.stream(paramTypes).allMatch(primitives::contains)) {
-                return xStream.toXML(objectToWrite);
+                return serializer.toXML(objectToWrite);
             }
 
             Object[] paramObjectArray = (Object[]) objectToWrite;
@@ -129,7 +100,7 @@ public class CounterAspect0Nested0 {
                             .append("/>").append("\n");
                 } else {
                     serializedParams.append("  ")
-                            .append(xStream.toXML(paramObjectArray[i]))
+                            .append(serializer.toXML(paramObjectArray[i]))
                             .append("\n");
                 }
             }
@@ -137,94 +108,77 @@ public class CounterAspect0Nested0 {
             return serializedParams.toString();
         }
 
-        public static synchronized void writeObjectXMLToFile(boolean isParameter,
-                                                             Object objectToWrite,
-                                                             String objectFilePath) {
+        public static String serializeObjectToXML(boolean isParameter,
+                                                  Object objectToWrite,
+                                                  long parentInvocationId,
+                                                  long timestamp) {
             try {
-                FileWriter objectFileWriter = new FileWriter(objectFilePath, true);
                 String xml;
                 if (isParameter) {
                     // We don't want to serialize non-primitive parameters
                     xml = handleNonPrimitiveParamSerialization(objectToWrite);
                 } else {
-                    xml = xStream.toXML(objectToWrite);
+                    xml = serializer.toXML(objectToWrite);
+                }
+                xml = blobStore.deduplicate(xml);
+                // The parent invocation id and timestamp are in the record header
+                if (profileWriter.isBinary()) {
+                    return xml;
                 }
                 xml = xml.replaceAll("(&#x)(\\w+;)", "&amp;#x$2");
                 xml = xml.replaceFirst("(\\/*)>",
-                        " parent-uuid=\"" + invocationUuid +
-                                "\" timestamp=\"" + invocationTimestamp + "\"$1>");
-                BufferedReader reader = new BufferedReader(new StringReader(xml));
-                BufferedWriter writer = new BufferedWriter(objectFileWriter);
-                while ((xml = reader.readLine()) != null) {
-                    writer.write(xml);
-                    writer.newLine();
-                }
-                writer.flush();
-                writer.close();
+                        " parent-uuid=\"" + InvocationIds.toString(parentInvocationId) +
+                                "\" timestamp=\"" + timestamp + "\"$1>");
+                return xml.endsWith("\n") ? xml : xml + "\n";
             } catch (Exception e) {
-//                logger.info("Exception when writing XML for MethodAspect" + COUNT + " to file " + objectFilePath);
+//                logger.info("Exception when serializing XML for MethodAspect" + COUNT);
                 e.printStackTrace();
                 if (e.getMessage().startsWith("No converter specified") || e.getMessage().startsWith("No converter available")) {
                     String className = extractClassNameFromTheExceptionMessage(e.getMessage());
                     registerConverterAtRuntime(className);
 //                    logger.info("Automatically register a converter for: " + className);
                 }
+                return null;
             }
         }
 
-        // Write size (in bytes) of individual object profile to file
-        public static synchronized void writeObjectProfileSizeToFile(long size) {
-            try {
-                FileWriter objectFileWriter = new FileWriter(objectProfileSizeFilePath, true);
-                objectFileWriter.write(size + "\n");
-                objectFileWriter.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+        public static void writeObjectXMLToFile(boolean isParameter,
+                                                Object objectToWrite,
+                                                String objectFilePath) {
+            long parentInvocationId = InvocationContext.getInvocationId(TargetMethodAdvice.class);
+            // Objects are only captured for invocations chosen in @OnBefore
+            if (parentInvocationId == InvocationIds.NONE)
+                return;
+            long timestamp = InvocationContext.getTimestamp(TargetMethodAdvice.class);
+            ProfileRecords.Header header = profileWriter.isBinary() ?
+                    new ProfileRecords.Header("nested-" + methodFQN, objectToWrite, parentInvocationId, timestamp) : null;
+            // Serialized here, so that the profile is not changed by the rest of the invocation
+            String xml = serializeObjectToXML(isParameter, objectToWrite, parentInvocationId, timestamp);
+            if (xml == null)
+                return;
+            if (profileWriter.isAsync()) {
+                profileWriter.submit(objectFilePath, header, xml);
+            } else {
+                profileWriter.write(objectFilePath, header, xml);
             }
         }
 
-        public static synchronized void writeInvocationCountToFile() {
-            try {
-                File invocationCountFile = new File(invocationCountFilePath);
-
-                if (!invocationCountFile.exists()) {
-                    FileWriter objectFileWriter = new FileWriter(invocationCountFilePath);
-                    objectFileWriter.write(invocationString + INVOCATION_COUNT);
-                    objectFileWriter.close();
-                } else {
-                    String content = new String(Files.readAllBytes(Paths.get(invocationCountFilePath)));
-                    Pattern pattern = Pattern.compile(invocationString + "(\\d+$)");
-                    Matcher matcher = pattern.matcher(content);
-                    if (matcher.find()) {
-                        int count = Integer.parseInt(matcher.group(1)) + 1;
-                        content = matcher.replaceAll(invocationString + count);
-                        Files.write(invocationCountFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        // Write size (in bytes) of individual object profile to file
+        public static void writeObjectProfileSizeToFile(long size) {
+            profileFiles.append(objectProfileSizeFilePath, size + "\n");
         }
 
-        // For mocking: instrument and collect parameters and returned values if this invocation is nested
+        // For mocking: count every nested invocation, sampled or not
         @IsEnabled
-        public synchronized static boolean isNestedInvocation() {
-            invocationUuid = null;
-            boolean isNestedInvocation = Arrays.stream(Thread.currentThread().getStackTrace()).anyMatch(s ->
-                    s.getClassName().equals(parentInvocationClassName) &
-                            s.getMethodName().equals(parentInvocationMethodName));
-            if (isNestedInvocation) {
-                if (!invocationOnLibraryMethod) {
-//                    logger.info("Aspect " + COUNT + " is a nested invocation");
-                    invocationUuid = CounterAspect0.TargetMethodAdvice.invocationUuid;
-                } else if (invocationOnLibraryMethod) {
-//                    logger.info("Aspect " + COUNT + " is a nested invocation on a library method");
-                    if (Thread.currentThread().getName().equals(CounterAspect0.TargetMethodAdvice.methodFQN)) {
-                        invocationUuid = CounterAspect0.TargetMethodAdvice.invocationUuid;
-                    }
-                }
-            }
-            return invocationUuid != null & isNestedInvocation;
+        public static boolean isNestedInvocation() {
+            // The parent aspect is in the context only while its invocation is in progress on this thread
+            return InvocationContext.isInProgress(CounterAspect0.TargetMethodAdvice.class);
+        }
+
+        // Objects are captured within sampled parent invocations, for the invocations chosen by the sampling policy
+        private static boolean isCaptured(long parentInvocationId, Object parameterObjects) {
+            return parentInvocationId != InvocationIds.NONE && methodBudget.isWithinLimits()
+                    && samplingPolicy.shouldCapture(parameterObjects) && profileWriter.admit();
         }
 
         @OnBefore
@@ -232,10 +186,13 @@ public class CounterAspect0Nested0 {
                                           @BindParameterArray Object parameterObjects,
                                           @BindMethodName String methodName) {
             setup();
-            if (fileSizeWithinLimits) {
-                invocationTimestamp = Instant.now().toEpochMilli();
-                INVOCATION_COUNT++;
-            }
+            INVOCATION_COUNT.increment();
+            // Parameters and returned value of this invocation share the parent id and timestamp,
+            // an invocation whose objects are not captured is entered without id
+            long parentInvocationId = InvocationContext.getInvocationId(CounterAspect0.TargetMethodAdvice.class);
+            InvocationContext.enter(TargetMethodAdvice.class,
+                    isCaptured(parentInvocationId, parameterObjects) ? parentInvocationId : InvocationIds.NONE,
+                    Instant.now().toEpochMilli());
             MessageSupplier messageSupplier = MessageSupplier.create(
                     "className: {}, methodName: {}",
                     TargetMethodAdvice.class.getAnnotation(Pointcut.class).className(),
@@ -247,17 +204,14 @@ public class CounterAspect0Nested0 {
         @OnReturn
         public static void onReturn(@BindReturn Object returnedObject,
                                     @BindTraveler TraceEntry traceEntry) {
-            if (fileSizeWithinLimits) {
-                checkFileSizeLimit();
-            }
-            writeInvocationCountToFile();
-            invocationUuid = null;
+            InvocationContext.exit(TargetMethodAdvice.class);
             traceEntry.end();
         }
 
         @OnThrow
         public static void onThrow(@BindThrowable Throwable throwable,
                                    @BindTraveler TraceEntry traceEntry) {
+            InvocationContext.exit(TargetMethodAdvice.class);
             traceEntry.endWithError(throwable);
         }
 
@@ -275,21 +229,7 @@ public class CounterAspect0Nested0 {
         }
 
         public static void registerConverterAtRuntime(String className) {
-            xStream.registerConverter(new Converter() {
-                @Override
-                public void marshal(Object o, HierarchicalStreamWriter hierarchicalStreamWriter, MarshallingContext marshallingContext) {
-                }
-
-                @Override
-                public Object unmarshal(HierarchicalStreamReader hierarchicalStreamReader, UnmarshallingContext unmarshallingContext) {
-                    return null;
-                }
-
-                @Override
-                public boolean canConvert(Class aClass) {
-                    return aClass.getCanonicalName().equals(className);
-                }
-            });
+            omittedTypes.omit(className);
         }
     }
 }
@@ -0,0 +1,73 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs the periodic background tasks of the plugin on a
+ * single daemon thread, and the tasks registered for JVM shutdown
+ * in the order of their phase
+ */
+public final class Housekeeper {
+    // Queued objects are written before files are flushed, and files before reports
+    public static final int PHASE_DRAIN = 0;
+    public static final int PHASE_FLUSH = 1;
+    public static final int PHASE_REPORT = 2;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "pankti-housekeeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final List<ShutdownAction> shutdownActions = new ArrayList<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(Housekeeper::runShutdownActions, "pankti-shutdown"));
+    }
+
+    private static final class ShutdownAction {
+        final int phase;
+        final Runnable action;
+
+        ShutdownAction(int phase, Runnable action) {
+            this.phase = phase;
+            this.action = action;
+        }
+    }
+
+    private Housekeeper() {
+    }
+
+    public static void scheduleAtFixedRate(Runnable task, long periodMillis) {
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void onShutdown(int phase, Runnable action) {
+        shutdownActions.add(new ShutdownAction(phase, action));
+    }
+
+    private static void runShutdownActions() {
+        List<ShutdownAction> actions;
+        synchronized (Housekeeper.class) {
+            actions = new ArrayList<>(shutdownActions);
+        }
+        actions.sort(Comparator.comparingInt(a -> a.phase));
+        for (ShutdownAction shutdownAction : actions) {
+            try {
+                shutdownAction.action.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+/**
+ * This class keeps track of the invocations of instrumented methods
+ * that are in progress on the current thread. An aspect enters the
+ * context in @OnBefore and exits it in @OnReturn or @OnThrow, so that
+ * it can find the id of its own invocation, and nested aspects the id
+ * of their parent invocation, without walking the stack or sharing
+ * static fields between threads. The context can be captured when a
+ * task is handed over to an executor, and attached to the thread that runs it.
+ */
+public final class InvocationContext {
+    private static final ThreadLocal<Holder> currentFrame = ThreadLocal.withInitial(Holder::new);
+
+    private InvocationContext() {
+    }
+
+    // Frames are immutable, each one links to the invocation it is nested in
+    static final class Frame {
+        final Class<?> advice;
+        final long invocationId;
+        final long timestamp;
+        final Frame parent;
+
+        Frame(Class<?> advice, long invocationId, long timestamp, Frame parent) {
+            this.advice = advice;
+            this.invocationId = invocationId;
+            this.timestamp = timestamp;
+            this.parent = parent;
+        }
+    }
+
+    private static final class Holder {
+        Frame frame;
+    }
+
+    public static void enter(Class<?> advice, long invocationId) {
+        enter(advice, invocationId, 0L);
+    }
+
+    public static void enter(Class<?> advice, long invocationId, long timestamp) {
+        Holder holder = currentFrame.get();
+        holder.frame = new Frame(advice, invocationId, timestamp, holder.frame);
+    }
+
+    public static void exit(Class<?> advice) {
+        Holder holder = currentFrame.get();
+        if (holder.frame != null && holder.frame.advice == advice) {
+            holder.frame = holder.frame.parent;
+        }
+    }
+
+    // The frames in progress on this thread, to be attached to another thread
+    public static Object capture() {
+        return currentFrame.get().frame;
+    }
+
+    // Returns the frames that were in progress on this thread, to be restored with detach
+    public static Object attach(Object captured) {
+        Holder holder = currentFrame.get();
+        Frame previous = holder.frame;
+        holder.frame = (Frame) captured;
+        return previous;
+    }
+
+    public static void detach(Object previous) {
+        currentFrame.get().frame = (Frame) previous;
+    }
+
+    private static Frame find(Class<?> advice) {
+        for (Frame frame = currentFrame.get().frame; frame != null; frame = frame.parent) {
+            if (frame.advice == advice) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    // Whether an invocation of the given aspect is in progress on this thread, with an id or not
+    public static boolean isInProgress(Class<?> advice) {
+        return find(advice) != null;
+    }
+
+    // Id of the innermost invocation of the given aspect in progress on this thread, or 0
+    public static long getInvocationId(Class<?> advice) {
+        Frame frame = find(advice);
+        return frame == null ? InvocationIds.NONE : frame.invocationId;
+    }
+
+    // Timestamp of the innermost invocation of the given aspect in progress on this thread, or 0
+    public static long getTimestamp(Class<?> advice) {
+        Frame frame = find(advice);
+        return frame == null ? 0L : frame.timestamp;
+    }
+}
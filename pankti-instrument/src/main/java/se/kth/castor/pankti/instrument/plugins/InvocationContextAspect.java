@@ -0,0 +1,233 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.ParameterHolder;
+import org.glowroot.agent.plugin.api.weaving.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * This aspect class hands the invocation context over to tasks submitted
+ * to an executor, so that invocations nested in a task are attributed to
+ * the instrumented method that submitted it. The context is captured in a
+ * field mixed into the task when it is submitted, and attached to the
+ * thread that runs the task for the duration of the task. Tasks that do
+ * not get the mixin, such as lambdas, are wrapped in a task that carries
+ * the context. Tasks are handled when they are passed to execute, submit,
+ * schedule*, invokeAll and invokeAny; tasks handed over otherwise, e.g.,
+ * forked in a ForkJoinPool, run without the context.
+ */
+public class InvocationContextAspect {
+
+    public interface ContextHolder {
+        Object pankti$getInvocationContext();
+
+        void pankti$setInvocationContext(Object invocationContext);
+    }
+
+    @Mixin({"java.lang.Runnable", "java.util.concurrent.Callable"})
+    public static class ContextHolderImpl implements ContextHolder {
+        private volatile Object pankti$invocationContext;
+
+        @Override
+        public Object pankti$getInvocationContext() {
+            return pankti$invocationContext;
+        }
+
+        @Override
+        public void pankti$setInvocationContext(Object invocationContext) {
+            pankti$invocationContext = invocationContext;
+        }
+    }
+
+    static final class ContextRunnable implements Runnable {
+        private final Runnable runnable;
+        private final Object invocationContext;
+
+        ContextRunnable(Runnable runnable, Object invocationContext) {
+            this.runnable = runnable;
+            this.invocationContext = invocationContext;
+        }
+
+        @Override
+        public void run() {
+            Object previous = InvocationContext.attach(invocationContext);
+            try {
+                runnable.run();
+            } finally {
+                InvocationContext.detach(previous);
+            }
+        }
+    }
+
+    static final class ContextCallable<T> implements Callable<T> {
+        private final Callable<T> callable;
+        private final Object invocationContext;
+
+        ContextCallable(Callable<T> callable, Object invocationContext) {
+            this.callable = callable;
+            this.invocationContext = invocationContext;
+        }
+
+        @Override
+        public T call() throws Exception {
+            Object previous = InvocationContext.attach(invocationContext);
+            try {
+                return callable.call();
+            } finally {
+                InvocationContext.detach(previous);
+            }
+        }
+    }
+
+    // Set on every submission, also without context, so that a reused task does not keep the context of an earlier one
+    static void captureContext(ContextHolder task) {
+        task.pankti$setInvocationContext(InvocationContext.capture());
+    }
+
+    static Runnable withContext(Runnable runnable) {
+        if (runnable instanceof ContextHolder) {
+            captureContext((ContextHolder) runnable);
+            return runnable;
+        }
+        Object invocationContext = InvocationContext.capture();
+        return runnable == null || invocationContext == null ? runnable : new ContextRunnable(runnable, invocationContext);
+    }
+
+    static <T> Callable<T> withContext(Callable<T> callable) {
+        if (callable instanceof ContextHolder) {
+            captureContext((ContextHolder) callable);
+            return callable;
+        }
+        Object invocationContext = InvocationContext.capture();
+        return callable == null || invocationContext == null ? callable : new ContextCallable<>(callable, invocationContext);
+    }
+
+    // Futures of invokeAll are in the order of the tasks, which the copy keeps
+    static <T> Collection<Callable<T>> withContext(Collection<Callable<T>> callables) {
+        if (callables == null || InvocationContext.capture() == null && callables.stream().noneMatch(c -> c instanceof ContextHolder))
+            return callables;
+        List<Callable<T>> withContext = new ArrayList<>(callables.size());
+        for (Callable<T> callable : callables) {
+            withContext.add(withContext(callable));
+        }
+        return withContext;
+    }
+
+    private static Object attachContext(Object task) {
+        if (task instanceof ContextHolder) {
+            Object invocationContext = ((ContextHolder) task).pankti$getInvocationContext();
+            if (invocationContext != null) {
+                return new Object[]{InvocationContext.attach(invocationContext)};
+            }
+        }
+        return null;
+    }
+
+    // The traveler wraps the previous context, since the previous context itself may be null
+    private static void detachContext(Object traveler) {
+        if (traveler != null) {
+            InvocationContext.detach(((Object[]) traveler)[0]);
+        }
+    }
+
+    @Pointcut(className = "java.util.concurrent.Executor",
+            methodName = "execute",
+            methodParameterTypes = {"java.lang.Runnable"},
+            nestingGroup = "pankti-executor-submit")
+    public static class ExecuteAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Runnable> runnableHolder) {
+            runnableHolder.set(withContext(runnableHolder.get()));
+        }
+    }
+
+    @Pointcut(className = "java.util.concurrent.ExecutorService",
+            methodName = "submit",
+            methodParameterTypes = {"java.lang.Runnable", ".."},
+            nestingGroup = "pankti-executor-submit")
+    public static class SubmitRunnableAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Runnable> runnableHolder) {
+            runnableHolder.set(withContext(runnableHolder.get()));
+        }
+    }
+
+    @Pointcut(className = "java.util.concurrent.ExecutorService",
+            methodName = "submit",
+            methodParameterTypes = {"java.util.concurrent.Callable"},
+            nestingGroup = "pankti-executor-submit")
+    public static class SubmitCallableAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Callable<Object>> callableHolder) {
+            callableHolder.set(withContext(callableHolder.get()));
+        }
+    }
+
+    // schedule, scheduleAtFixedRate and scheduleWithFixedDelay, periodic runs all get the context of the submission
+    @Pointcut(className = "java.util.concurrent.ScheduledExecutorService",
+            methodName = "schedule*",
+            methodParameterTypes = {"java.lang.Runnable", ".."},
+            nestingGroup = "pankti-executor-submit")
+    public static class ScheduleRunnableAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Runnable> runnableHolder) {
+            runnableHolder.set(withContext(runnableHolder.get()));
+        }
+    }
+
+    @Pointcut(className = "java.util.concurrent.ScheduledExecutorService",
+            methodName = "schedule",
+            methodParameterTypes = {"java.util.concurrent.Callable", ".."},
+            nestingGroup = "pankti-executor-submit")
+    public static class ScheduleCallableAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Callable<Object>> callableHolder) {
+            callableHolder.set(withContext(callableHolder.get()));
+        }
+    }
+
+    // invokeAll and invokeAny
+    @Pointcut(className = "java.util.concurrent.ExecutorService",
+            methodName = "invoke*",
+            methodParameterTypes = {"java.util.Collection", ".."},
+            nestingGroup = "pankti-executor-submit")
+    public static class InvokeAdvice {
+        @OnBefore
+        public static void onBefore(@BindParameter ParameterHolder<Collection<Callable<Object>>> callablesHolder) {
+            callablesHolder.set(withContext(callablesHolder.get()));
+        }
+    }
+
+    @Pointcut(className = "java.lang.Runnable",
+            methodName = "run",
+            methodParameterTypes = {})
+    public static class RunAdvice {
+        @OnBefore
+        public static Object onBefore(@BindReceiver Object runnable) {
+            return attachContext(runnable);
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler Object traveler) {
+            detachContext(traveler);
+        }
+    }
+
+    @Pointcut(className = "java.util.concurrent.Callable",
+            methodName = "call",
+            methodParameterTypes = {})
+    public static class CallAdvice {
+        @OnBefore
+        public static Object onBefore(@BindReceiver Object callable) {
+            return attachContext(callable);
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler Object traveler) {
+            detachContext(traveler);
+        }
+    }
+}
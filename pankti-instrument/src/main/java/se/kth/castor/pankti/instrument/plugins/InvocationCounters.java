@@ -0,0 +1,97 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class holds the invocation counters of all aspects. Aspects only
+ * increment their counter; a snapshot of all counts is written to a single
+ * file periodically, and once more at JVM shutdown. Like the object profiles,
+ * counts accumulate across runs that write to the same directory: the counts
+ * found in the file when the counters are loaded are added to those of this run.
+ */
+public final class InvocationCounters {
+    public static final String COUNTS_FILE_PATH = AdviceTemplate.STORAGE_DIR + "invocation-counts.txt";
+    private static final Pattern COUNT_LINE = Pattern.compile("Invocation count for (.+): (\\d+)");
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    // Counts of earlier runs, by method name as written in the file
+    private static final Map<String, Long> earlierCounts = readCounts(Paths.get(COUNTS_FILE_PATH));
+    private static long lastSnapshotTotal = -1;
+
+    static {
+        Housekeeper.scheduleAtFixedRate(InvocationCounters::writeSnapshot,
+                Math.max(100, CaptureConfig.getLong(CaptureConfig.COUNT_SNAPSHOT_INTERVAL_MILLIS, 10000)));
+        Housekeeper.onShutdown(Housekeeper.PHASE_REPORT, InvocationCounters::writeSnapshot);
+    }
+
+    private InvocationCounters() {
+    }
+
+    // Aspects for the same method share a counter
+    public static LongAdder counterFor(String methodFQN) {
+        return counters.computeIfAbsent(methodFQN, k -> new LongAdder());
+    }
+
+    static Map<String, Long> readCounts(Path countsFile) {
+        Map<String, Long> counts = new TreeMap<>();
+        if (!Files.exists(countsFile))
+            return counts;
+        try {
+            for (String line : Files.readAllLines(countsFile, StandardCharsets.UTF_8)) {
+                Matcher matcher = COUNT_LINE.matcher(line);
+                if (matcher.matches()) {
+                    counts.merge(matcher.group(1), Long.parseLong(matcher.group(2)), Long::sum);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+        return counts;
+    }
+
+    static String snapshot() {
+        return snapshot(earlierCounts);
+    }
+
+    static String snapshot(Map<String, Long> earlierCounts) {
+        Map<String, Long> counts = new TreeMap<>(earlierCounts);
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            counts.merge(entry.getKey().replaceAll("\\[\\]", "%5b%5d"), entry.getValue().sum(), Long::sum);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            sb.append(String.format("Invocation count for %s: %d%n", entry.getKey(), entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    // The file is replaced atomically, and only if a count has changed since the last snapshot
+    public static synchronized void writeSnapshot() {
+        long total = 0;
+        for (LongAdder counter : counters.values()) {
+            total += counter.sum();
+        }
+        if (counters.isEmpty() || total == lastSnapshotTotal)
+            return;
+        try {
+            Path countsFile = Paths.get(COUNTS_FILE_PATH);
+            Files.createDirectories(countsFile.getParent());
+            Path tempFile = Paths.get(COUNTS_FILE_PATH + ".tmp");
+            Files.write(tempFile, snapshot().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, countsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastSnapshotTotal = total;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out ids for invocations of instrumented methods.
+ * Each thread takes a block of ids from a shared counter and then
+ * increments its own counter, so that ids are unique within a run
+ * without contention. Ids are written with a random prefix chosen
+ * once per run, since profiles of several runs share the same files.
+ */
+public final class InvocationIds {
+    public static final long NONE = 0L;
+    private static final int BLOCK_SIZE = 1024;
+    private static final long RUN_ID = UUID.randomUUID().getMostSignificantBits();
+    private static final String RUN_ID_HEX = Long.toHexString(RUN_ID);
+    private static final AtomicLong nextBlock = new AtomicLong(1);
+    private static final ThreadLocal<long[]> threadBlock = ThreadLocal.withInitial(() -> new long[]{0L, 0L});
+
+    private InvocationIds() {
+    }
+
+    public static long next() {
+        // [next id, end of the block]
+        long[] block = threadBlock.get();
+        if (block[0] == block[1]) {
+            block[0] = nextBlock.getAndAdd(BLOCK_SIZE);
+            block[1] = block[0] + BLOCK_SIZE;
+        }
+        return block[0]++;
+    }
+
+    // Written in the uuid and parent-uuid attributes of object profiles
+    public static String toString(long invocationId) {
+        return RUN_ID_HEX + "-" + Long.toHexString(invocationId);
+    }
+
+    // Written in the header of binary profile records
+    public static long getRunId() {
+        return RUN_ID;
+    }
+}
@@ -0,0 +1,66 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is the single writer of the CSV file with the list of
+ * invoked methods. Rows already in the file are loaded once, and
+ * new rows are checked against them in memory before being appended.
+ */
+public class InvokedMethodsFile {
+    static final String[] HEADERS = {"visibility", "parent-FQN", "method-name", "param-list", "return-type",
+            "param-signature", "has-mockable-invocations", "nested-invocations"};
+
+    private final Path filePath;
+    private final Set<String> rows = ConcurrentHashMap.newKeySet();
+    private volatile boolean isSetUp;
+
+    public InvokedMethodsFile(String filePath) {
+        this.filePath = Paths.get(filePath).toAbsolutePath();
+    }
+
+    public String getFilePath() {
+        return filePath.toString();
+    }
+
+    // Create the file with its headers, or load the rows it already contains
+    public synchronized void setUp() throws IOException {
+        if (isSetUp)
+            return;
+        if (Files.exists(filePath)) {
+            List<String> lines = Files.readAllLines(filePath, StandardCharsets.UTF_8);
+            rows.addAll(lines.subList(Math.min(1, lines.size()), lines.size()));
+        } else {
+            Files.createDirectories(filePath.getParent());
+            Files.write(filePath, String.join(",", HEADERS).getBytes(StandardCharsets.UTF_8));
+        }
+        isSetUp = true;
+    }
+
+    // Returns true if the row was not in the file yet, and has been appended
+    public boolean add(String row) {
+        if (rows.contains(row))
+            return false;
+        synchronized (this) {
+            try {
+                setUp();
+                if (rows.contains(row))
+                    return false;
+                Files.write(filePath, ("\n" + row).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                rows.add(row);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+}
@@ -1,26 +1,16 @@
 package se.kth.castor.pankti.instrument.plugins;
 
-import com.thoughtworks.xstream.converters.Converter;
-import com.thoughtworks.xstream.converters.MarshallingContext;
-import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.io.HierarchicalStreamReader;
-import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import org.glowroot.agent.plugin.api.*;
 import org.glowroot.agent.plugin.api.weaving.*;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.Map;
-import java.util.Scanner;
-import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MethodAspect0 {
-    private static int INVOCATION_COUNT;
-    private static boolean fileSizeWithinLimits = true;
+    private static final LongAdder INVOCATION_COUNT = InvocationCounters.counterFor(TargetMethodAdvice.methodFQN);
 
     @Pointcut(className = "fully.qualified.path.to.class",
             methodName = "methodToInstrument",
@@ -35,146 +25,104 @@ public class MethodAspect0 {
         private static String receivingObjectPostFilePath;
         private static String paramObjectsFilePath;
         private static String returnedObjectFilePath;
-        private static String invocationCountFilePath;
-        private static String invokedMethodsCSVFilePath;
         private static String objectProfileSizeFilePath;
         private static Logger logger = Logger.getLogger(TargetMethodAdvice.class);
         private static String rowInCSVFile = "";
+        private static volatile boolean isRowInCSVFile;
         private static final boolean isReturnTypeVoid = false;
         private static final boolean hasMockableInvocations = false;
         private static final String methodParamTypesString = String.join(",", TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodParameterTypes());
         private static final String postfix = methodParamTypesString.isEmpty() ? "" : "_" + methodParamTypesString;
         public static final String methodFQN = TargetMethodAdvice.class.getAnnotation(Pointcut.class).className() + "."
                 + TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodName() + postfix;
-        static UUID invocationUuid = null;
-        private static final String invocationString = String.format("Invocation count for %s: ", methodFQN.replaceAll("\\[\\]", "%5b%5d"));
-        private static File[] allObjectFiles;
+        private static final SamplingPolicy samplingPolicy =
+                SamplingPolicy.forMethod(methodFQN, CaptureConfig.SAMPLING_TARGET, "first:1");
+        private static final CaptureBudget.MethodBudget methodBudget = captureBudget.forMethod(methodFQN);
+        private static volatile boolean isSetUp;
 
+        // Files are set up the first time the method is invoked, not on every invocation
         private static void setup() {
-            AdviceTemplate.setUpXStream();
-            Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles(methodFQN);
-            receivingObjectFilePath = fileNameMap.get(Type.RECEIVING_PRE);
-            receivingObjectPostFilePath = fileNameMap.get(Type.RECEIVING_POST);
-            paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
-            returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
-            invocationCountFilePath = fileNameMap.get(Type.INVOCATION_COUNT);
-            invokedMethodsCSVFilePath = fileNameMap.get(Type.INVOKED_METHODS);
-            objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
-            allObjectFiles = new File[]{
-                    new File(receivingObjectFilePath),
-                    new File(receivingObjectPostFilePath),
-                    new File(returnedObjectFilePath),
-                    new File(paramObjectsFilePath)};
-            checkFileSizeLimit();
-        }
-
-        public static long getObjectProfileSize() {
-            long objectProfileSize = 0L;
-            for (File file : allObjectFiles) {
-                objectProfileSize += file.length();
+            if (isSetUp)
+                return;
+            synchronized (TargetMethodAdvice.class) {
+                if (isSetUp)
+                    return;
+                Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles(methodFQN);
+                receivingObjectFilePath = fileNameMap.get(Type.RECEIVING_PRE);
+                receivingObjectPostFilePath = fileNameMap.get(Type.RECEIVING_POST);
+                paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
+                returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
+                objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
+                methodBudget.trackFiles(
+                        receivingObjectFilePath,
+                        receivingObjectPostFilePath,
+                        returnedObjectFilePath,
+                        paramObjectsFilePath);
+                isSetUp = true;
             }
-            return objectProfileSize;
         }
 
-        // Limit object XML files to ~200 MB
-        public static void checkFileSizeLimit() {
-            for (File file : allObjectFiles) {
-                if (file.exists() && (file.length() / (1024 * 1024) >= 200)) {
-                    fileSizeWithinLimits = false;
-                    break;
-                }
-            }
+        public static long getObjectProfileSize() {
+            return methodBudget.getUsedBytes();
         }
 
-        public static synchronized void writeObjectXMLToFile(Object objectToWrite, String objectFilePath) {
+        public static String serializeObjectToXML(Object objectToWrite, long invocationId) {
             try {
-                FileWriter objectFileWriter = new FileWriter(objectFilePath, true);
-                String xml = xStream.toXML(objectToWrite);
+                String xml = blobStore.deduplicate(serializer.toXML(objectToWrite));
+                // The invocation id is in the record header
+                if (profileWriter.isBinary()) {
+                    return xml;
+                }
                 xml = xml.replaceAll("(&#x)(\\w+;)", "&amp;#x$2");
                 // Add attributes if method has mockable invocations
                 if (hasMockableInvocations) {
-                    xml = xml.replaceFirst("(\\/*)>", " uuid=\"" + invocationUuid + "\"$1>");
-                }
-                BufferedReader reader = new BufferedReader(new StringReader(xml));
-                BufferedWriter writer = new BufferedWriter(objectFileWriter);
-                while ((xml = reader.readLine()) != null) {
-                    writer.write(xml);
-                    writer.newLine();
+                    xml = xml.replaceFirst("(\\/*)>", " uuid=\"" + InvocationIds.toString(invocationId) + "\"$1>");
                 }
-                writer.flush();
-                writer.close();
+                return xml.endsWith("\n") ? xml : xml + "\n";
             } catch (Exception e) {
-                logger.info("Exception when writing XML for MethodAspect" + COUNT + " to file " + objectFilePath);
+                logger.info("Exception when serializing XML for MethodAspect" + COUNT);
                 e.printStackTrace();
                 if (e.getMessage().startsWith("No converter specified") || e.getMessage().startsWith("No converter available")) {
                     String className = extractClassNameFromTheExceptionMessage(e.getMessage());
                     registerConverterAtRuntime(className);
                     logger.info("Automatically register a converter for: " + className);
                 }
+                return null;
             }
         }
 
-        // Write size (in bytes) of individual object profile to file
-        public static synchronized void writeObjectProfileSizeToFile(long size) {
-            try {
-                FileWriter objectFileWriter = new FileWriter(objectProfileSizeFilePath, true);
-                objectFileWriter.write(size + "\n");
-                objectFileWriter.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+        public static void writeObjectXMLToFile(Object objectToWrite, String objectFilePath) {
+            long invocationId = hasMockableInvocations ?
+                    InvocationContext.getInvocationId(TargetMethodAdvice.class) : InvocationIds.NONE;
+            ProfileRecords.Header header = profileWriter.isBinary() ?
+                    new ProfileRecords.Header(methodFQN, objectToWrite, invocationId, 0L) : null;
+            // Serialized here, so that the profile is not changed by the rest of the invocation
+            String xml = serializeObjectToXML(objectToWrite, invocationId);
+            if (xml == null)
+                return;
+            if (profileWriter.isAsync()) {
+                profileWriter.submit(objectFilePath, header, xml);
+            } else {
+                profileWriter.write(objectFilePath, header, xml);
             }
         }
 
-        public static synchronized void writeInvocationCountToFile() {
-            try {
-                File invocationCountFile = new File(invocationCountFilePath);
-
-                if (!invocationCountFile.exists()) {
-                    FileWriter objectFileWriter = new FileWriter(invocationCountFilePath);
-                    objectFileWriter.write(invocationString + INVOCATION_COUNT);
-                    objectFileWriter.close();
-                } else {
-                    String content = new String(Files.readAllBytes(Paths.get(invocationCountFilePath)));
-                    Pattern pattern = Pattern.compile(invocationString + "(\\d+$)");
-                    Matcher matcher = pattern.matcher(content);
-                    if (matcher.find()) {
-                        int count = Integer.parseInt(matcher.group(1)) + 1;
-                        content = matcher.replaceAll(invocationString + count);
-                        Files.write(invocationCountFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        // Write size (in bytes) of individual object profile to file
+        public static void writeObjectProfileSizeToFile(long size) {
+            profileFiles.append(objectProfileSizeFilePath, size + "\n");
         }
 
-        public static synchronized void appendRowToInvokedCSVFile() {
-            try {
-                File invokedMethodsCSVFile = new File(invokedMethodsCSVFilePath);
-                Scanner scanner = new Scanner(invokedMethodsCSVFile);
-                boolean found = false;
-                while (scanner.hasNextLine()) {
-                    String lineFromFile = scanner.nextLine();
-                    if (lineFromFile.contains(rowInCSVFile)) {
-                        found = true;
-                        break;
-                    }
-                }
-                if (!found) {
-                    FileWriter fr = new FileWriter(invokedMethodsCSVFile, true);
-                    fr.write("\n");
-                    fr.write(rowInCSVFile);
-                    fr.close();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        // Record the method in the list of invoked methods, once
+        public static void appendRowToInvokedCSVFile() {
+            invokedMethods.add(rowInCSVFile);
+            isRowInCSVFile = true;
         }
 
+        // Checked before the invocation, so that the profiles of a captured invocation are complete
         @IsEnabled
-        public static boolean enableProfileCollection() {
-            invocationUuid = null;
-            return INVOCATION_COUNT < 1;
+        public static boolean enableProfileCollection(@BindParameterArray Object parameterObjects) {
+            return methodBudget.isWithinLimits() && samplingPolicy.shouldCapture(parameterObjects)
+                    && profileWriter.admit();
         }
 
         @OnBefore
@@ -183,17 +131,13 @@ public class MethodAspect0 {
                                           @BindParameterArray Object parameterObjects,
                                           @BindMethodName String methodName) {
             setup();
-            if (fileSizeWithinLimits) {
-                if (hasMockableInvocations) {
-                    invocationUuid = UUID.randomUUID();
-                    Thread.currentThread().setName(methodFQN);
-                }
-                profileSizePre = getObjectProfileSize();
-                writeObjectXMLToFile(receivingObject, receivingObjectFilePath);
-                writeObjectXMLToFile(parameterObjects, paramObjectsFilePath);
-            } else {
-                logger.error("file size limit reached");
+            // Nested aspects look up the id of this invocation in the context
+            if (hasMockableInvocations) {
+                InvocationContext.enter(TargetMethodAdvice.class, InvocationIds.next());
             }
+            profileSizePre = getObjectProfileSize();
+            writeObjectXMLToFile(receivingObject, receivingObjectFilePath);
+            writeObjectXMLToFile(parameterObjects, paramObjectsFilePath);
             MessageSupplier messageSupplier = MessageSupplier.create(
                     "className: {}, methodName: {}",
                     TargetMethodAdvice.class.getAnnotation(Pointcut.class).className(),
@@ -206,23 +150,24 @@ public class MethodAspect0 {
         @OnReturn
         public static void onReturn(@BindReturn Object returnedObject,
                                     @BindTraveler TraceEntry traceEntry) {
-            if (fileSizeWithinLimits) {
-                writeObjectXMLToFile(returnedObject, returnedObjectFilePath);
-//                writeObjectProfileSizeToFile(getObjectProfileSize() - profileSizePre);
-                checkFileSizeLimit();
-            }
-            INVOCATION_COUNT++;
-            if (INVOCATION_COUNT == 1) {
+            writeObjectXMLToFile(returnedObject, returnedObjectFilePath);
+//            writeObjectProfileSizeToFile(getObjectProfileSize() - profileSizePre);
+            INVOCATION_COUNT.increment();
+            if (!isRowInCSVFile) {
                 appendRowToInvokedCSVFile();
             }
-            writeInvocationCountToFile();
-            invocationUuid = null;
+            if (hasMockableInvocations) {
+                InvocationContext.exit(TargetMethodAdvice.class);
+            }
             traceEntry.end();
         }
 
         @OnThrow
         public static void onThrow(@BindThrowable Throwable throwable,
                                    @BindTraveler TraceEntry traceEntry) {
+            if (hasMockableInvocations) {
+                InvocationContext.exit(TargetMethodAdvice.class);
+            }
             traceEntry.endWithError(throwable);
         }
 
@@ -240,21 +185,7 @@ public class MethodAspect0 {
         }
 
         public static void registerConverterAtRuntime(String className) {
-            xStream.registerConverter(new Converter() {
-                @Override
-                public void marshal(Object o, HierarchicalStreamWriter hierarchicalStreamWriter, MarshallingContext marshallingContext) {
-                }
-
-                @Override
-                public Object unmarshal(HierarchicalStreamReader hierarchicalStreamReader, UnmarshallingContext unmarshallingContext) {
-                    return null;
-                }
-
-                @Override
-                public boolean canConvert(Class aClass) {
-                    return aClass.getCanonicalName().equals(className);
-                }
-            });
+            omittedTypes.omit(className);
         }
     }
 }
@@ -1,25 +1,17 @@
 package se.kth.castor.pankti.instrument.plugins;
 
-import com.thoughtworks.xstream.converters.Converter;
-import com.thoughtworks.xstream.converters.MarshallingContext;
-import com.thoughtworks.xstream.converters.UnmarshallingContext;
-import com.thoughtworks.xstream.io.HierarchicalStreamReader;
-import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
 import org.glowroot.agent.plugin.api.*;
 import org.glowroot.agent.plugin.api.weaving.*;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MethodAspect0Nested0 {
-    private static int INVOCATION_COUNT;
-    private static boolean fileSizeWithinLimits = true;
+    private static final LongAdder INVOCATION_COUNT = InvocationCounters.counterFor("nested-" + TargetMethodAdvice.methodFQN);
 
     @Pointcut(className = "fully.qualified.path.to.class",
             methodName = "methodToInstrument",
@@ -29,11 +21,8 @@ public class MethodAspect0Nested0 {
         private static final TimerName timer = Agent.getTimerName(TargetMethodAdvice.class);
         private static final String transactionType = "Target";
         private static final double COUNT = 0;
-        private static long profileSizePre;
         private static String paramObjectsFilePath;
         private static String returnedObjectFilePath;
-        private static String invocationCountFilePath;
-        private static String invokedMethodsCSVFilePath;
         private static String objectProfileSizeFilePath;
         private static String libraryInvocationFilePath;
         private static String parentInvocationClassName = MethodAspect0.TargetMethodAdvice.class.getAnnotation(Pointcut.class).className();
@@ -43,11 +32,22 @@ public class MethodAspect0Nested0 {
         private static final String postfix = methodParamTypesString.isEmpty() ? "" : "_" + methodParamTypesString;
         private static final String methodFQN = TargetMethodAdvice.class.getAnnotation(Pointcut.class).className() + "."
                 + TargetMethodAdvice.class.getAnnotation(Pointcut.class).methodName() + postfix;
-        static UUID invocationUuid = null;
-        static long invocationTimestamp;
+        private static final SamplingPolicy samplingPolicy =
+                SamplingPolicy.forMethod("nested-" + methodFQN, CaptureConfig.SAMPLING_NESTED, "first:10");
         private static final boolean invocationOnLibraryMethod = false;
-        private static final String invocationString = String.format("Invocation count for %s: ", methodFQN.replaceAll("\\[\\]", "%5b%5d"));
-        private static File[] allObjectFiles;
+        private static final CaptureBudget.MethodBudget methodBudget = captureBudget.forMethod("nested-" + methodFQN);
+        private static volatile boolean isSetUp;
+
+        // Passed from @OnBefore to @OnReturn, with the size of the parameter profile of this invocation
+        public static final class Traveler {
+            private final TraceEntry traceEntry;
+            private final long paramsProfileSize;
+
+            Traveler(TraceEntry traceEntry, long paramsProfileSize) {
+                this.traceEntry = traceEntry;
+                this.paramsProfileSize = paramsProfileSize;
+            }
+        }
 
         private static String sanitizeMethodFQN() {
             return methodFQN.replaceAll("\\[\\]", "%5b%5d")
@@ -58,52 +58,37 @@ public class MethodAspect0Nested0 {
         private static synchronized void gatherDataForInvocationOfLibraryMethod() {
             setup();
             logger.info(String.format("Writing invocation %s to file %s",
-                    INVOCATION_COUNT, libraryInvocationFilePath));
-            INVOCATION_COUNT++;
-            invocationTimestamp = Instant.now().toEpochMilli();
-            try {
-                FileWriter objectFileWriter = new FileWriter(libraryInvocationFilePath, true);
-                String toWrite = String.format("<%s parent=\"%s.%s\" parent-uuid=\"%s\" timestamp=\"%s\"/>",
-                        sanitizeMethodFQN(),
-                        parentInvocationClassName, parentInvocationMethodName,
-                        invocationUuid, invocationTimestamp);
-                objectFileWriter.write(toWrite + "\n");
-                objectFileWriter.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+                    INVOCATION_COUNT.sum(), libraryInvocationFilePath));
+            INVOCATION_COUNT.increment();
+            long parentInvocationId = InvocationContext.getInvocationId(MethodAspect0.TargetMethodAdvice.class);
+            long invocationTimestamp = Instant.now().toEpochMilli();
+            String toWrite = String.format("<%s parent=\"%s.%s\" parent-uuid=\"%s\" timestamp=\"%s\"/>",
+                    sanitizeMethodFQN(),
+                    parentInvocationClassName, parentInvocationMethodName,
+                    InvocationIds.toString(parentInvocationId), invocationTimestamp);
+            profileFiles.append(libraryInvocationFilePath, toWrite + "\n");
         }
 
+        // Files are set up the first time the method is invoked, not on every invocation
         private static void setup() {
-            AdviceTemplate.setUpXStream();
-            Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles("nested-" + methodFQN);
-            paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
-            returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
-            invocationCountFilePath = fileNameMap.get(Type.INVOCATION_COUNT);
-            invokedMethodsCSVFilePath = fileNameMap.get(Type.INVOKED_METHODS);
-            objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
-            allObjectFiles = new File[]{
-                    new File(returnedObjectFilePath),
-                    new File(paramObjectsFilePath)};
-            checkFileSizeLimit();
-        }
-
-        public static long getObjectProfileSize() {
-            long objectProfileSize = 0L;
-            for (File file : allObjectFiles) {
-                objectProfileSize += file.length();
+            if (isSetUp)
+                return;
+            synchronized (TargetMethodAdvice.class) {
+                if (isSetUp)
+                    return;
+                Map<Type, String> fileNameMap = AdviceTemplate.setUpFiles("nested-" + methodFQN);
+                paramObjectsFilePath = fileNameMap.get(Type.PARAMS);
+                returnedObjectFilePath = fileNameMap.get(Type.RETURNED);
+                objectProfileSizeFilePath = fileNameMap.get(Type.OBJECT_PROFILE_SIZE);
+                methodBudget.trackFiles(
+                        returnedObjectFilePath,
+                        paramObjectsFilePath);
+                isSetUp = true;
             }
-            return objectProfileSize;
         }
 
-        // Limit object XML files to ~200 MB
-        public static void checkFileSizeLimit() {
-            for (File file : allObjectFiles) {
-                if (file.exists() && (file.length() / (1024 * 1024) >= 200)) {
-                    fileSizeWithinLimits = false;
-                    break;
-                }
-            }
+        public static long getObjectProfileSize() {
+            return methodBudget.getUsedBytes();
         }
 
         public static String handleNonPrimitiveParamSerialization(Object objectToWrite) {
@@ -113,7 +98,7 @@ public class MethodAspect0Nested0 {
 
             if (paramTypes.length == 0 ||
                     Arrays.stream(paramTypes).allMatch(primitives::contains)) {
-                return xStream.toXML(objectToWrite);
+                return serializer.toXML(objectToWrite);
             }
 
             Object[] paramObjectArray = (Object[]) objectToWrite;
@@ -129,7 +114,7 @@ public class MethodAspect0Nested0 {
                             .append("/>").append("\n");
                 } else {
                     serializedParams.append("  ")
-                            .append(xStream.toXML(paramObjectArray[i]))
+                            .append(serializer.toXML(paramObjectArray[i]))
                             .append("\n");
                 }
             }
@@ -137,134 +122,116 @@ public class MethodAspect0Nested0 {
             return serializedParams.toString();
         }
 
-        public static synchronized void writeObjectXMLToFile(boolean isParameter,
-                                                             Object objectToWrite,
-                                                             String objectFilePath) {
+        public static String serializeObjectToXML(boolean isParameter,
+                                                  Object objectToWrite,
+                                                  long parentInvocationId,
+                                                  long timestamp) {
             try {
-                FileWriter objectFileWriter = new FileWriter(objectFilePath, true);
                 String xml;
                 if (isParameter) {
                     // We don't want to serialize non-primitive parameters
                     xml = handleNonPrimitiveParamSerialization(objectToWrite);
                 } else {
-                    xml = xStream.toXML(objectToWrite);
+                    xml = serializer.toXML(objectToWrite);
+                }
+                xml = blobStore.deduplicate(xml);
+                // The parent invocation id and timestamp are in the record header
+                if (profileWriter.isBinary()) {
+                    return xml;
                 }
                 xml = xml.replaceAll("(&#x)(\\w+;)", "&amp;#x$2");
                 xml = xml.replaceFirst("(\\/*)>",
-                        " parent-uuid=\"" + invocationUuid +
-                                "\" timestamp=\"" + invocationTimestamp + "\"$1>");
-                BufferedReader reader = new BufferedReader(new StringReader(xml));
-                BufferedWriter writer = new BufferedWriter(objectFileWriter);
-                while ((xml = reader.readLine()) != null) {
-                    writer.write(xml);
-                    writer.newLine();
-                }
-                writer.flush();
-                writer.close();
+                        " parent-uuid=\"" + InvocationIds.toString(parentInvocationId) +
+                                "\" timestamp=\"" + timestamp + "\"$1>");
+                return xml.endsWith("\n") ? xml : xml + "\n";
             } catch (Exception e) {
-                logger.info("Exception when writing XML for MethodAspect" + COUNT + " to file " + objectFilePath);
+                logger.info("Exception when serializing XML for MethodAspect" + COUNT);
                 e.printStackTrace();
                 if (e.getMessage().startsWith("No converter specified") || e.getMessage().startsWith("No converter available")) {
                     String className = extractClassNameFromTheExceptionMessage(e.getMessage());
                     registerConverterAtRuntime(className);
                     logger.info("Automatically register a converter for: " + className);
                 }
+                return null;
             }
         }
 
-        // Write size (in bytes) of individual object profile to file
-        public static synchronized void writeObjectProfileSizeToFile(long size) {
-            try {
-                FileWriter objectFileWriter = new FileWriter(objectProfileSizeFilePath, true);
-                objectFileWriter.write(size + "\n");
-                objectFileWriter.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+        // Returns the size (in bytes) of the written object profile
+        public static long writeObjectXMLToFile(boolean isParameter,
+                                                Object objectToWrite,
+                                                String objectFilePath) {
+            long parentInvocationId = InvocationContext.getInvocationId(TargetMethodAdvice.class);
+            long timestamp = InvocationContext.getTimestamp(TargetMethodAdvice.class);
+            ProfileRecords.Header header = profileWriter.isBinary() ?
+                    new ProfileRecords.Header("nested-" + methodFQN, objectToWrite, parentInvocationId, timestamp) : null;
+            // Serialized here, so that the profile is not changed by the rest of the invocation
+            String xml = serializeObjectToXML(isParameter, objectToWrite, parentInvocationId, timestamp);
+            if (xml == null)
+                return 0;
+            if (profileWriter.isAsync()) {
+                profileWriter.submit(objectFilePath, header, xml);
+            } else {
+                profileWriter.write(objectFilePath, header, xml);
             }
+            return ProfileWriter.sizeOf(xml);
         }
 
-        public static synchronized void writeInvocationCountToFile() {
-            try {
-                File invocationCountFile = new File(invocationCountFilePath);
-
-                if (!invocationCountFile.exists()) {
-                    FileWriter objectFileWriter = new FileWriter(invocationCountFilePath);
-                    objectFileWriter.write(invocationString + INVOCATION_COUNT);
-                    objectFileWriter.close();
-                } else {
-                    String content = new String(Files.readAllBytes(Paths.get(invocationCountFilePath)));
-                    Pattern pattern = Pattern.compile(invocationString + "(\\d+$)");
-                    Matcher matcher = pattern.matcher(content);
-                    if (matcher.find()) {
-                        int count = Integer.parseInt(matcher.group(1)) + 1;
-                        content = matcher.replaceAll(invocationString + count);
-                        Files.write(invocationCountFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        // Write size (in bytes) of individual object profile to file
+        public static void writeObjectProfileSizeToFile(long size) {
+            profileFiles.append(objectProfileSizeFilePath, size + "\n");
         }
 
         // For mocking: instrument and collect parameters and returned values if this invocation is nested
         @IsEnabled
-        public synchronized static boolean isNestedInvocation() {
-            invocationUuid = null;
-            if (INVOCATION_COUNT >= 10)
+        public static boolean isNestedInvocation(@BindParameterArray Object parameterObjects) {
+            // The parent aspect is in the context only while its invocation is in progress on this thread
+            if (InvocationContext.getInvocationId(MethodAspect0.TargetMethodAdvice.class) == InvocationIds.NONE)
                 return false;
-            boolean isNestedInvocation = Arrays.stream(Thread.currentThread().getStackTrace()).anyMatch(s ->
-                    s.getClassName().equals(parentInvocationClassName) &
-                            s.getMethodName().equals(parentInvocationMethodName));
-            if (isNestedInvocation) {
-                if (!invocationOnLibraryMethod) {
-                    logger.info("Aspect " + COUNT + " is a nested invocation");
-                    invocationUuid = MethodAspect0.TargetMethodAdvice.invocationUuid;
-                } else if (invocationOnLibraryMethod) {
-                    logger.info("Aspect " + COUNT + " is a nested invocation on a library method");
-                    if (Thread.currentThread().getName().equals(MethodAspect0.TargetMethodAdvice.methodFQN)) {
-                        invocationUuid = MethodAspect0.TargetMethodAdvice.invocationUuid;
-                    }
-                }
+            if (!methodBudget.isWithinLimits() || !samplingPolicy.shouldCapture(parameterObjects)
+                    || !profileWriter.admit())
+                return false;
+            if (!invocationOnLibraryMethod) {
+                logger.info("Aspect " + COUNT + " is a nested invocation");
+            } else {
+                logger.info("Aspect " + COUNT + " is a nested invocation on a library method");
             }
-            return invocationUuid != null & isNestedInvocation;
+            return true;
         }
 
         @OnBefore
-        public static TraceEntry onBefore(OptionalThreadContext context,
+        public static Traveler onBefore(OptionalThreadContext context,
                                           @BindParameterArray Object parameterObjects,
                                           @BindMethodName String methodName) {
             setup();
-            if (fileSizeWithinLimits) {
-                invocationTimestamp = Instant.now().toEpochMilli();
-                profileSizePre = getObjectProfileSize();
-                writeObjectXMLToFile(true, parameterObjects, paramObjectsFilePath);
-                INVOCATION_COUNT++;
-            }
+            // Parameters and returned value of this invocation share the parent id and timestamp
+            InvocationContext.enter(TargetMethodAdvice.class,
+                    InvocationContext.getInvocationId(MethodAspect0.TargetMethodAdvice.class),
+                    Instant.now().toEpochMilli());
+            long paramsProfileSize = writeObjectXMLToFile(true, parameterObjects, paramObjectsFilePath);
+            INVOCATION_COUNT.increment();
             MessageSupplier messageSupplier = MessageSupplier.create(
                     "className: {}, methodName: {}",
                     TargetMethodAdvice.class.getAnnotation(Pointcut.class).className(),
                     methodName
             );
-            return context.startTransaction(transactionType, methodName, messageSupplier, timer, OptionalThreadContext.AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION);
+            return new Traveler(context.startTransaction(transactionType, methodName, messageSupplier, timer, OptionalThreadContext.AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION),
+                    paramsProfileSize);
         }
 
         @OnReturn
         public static void onReturn(@BindReturn Object returnedObject,
-                                    @BindTraveler TraceEntry traceEntry) {
-            if (fileSizeWithinLimits) {
-                writeObjectXMLToFile(false, returnedObject, returnedObjectFilePath);
-                writeObjectProfileSizeToFile(getObjectProfileSize() - profileSizePre);
-                checkFileSizeLimit();
-            }
-            writeInvocationCountToFile();
-            invocationUuid = null;
-            traceEntry.end();
+                                    @BindTraveler Traveler traveler) {
+            long returnedProfileSize = writeObjectXMLToFile(false, returnedObject, returnedObjectFilePath);
+            writeObjectProfileSizeToFile(traveler.paramsProfileSize + returnedProfileSize);
+            InvocationContext.exit(TargetMethodAdvice.class);
+            traveler.traceEntry.end();
         }
 
         @OnThrow
         public static void onThrow(@BindThrowable Throwable throwable,
-                                   @BindTraveler TraceEntry traceEntry) {
-            traceEntry.endWithError(throwable);
+                                   @BindTraveler Traveler traveler) {
+            InvocationContext.exit(TargetMethodAdvice.class);
+            traveler.traceEntry.endWithError(throwable);
         }
 
         public static String extractClassNameFromTheExceptionMessage(String exceptionMessage) {
@@ -281,21 +248,7 @@ public class MethodAspect0Nested0 {
         }
 
         public static void registerConverterAtRuntime(String className) {
-            xStream.registerConverter(new Converter() {
-                @Override
-                public void marshal(Object o, HierarchicalStreamWriter hierarchicalStreamWriter, MarshallingContext marshallingContext) {
-                }
-
-                @Override
-                public Object unmarshal(HierarchicalStreamReader hierarchicalStreamReader, UnmarshallingContext unmarshallingContext) {
-                    return null;
-                }
-
-                @Override
-                public boolean canConvert(Class aClass) {
-                    return aClass.getCanonicalName().equals(className);
-                }
-            });
+            omittedTypes.omit(className);
         }
     }
 }
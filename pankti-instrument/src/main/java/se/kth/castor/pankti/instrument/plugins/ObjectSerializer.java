@@ -0,0 +1,50 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import com.thoughtworks.xstream.XStream;
+
+import java.io.StringWriter;
+
+/**
+ * This class serializes objects to XML with an XStream instance whose converters
+ * are no longer registered, which XStream supports from several threads at once.
+ * Each thread writes into its own buffer, reused from one capture to the next;
+ * a buffer that grew beyond the retained size is dropped after use, and a capture
+ * that starts while the buffer of its thread is in use gets a new one.
+ */
+public class ObjectSerializer {
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private final XStream xStream;
+    private final int maxRetainedBufferSize;
+    private final ThreadLocal<OutputBuffer> outputBuffers;
+
+    private static final class OutputBuffer {
+        final StringWriter writer = new StringWriter(INITIAL_BUFFER_SIZE);
+        boolean inUse;
+    }
+
+    public ObjectSerializer(XStream xStream, int maxRetainedBufferSize) {
+        this.xStream = xStream;
+        this.maxRetainedBufferSize = maxRetainedBufferSize;
+        this.outputBuffers = ThreadLocal.withInitial(OutputBuffer::new);
+    }
+
+    public String toXML(Object object) {
+        OutputBuffer outputBuffer = outputBuffers.get();
+        if (outputBuffer.inUse) {
+            return xStream.toXML(object);
+        }
+        outputBuffer.inUse = true;
+        StringBuffer buffer = outputBuffer.writer.getBuffer();
+        try {
+            xStream.toXML(object, outputBuffer.writer);
+            return buffer.toString();
+        } finally {
+            buffer.setLength(0);
+            if (buffer.capacity() > maxRetainedBufferSize) {
+                outputBuffers.remove();
+            } else {
+                outputBuffer.inUse = false;
+            }
+        }
+    }
+}
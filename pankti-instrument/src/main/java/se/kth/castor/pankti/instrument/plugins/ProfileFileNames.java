@@ -0,0 +1,49 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds the mapping from instrumented method paths to the
+ * unique codes used as object file names. The mapping is loaded from
+ * paths.properties once, and the file is only rewritten when a method
+ * is seen for the first time.
+ */
+final class ProfileFileNames {
+    private static final Map<String, String> uniqueCodes = loadUniqueCodes();
+
+    private ProfileFileNames() {
+    }
+
+    private static Map<String, String> loadUniqueCodes() {
+        Map<String, String> codes = new ConcurrentHashMap<>();
+        try {
+            Properties properties = AdviceTemplate.loadProperties();
+            for (String path : properties.stringPropertyNames()) {
+                codes.put(path, properties.getProperty(path));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return codes;
+    }
+
+    static String getUniqueCode(String path) throws IOException {
+        String uniqueCode = uniqueCodes.get(path);
+        if (uniqueCode != null)
+            return uniqueCode;
+        synchronized (ProfileFileNames.class) {
+            uniqueCode = uniqueCodes.get(path);
+            if (uniqueCode == null) {
+                uniqueCode = AdviceTemplate.generateShortFileName(AdviceTemplate.FILE_NAME_LENGTH);
+                uniqueCodes.put(path, uniqueCode);
+                Properties properties = new Properties();
+                properties.putAll(uniqueCodes);
+                AdviceTemplate.saveProperties(properties);
+            }
+        }
+        return uniqueCode;
+    }
+}
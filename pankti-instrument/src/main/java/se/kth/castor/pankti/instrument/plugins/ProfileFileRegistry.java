@@ -0,0 +1,328 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * This class keeps an append stream open for each object profile file,
+ * with a reusable buffer. Appended profiles are copied into the buffer,
+ * which is written to the file when it is full, when it has not been flushed
+ * for a while, and at JVM shutdown. If too many files are open, the least
+ * recently written one is closed, and reopened on its next append.
+ * Appended bytes are recorded in the capture budget, if there is one.
+ * Files are written through streams rather than FileChannels, because profiles
+ * are appended by application threads, and a FileChannel is closed for good
+ * when the thread writing to it is interrupted.
+ * <p>
+ * If compression is enabled, new files start with COMPRESSED_MAGIC and the
+ * buffer is written as a block: int uncompressed length, int compressed length,
+ * and the buffered bytes compressed with Deflater, so that each block can be
+ * decompressed, or skipped, on its own. Blocks are compressed with a single
+ * Deflater owned by the registry, rather than one per application thread, and
+ * it is ended when the files are closed. Files that already exist are appended
+ * to in the format they were created with. Compressed files are counted in
+ * the capture budget by the size of their blocks.
+ * <p>
+ * With a {@link ProfileJournal}, no file is opened: each flushed buffer is
+ * appended to the journal as a chunk of the file, and the journal compresses
+ * chunks instead of files.
+ */
+public class ProfileFileRegistry {
+    private final Map<String, ProfileFile> profileFiles = new ConcurrentHashMap<>();
+    private final AtomicInteger openFileCount = new AtomicInteger();
+    private final int bufferSize;
+    private final long flushIntervalMillis;
+    private final int maxOpenFiles;
+    private final CaptureBudget captureBudget;
+    private final boolean compress;
+    private final ProfileJournal journal;
+    public static final byte[] COMPRESSED_MAGIC = {'P', 'K', 'T', 'Z'};
+    // Blocks of all files are compressed with one deflater, under its lock, and it is ended at shutdown
+    private final Deflater deflater = new Deflater();
+    private byte[] blockBuffer = new byte[0];
+    private boolean isDeflaterEnded;
+
+    public ProfileFileRegistry(int bufferSize, long flushIntervalMillis, int maxOpenFiles) {
+        this(bufferSize, flushIntervalMillis, maxOpenFiles, null);
+    }
+
+    public ProfileFileRegistry(int bufferSize, long flushIntervalMillis, int maxOpenFiles,
+                               CaptureBudget captureBudget) {
+        this(bufferSize, flushIntervalMillis, maxOpenFiles, captureBudget, false);
+    }
+
+    public ProfileFileRegistry(int bufferSize, long flushIntervalMillis, int maxOpenFiles,
+                               CaptureBudget captureBudget, boolean compress) {
+        this(bufferSize, flushIntervalMillis, maxOpenFiles, captureBudget, compress, null);
+    }
+
+    public ProfileFileRegistry(int bufferSize, long flushIntervalMillis, int maxOpenFiles,
+                               CaptureBudget captureBudget, boolean compress, ProfileJournal journal) {
+        this.captureBudget = captureBudget;
+        this.journal = journal;
+        if (journal != null && captureBudget != null) {
+            captureBudget.measureStoredSizesWith(journal::storedSize);
+        }
+        this.compress = compress;
+        this.bufferSize = Math.max(1024, bufferSize);
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+        Housekeeper.scheduleAtFixedRate(this::flushStale, Math.max(10, flushIntervalMillis));
+        Housekeeper.onShutdown(Housekeeper.PHASE_FLUSH, this::closeAll);
+    }
+
+    final class ProfileFile {
+        private final String filePath;
+        private FileOutputStream out;
+        private volatile boolean isOpen;
+        private boolean compressed;
+        private boolean isFormatKnown;
+        private ByteBuffer buffer;
+        private long size = -1;
+        private volatile long lastWriteMillis;
+        private long lastFlushMillis = System.currentTimeMillis();
+
+        ProfileFile(String filePath) {
+            this.filePath = filePath;
+        }
+
+        boolean isOpen() {
+            return isOpen;
+        }
+
+        synchronized void append(byte[] bytes) throws IOException {
+            open();
+            if (bytes.length > buffer.remaining()) {
+                flush();
+            }
+            if (bytes.length > buffer.capacity() && journal != null) {
+                recordWritten(journal.append(filePath, bytes, bytes.length));
+            } else if (bytes.length > buffer.capacity() && compressed) {
+                writeBlock(bytes, bytes.length);
+            } else if (bytes.length > buffer.capacity()) {
+                write(bytes, bytes.length);
+                recordWritten(bytes.length);
+            } else {
+                buffer.put(bytes);
+                if (!compressed && journal == null) {
+                    recordWritten(bytes.length);
+                }
+            }
+            size += bytes.length;
+            lastWriteMillis = System.currentTimeMillis();
+            if (lastWriteMillis - lastFlushMillis >= flushIntervalMillis) {
+                flush();
+            }
+        }
+
+        private void open() throws IOException {
+            if (isOpen)
+                return;
+            if (journal != null) {
+                size = journal.size(filePath);
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocate(bufferSize);
+                }
+                isOpen = true;
+                openFileCount.incrementAndGet();
+                return;
+            }
+            out = new FileOutputStream(filePath, true);
+            size = new File(filePath).length();
+            // Decided once, the file keeps its format when it is reopened
+            if (!isFormatKnown) {
+                compressed = size == 0 ? compress : startsWithCompressedMagic();
+                isFormatKnown = true;
+            }
+            if (size == 0 && compressed) {
+                write(COMPRESSED_MAGIC, COMPRESSED_MAGIC.length);
+                recordWritten(COMPRESSED_MAGIC.length);
+                size = COMPRESSED_MAGIC.length;
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(bufferSize);
+            }
+            isOpen = true;
+            openFileCount.incrementAndGet();
+        }
+
+        private boolean startsWithCompressedMagic() throws IOException {
+            byte[] magic = new byte[COMPRESSED_MAGIC.length];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(filePath))) {
+                in.readFully(magic);
+            } catch (EOFException e) {
+                return false;
+            }
+            return Arrays.equals(COMPRESSED_MAGIC, magic);
+        }
+
+        private void write(byte[] bytes, int length) throws IOException {
+            out.write(bytes, 0, length);
+        }
+
+        private void writeBlock(byte[] bytes, int length) throws IOException {
+            synchronized (deflater) {
+                // Files appended to after shutdown are compressed with a deflater of their own
+                Deflater blockDeflater = isDeflaterEnded ? new Deflater() : deflater;
+                try {
+                    blockDeflater.reset();
+                    blockDeflater.setInput(bytes, 0, length);
+                    blockDeflater.finish();
+                    int blockLength = 8;
+                    while (!blockDeflater.finished()) {
+                        if (blockLength >= blockBuffer.length) {
+                            blockBuffer = Arrays.copyOf(blockBuffer, Math.max(length / 2 + 64, blockBuffer.length * 2));
+                        }
+                        blockLength += blockDeflater.deflate(blockBuffer, blockLength, blockBuffer.length - blockLength);
+                    }
+                    ByteBuffer header = ByteBuffer.wrap(blockBuffer, 0, 8);
+                    header.putInt(length);
+                    header.putInt(blockLength - 8);
+                    write(blockBuffer, blockLength);
+                    recordWritten(blockLength);
+                } finally {
+                    if (blockDeflater != deflater) {
+                        blockDeflater.end();
+                    }
+                }
+            }
+        }
+
+        private void recordWritten(long length) {
+            if (captureBudget != null) {
+                captureBudget.record(filePath, length);
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            lastFlushMillis = System.currentTimeMillis();
+            if (!isOpen || buffer.position() == 0)
+                return;
+            if (journal != null) {
+                recordWritten(journal.append(filePath, buffer.array(), buffer.position()));
+            } else if (compressed) {
+                writeBlock(buffer.array(), buffer.position());
+            } else {
+                write(buffer.array(), buffer.position());
+            }
+            buffer.clear();
+        }
+
+        synchronized void flushIfStale(long now) throws IOException {
+            if (now - lastFlushMillis >= flushIntervalMillis) {
+                flush();
+            }
+        }
+
+        synchronized void close() throws IOException {
+            if (!isOpen)
+                return;
+            flush();
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            isOpen = false;
+            buffer = null;
+            openFileCount.decrementAndGet();
+        }
+
+        synchronized long size() {
+            if (isOpen)
+                return size;
+            return journal != null ? journal.size(filePath) : new File(filePath).length();
+        }
+    }
+
+    public void append(String filePath, CharSequence text) {
+        append(filePath, text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void append(String filePath, byte[] bytes) {
+        ProfileFile profileFile = profileFiles.computeIfAbsent(filePath, ProfileFile::new);
+        if (!profileFile.isOpen() && openFileCount.get() >= maxOpenFiles) {
+            closeLeastRecentlyWritten();
+        }
+        try {
+            profileFile.append(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Size of the file in bytes, including what is still buffered (before compression)
+    public long size(String filePath) {
+        ProfileFile profileFile = profileFiles.get(filePath);
+        if (profileFile != null)
+            return profileFile.size();
+        return journal != null ? journal.size(filePath) : new File(filePath).length();
+    }
+
+    private void closeLeastRecentlyWritten() {
+        ProfileFile leastRecentlyWritten = null;
+        for (ProfileFile profileFile : profileFiles.values()) {
+            if (profileFile.isOpen() && (leastRecentlyWritten == null ||
+                    profileFile.lastWriteMillis < leastRecentlyWritten.lastWriteMillis)) {
+                leastRecentlyWritten = profileFile;
+            }
+        }
+        if (leastRecentlyWritten != null) {
+            try {
+                leastRecentlyWritten.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void flushStale() {
+        long now = System.currentTimeMillis();
+        for (ProfileFile profileFile : profileFiles.values()) {
+            try {
+                profileFile.flushIfStale(now);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void flushAll() {
+        for (ProfileFile profileFile : profileFiles.values()) {
+            try {
+                profileFile.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void closeAll() {
+        for (ProfileFile profileFile : profileFiles.values()) {
+            try {
+                profileFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        synchronized (deflater) {
+            if (!isDeflaterEnded) {
+                deflater.end();
+                isDeflaterEnded = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * This class stores the object profile files of all methods in one journal,
+ * instead of one file per method and kind of object. The journal is a directory
+ * of segments, each starting with MAGIC, to which blocks of the profile files
+ * are appended as chunks: int length, int stored length, and the stored bytes,
+ * compressed with Deflater if compression is enabled. Each run appends to new
+ * segments, started when the current one is larger than the segment size.
+ * For each chunk, a line is appended to the index file:
+ * file name, segment number, offset, stored length, length, and 1 if compressed,
+ * separated by tabs. The chunks of a file, in the order of the index, make up
+ * its content, as it would have been written to the file itself.
+ * Like profile files, segments and the index are written through streams,
+ * which are not closed when the thread appending a chunk is interrupted.
+ */
+public class ProfileJournal {
+    public static final String DIRECTORY_NAME = "journal";
+    public static final String INDEX_FILE_NAME = "journal.idx";
+    static final byte[] MAGIC = {'P', 'K', 'T', 'J'};
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private final File directory;
+    private final long segmentSize;
+    private final boolean compress;
+    // Length of each file in the journal, before compression
+    private final Map<String, Long> sizes = new HashMap<>();
+    // Bytes of each file in the segments, including chunk headers
+    private final Map<String, Long> storedSizes = new HashMap<>();
+    private final Deflater deflater = new Deflater();
+    private byte[] chunk = new byte[0];
+    private int segmentNumber;
+    private FileOutputStream segment;
+    private long segmentPosition;
+    private FileOutputStream index;
+
+    public ProfileJournal(String directory, long segmentSize, boolean compress) {
+        this.directory = new File(directory);
+        this.segmentSize = Math.max(1 << 16, segmentSize);
+        this.compress = compress;
+        readIndex();
+    }
+
+    public static String getSegmentFileName(int segmentNumber) {
+        return String.format("segment-%06d.pkj", segmentNumber);
+    }
+
+    // Sizes of the files, and the last segment, from the index written by previous runs
+    private void readIndex() {
+        File indexFile = new File(directory, INDEX_FILE_NAME);
+        if (!indexFile.exists())
+            return;
+        try {
+            List<String> lines = Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] fields = line.split("\t");
+                if (fields.length < 6)
+                    continue;
+                sizes.merge(fields[0], Long.parseLong(fields[4]), Long::sum);
+                storedSizes.merge(fields[0], CHUNK_HEADER_SIZE + Long.parseLong(fields[3]), Long::sum);
+                segmentNumber = Math.max(segmentNumber, Integer.parseInt(fields[1]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String getFileName(String filePath) {
+        return new File(filePath).getName();
+    }
+
+    public synchronized long size(String filePath) {
+        return sizes.getOrDefault(getFileName(filePath), 0L);
+    }
+
+    public synchronized long storedSize(String filePath) {
+        return storedSizes.getOrDefault(getFileName(filePath), 0L);
+    }
+
+    // Returns the number of bytes appended to the segment
+    public synchronized long append(String filePath, byte[] bytes, int length) throws IOException {
+        String fileName = getFileName(filePath);
+        int storedLength = length;
+        byte[] stored = bytes;
+        int storedOffset = 0;
+        if (compress) {
+            storedLength = deflate(bytes, length);
+            stored = chunk;
+            storedOffset = CHUNK_HEADER_SIZE;
+        }
+        if (segment == null || (segmentPosition > MAGIC.length
+                && segmentPosition + CHUNK_HEADER_SIZE + storedLength > segmentSize)) {
+            openNextSegment();
+        }
+        long offset = segmentPosition;
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+        header.putInt(length).putInt(storedLength);
+        segment.write(header.array());
+        segment.write(stored, storedOffset, storedLength);
+        segmentPosition += CHUNK_HEADER_SIZE + storedLength;
+        String indexLine = fileName + "\t" + segmentNumber + "\t" + offset + "\t" + storedLength + "\t" +
+                length + "\t" + (compress ? 1 : 0) + "\n";
+        index.write(indexLine.getBytes(StandardCharsets.UTF_8));
+        sizes.merge(fileName, (long) length, Long::sum);
+        storedSizes.merge(fileName, (long) CHUNK_HEADER_SIZE + storedLength, Long::sum);
+        return CHUNK_HEADER_SIZE + storedLength;
+    }
+
+    // Compresses the bytes after the chunk header, returns the compressed length
+    private int deflate(byte[] bytes, int length) {
+        deflater.reset();
+        deflater.setInput(bytes, 0, length);
+        deflater.finish();
+        int chunkLength = CHUNK_HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (chunkLength >= chunk.length) {
+                chunk = Arrays.copyOf(chunk, Math.max(length / 2 + 64, chunk.length * 2));
+            }
+            chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+        }
+        return chunkLength - CHUNK_HEADER_SIZE;
+    }
+
+    private void openNextSegment() throws IOException {
+        if (segment != null) {
+            segment.close();
+        }
+        if (index == null) {
+            Files.createDirectories(directory.toPath());
+            index = new FileOutputStream(new File(directory, INDEX_FILE_NAME), true);
+        }
+        // A segment left without indexed chunks by an earlier run is skipped
+        File segmentFile;
+        do {
+            segmentNumber++;
+            segmentFile = new File(directory, getSegmentFileName(segmentNumber));
+        } while (segmentFile.exists());
+        segment = new FileOutputStream(segmentFile);
+        segment.write(MAGIC);
+        segmentPosition = MAGIC.length;
+    }
+
+    // A later append starts a new segment
+    public synchronized void close() {
+        try {
+            if (segment != null) {
+                segment.close();
+                segment = null;
+            }
+            if (index != null) {
+                index.close();
+                index = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
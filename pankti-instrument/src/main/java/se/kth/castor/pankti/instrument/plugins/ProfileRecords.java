@@ -0,0 +1,102 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class appends object profiles as binary, length-prefixed records,
+ * an alternative to XML files with attributes injected into the root element.
+ * A file starts with MAGIC, followed by records, each starting with its kind:
+ * - SECTION: written once per run, names defined earlier in the file are discarded
+ * - DEFINITION: int id, UTF name, defines a method or type name before its first use
+ * - OBJECT: int method id, int type id, long run id, long invocation id,
+ * long timestamp, int length, followed by the XML of the object in UTF-8
+ * Ids and timestamps are in the header of the record, so the XML is kept as
+ * written by XStream, and can be embedded in generated tests as is.
+ */
+public class ProfileRecords {
+    public static final byte[] MAGIC = {'P', 'K', 'T', 'R'};
+    public static final byte SECTION = 0;
+    public static final byte DEFINITION = 1;
+    public static final byte OBJECT = 2;
+    private final ProfileFileRegistry profileFiles;
+    private final Map<String, Dictionary> dictionaries = new ConcurrentHashMap<>();
+
+    public ProfileRecords(ProfileFileRegistry profileFiles) {
+        this.profileFiles = profileFiles;
+    }
+
+    // Fields of the record header, known when the object is captured
+    public static final class Header {
+        final String methodFQN;
+        final String typeName;
+        final long invocationId;
+        final long timestamp;
+
+        public Header(String methodFQN, Object capturedObject, long invocationId, long timestamp) {
+            this(methodFQN, invocationId, timestamp,
+                    capturedObject == null ? "null" : capturedObject.getClass().getName());
+        }
+
+        // Used when a header is read back, e.g., from the ring buffer
+        Header(String methodFQN, long invocationId, long timestamp, String typeName) {
+            this.methodFQN = methodFQN;
+            this.typeName = typeName;
+            this.invocationId = invocationId;
+            this.timestamp = timestamp;
+        }
+    }
+
+    // Names defined in a file during this run
+    private static final class Dictionary {
+        final Map<String, Integer> ids = new HashMap<>();
+    }
+
+    // Definitions are appended under the same lock as the record that uses them first
+    public void append(String filePath, Header header, String xml) {
+        Dictionary dictionary = dictionaries.computeIfAbsent(filePath, k -> new Dictionary());
+        synchronized (dictionary) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(xml.length() + 64);
+                DataOutputStream out = new DataOutputStream(bytes);
+                if (dictionary.ids.isEmpty()) {
+                    if (profileFiles.size(filePath) == 0) {
+                        out.write(MAGIC);
+                    }
+                    out.writeByte(SECTION);
+                }
+                int methodId = define(dictionary, out, header.methodFQN);
+                int typeId = define(dictionary, out, header.typeName);
+                byte[] payload = xml.getBytes(StandardCharsets.UTF_8);
+                out.writeByte(OBJECT);
+                out.writeInt(methodId);
+                out.writeInt(typeId);
+                out.writeLong(InvocationIds.getRunId());
+                out.writeLong(header.invocationId);
+                out.writeLong(header.timestamp);
+                out.writeInt(payload.length);
+                out.write(payload);
+                profileFiles.append(filePath, bytes.toByteArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static int define(Dictionary dictionary, DataOutputStream out, String name) throws IOException {
+        Integer id = dictionary.ids.get(name);
+        if (id == null) {
+            id = dictionary.ids.size();
+            dictionary.ids.put(name, id);
+            out.writeByte(DEFINITION);
+            out.writeInt(id);
+            out.writeUTF(name);
+        }
+        return id;
+    }
+}
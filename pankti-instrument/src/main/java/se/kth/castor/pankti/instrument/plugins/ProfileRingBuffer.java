@@ -0,0 +1,191 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps serialized object profiles in a direct (off-heap) buffer
+ * until a single consumer drains them to their files. Threads that capture
+ * claim space for a record with a compare-and-set on the tail, copy the record
+ * into the buffer, then commit it by publishing its length. Records start on
+ * ALIGNMENT-byte boundaries; a record that would wrap around the end of the
+ * buffer is preceded by padding. A record larger than the buffer claims a
+ * header only, and its XML is kept on the heap until the header is drained,
+ * so that records are always drained in the order of their claim.
+ * File paths and names of the record headers are stored as ids.
+ */
+public class ProfileRingBuffer {
+    private static final Logger logger = Logger.getLogger(ProfileRingBuffer.class);
+    static final int ALIGNMENT = 64;
+    // A direct buffer holds at most Integer.MAX_VALUE bytes
+    static final long MAX_SIZE_MB = Integer.MAX_VALUE >> 20;
+    // Path id, method id, type id, invocation id, timestamp, length of the XML
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 4;
+    private static final int NO_HEADER = -1;
+    // Length of the XML of a record kept on the heap
+    private static final int OVERSIZED = -1;
+    private final ByteBuffer buffer;
+    private final int capacity;
+    // The length of each committed record, or minus the length of padding, by start slot
+    private final AtomicIntegerArray committedLengths;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final ThreadLocal<ByteBuffer> views;
+    private final ByteBuffer drainView;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> names = new CopyOnWriteArrayList<>();
+    // XML of records larger than the buffer, by the position of their header
+    private final Map<Long, byte[]> oversizedRecords = new ConcurrentHashMap<>();
+
+    public enum Result {APPENDED, FULL}
+
+    public interface Consumer {
+        void accept(String filePath, ProfileRecords.Header header, String xml);
+    }
+
+    public ProfileRingBuffer(int capacity) {
+        this.capacity = Math.max(ALIGNMENT, capacity / ALIGNMENT * ALIGNMENT);
+        this.buffer = ByteBuffer.allocateDirect(this.capacity);
+        this.committedLengths = new AtomicIntegerArray(this.capacity / ALIGNMENT);
+        this.views = ThreadLocal.withInitial(buffer::duplicate);
+        this.drainView = buffer.duplicate();
+    }
+
+    // Sizes are configured in MB, and kept between 1 MB and the largest direct buffer
+    public static ProfileRingBuffer ofSizeMB(long sizeMB) {
+        return new ProfileRingBuffer(capacityOfSizeMB(sizeMB));
+    }
+
+    static int capacityOfSizeMB(long sizeMB) {
+        if (sizeMB > MAX_SIZE_MB) {
+            logger.warn("Ring buffer size of " + sizeMB + " MB is larger than a direct buffer can be, using "
+                    + MAX_SIZE_MB + " MB");
+            return (int) (MAX_SIZE_MB << 20);
+        }
+        if (sizeMB < 1) {
+            logger.warn("Ring buffer size of " + sizeMB + " MB is too small, using 1 MB");
+            return 1 << 20;
+        }
+        return (int) (sizeMB << 20);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getUsedBytes() {
+        return tail.get() - head;
+    }
+
+    public Result offer(String filePath, ProfileRecords.Header header, String xml) {
+        byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+        long size = align(HEADER_SIZE + bytes.length);
+        boolean isOversized = size > capacity;
+        if (isOversized) {
+            size = align(HEADER_SIZE);
+        }
+        long position;
+        long padding;
+        while (true) {
+            position = tail.get();
+            int index = (int) (position % capacity);
+            padding = index + size > capacity ? capacity - index : 0;
+            if (position + padding + size - head > capacity)
+                return Result.FULL;
+            if (tail.compareAndSet(position, position + padding + size))
+                break;
+        }
+        if (padding > 0) {
+            committedLengths.lazySet(slot(position), (int) -padding);
+        }
+        int start = (int) ((position + padding) % capacity);
+        if (isOversized) {
+            oversizedRecords.put(position + padding, bytes);
+        }
+        ByteBuffer view = views.get();
+        view.clear().position(start);
+        view.putInt(getId(filePath));
+        if (header == null) {
+            view.putInt(NO_HEADER).putInt(NO_HEADER).putLong(0).putLong(0);
+        } else {
+            view.putInt(getId(header.methodFQN)).putInt(getId(header.typeName))
+                    .putLong(header.invocationId).putLong(header.timestamp);
+        }
+        if (isOversized) {
+            view.putInt(OVERSIZED);
+        } else {
+            view.putInt(bytes.length).put(bytes);
+        }
+        // Publishing the length makes the record visible to the consumer
+        committedLengths.lazySet(start / ALIGNMENT, (int) size);
+        return Result.APPENDED;
+    }
+
+    // Passes the committed records to the consumer, in the order of their claim
+    public synchronized int drain(Consumer consumer) {
+        int drained = 0;
+        while (true) {
+            long position = head;
+            int slot = slot(position);
+            int length = committedLengths.get(slot);
+            if (length == 0)
+                return drained;
+            committedLengths.set(slot, 0);
+            if (length < 0) {
+                head = position - length;
+                continue;
+            }
+            drainView.clear().position((int) (position % capacity));
+            String filePath = names.get(drainView.getInt());
+            int methodId = drainView.getInt();
+            int typeId = drainView.getInt();
+            long invocationId = drainView.getLong();
+            long timestamp = drainView.getLong();
+            int xmlLength = drainView.getInt();
+            byte[] bytes;
+            if (xmlLength == OVERSIZED) {
+                bytes = oversizedRecords.remove(position);
+            } else {
+                bytes = new byte[xmlLength];
+                drainView.get(bytes);
+            }
+            head = position + length;
+            ProfileRecords.Header header = methodId == NO_HEADER ? null :
+                    new ProfileRecords.Header(names.get(methodId), invocationId, timestamp, names.get(typeId));
+            consumer.accept(filePath, header, new String(bytes, StandardCharsets.UTF_8));
+            drained++;
+        }
+    }
+
+    private int slot(long position) {
+        return (int) (position % capacity) / ALIGNMENT;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    // Ids are assigned once per name, and are published before any record that uses them
+    private int getId(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        synchronized (names) {
+            id = ids.get(name);
+            if (id == null) {
+                id = names.size();
+                names.add(name);
+                ids.put(name, id);
+            }
+            return id;
+        }
+    }
+}
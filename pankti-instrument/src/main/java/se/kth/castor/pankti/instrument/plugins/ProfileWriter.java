@@ -0,0 +1,325 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class appends serialized object profiles to their files,
+ * through the channels kept open by {@link ProfileFileRegistry}.
+ * In async mode, the advice serializes the captured object, so that the
+ * profile is a snapshot of its state at that point of the invocation, and
+ * hands the serialized profile over to a bounded queue. A single writer thread,
+ * shared by all aspects, appends queued profiles to their files in batches.
+ * Profiles of the different files of a method are paired by their index, so
+ * an invocation is admitted or dropped as a whole, before its first profile,
+ * and the profiles of an admitted invocation wait for room instead of being dropped.
+ * Profiles written after shutdown are appended on the calling thread.
+ * Profiles with a record header are appended as binary records
+ * through {@link ProfileRecords}, if the writer has one.
+ * With a {@link ProfileRingBuffer}, profiles serialized by the advice are
+ * copied off-heap, and a drainer thread appends them to their files, in the
+ * order in which they were written.
+ */
+public class ProfileWriter {
+    private static final Logger logger = Logger.getLogger(ProfileWriter.class);
+    private static final int BATCH_SIZE = 256;
+    private static final long DRAIN_WAIT_NANOS = 100_000;
+    private static final long POLL_WAIT_MILLIS = 50;
+    private final ProfileFileRegistry profileFiles;
+    private final ProfileRecords profileRecords;
+    private final boolean async;
+    private final boolean dropOnFull;
+    private final BlockingQueue<PendingProfile> queue;
+    private final ProfileRingBuffer ringBuffer;
+    private final int queueCapacity;
+    private final LongAdder droppedInvocations = new LongAdder();
+    private final Object writeLock = new Object();
+    private volatile Thread writerThread;
+    private volatile Thread drainerThread;
+    // Cleared at shutdown, threads are never interrupted since they write to interruptible channels
+    private volatile boolean running = true;
+
+    static final class PendingProfile {
+        final String filePath;
+        final ProfileRecords.Header header;
+        final String xml;
+
+        PendingProfile(String filePath, ProfileRecords.Header header, String xml) {
+            this.filePath = filePath;
+            this.header = header;
+            this.xml = xml;
+        }
+    }
+
+    public ProfileWriter(ProfileFileRegistry profileFiles, boolean async, int queueCapacity, boolean dropOnFull) {
+        this(profileFiles, async, queueCapacity, dropOnFull, null);
+    }
+
+    public ProfileWriter(ProfileFileRegistry profileFiles, boolean async, int queueCapacity, boolean dropOnFull,
+                         ProfileRecords profileRecords) {
+        this(profileFiles, async, queueCapacity, dropOnFull, profileRecords, null);
+    }
+
+    public ProfileWriter(ProfileFileRegistry profileFiles, boolean async, int queueCapacity, boolean dropOnFull,
+                         ProfileRecords profileRecords, ProfileRingBuffer ringBuffer) {
+        this.profileFiles = profileFiles;
+        this.ringBuffer = ringBuffer;
+        this.profileRecords = profileRecords;
+        this.async = async;
+        this.dropOnFull = dropOnFull;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.queue = new ArrayBlockingQueue<>(this.queueCapacity);
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    // Whether profiles are written as binary records, the aspects then pass a record header
+    public boolean isBinary() {
+        return profileRecords != null;
+    }
+
+    public long getDroppedInvocationCount() {
+        return droppedInvocations.sum();
+    }
+
+    public int getPendingProfileCount() {
+        return queue.size();
+    }
+
+    // Size of a serialized profile in bytes, as appended in UTF-8, without encoding it
+    public static long sizeOf(String xml) {
+        long size = 0;
+        for (int i = 0; i < xml.length(); i++) {
+            char c = xml.charAt(i);
+            if (c < 0x80) {
+                size++;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < xml.length()
+                    && Character.isLowSurrogate(xml.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    // Append an already serialized profile on the calling thread, or copy it to the ring buffer
+    public void write(String filePath, String xml) {
+        write(filePath, null, xml);
+    }
+
+    public void write(String filePath, ProfileRecords.Header header, String xml) {
+        if (ringBuffer == null) {
+            append(filePath, header, xml);
+            return;
+        }
+        if (running) {
+            startDrainerThread();
+        }
+        // The invocation was admitted, its profile waits for the drainer instead of being dropped
+        while (ringBuffer.offer(filePath, header, xml) == ProfileRingBuffer.Result.FULL) {
+            if (running) {
+                LockSupport.parkNanos(DRAIN_WAIT_NANOS);
+            } else {
+                ringBuffer.drain(this::append);
+            }
+        }
+        // The drainer is stopped after shutdown, records are drained by the threads that write them
+        if (!running) {
+            ringBuffer.drain(this::append);
+        }
+    }
+
+    private void append(String filePath, ProfileRecords.Header header, String xml) {
+        if (header != null && profileRecords != null) {
+            profileRecords.append(filePath, header, xml);
+        } else {
+            profileFiles.append(filePath, xml);
+        }
+    }
+
+    /**
+     * Called once per invocation, in @IsEnabled, so that all profiles of an invocation
+     * are written or none is. With dropOnFull, an invocation is only admitted while
+     * at least half of the queue, or of the ring buffer, is free.
+     */
+    public boolean admit() {
+        if (!dropOnFull || !running)
+            return true;
+        if (async && queue.remainingCapacity() < Math.max(1, queueCapacity / 2)
+                || ringBuffer != null && ringBuffer.getUsedBytes() > ringBuffer.getCapacity() / 2) {
+            droppedInvocations.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Queue a profile serialized by the advice, to be appended on the writer thread
+    public void submit(String filePath, String xml) {
+        submit(filePath, null, xml);
+    }
+
+    public void submit(String filePath, ProfileRecords.Header header, String xml) {
+        PendingProfile pendingProfile = new PendingProfile(filePath, header, xml);
+        if (!running) {
+            writeAfterShutdown(pendingProfile);
+            return;
+        }
+        startWriterThread();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(pendingProfile);
+                break;
+            } catch (InterruptedException e) {
+                // The invocation was admitted, its profile is not dropped
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // Shutdown may have written the queue before this profile was added
+        if (!running) {
+            writeAfterShutdown(null);
+        }
+    }
+
+    // The writer thread is stopped, queued profiles are written first
+    private void writeAfterShutdown(PendingProfile pendingProfile) {
+        synchronized (writeLock) {
+            flushQueue();
+            if (pendingProfile != null) {
+                append(pendingProfile.filePath, pendingProfile.header, pendingProfile.xml);
+            }
+        }
+    }
+
+    private void startWriterThread() {
+        if (writerThread != null)
+            return;
+        synchronized (this) {
+            if (writerThread != null)
+                return;
+            Thread thread = new Thread(this::drainContinuously, "pankti-profile-writer");
+            thread.setDaemon(true);
+            thread.start();
+            Housekeeper.onShutdown(Housekeeper.PHASE_DRAIN, this::shutdown);
+            writerThread = thread;
+        }
+    }
+
+    private void startDrainerThread() {
+        if (drainerThread != null)
+            return;
+        synchronized (this) {
+            if (drainerThread != null)
+                return;
+            Thread thread = new Thread(this::drainRingBufferContinuously, "pankti-ring-drainer");
+            thread.setDaemon(true);
+            thread.start();
+            Housekeeper.onShutdown(Housekeeper.PHASE_DRAIN, this::shutdown);
+            drainerThread = thread;
+        }
+    }
+
+    // The advice never waits for the drainer, which polls the ring buffer when it is empty
+    private void drainRingBufferContinuously() {
+        while (running) {
+            try {
+                if (ringBuffer.drain(this::append) == 0) {
+                    LockSupport.parkNanos(DRAIN_WAIT_NANOS);
+                }
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private void drainContinuously() {
+        List<PendingProfile> batch = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                PendingProfile pendingProfile = queue.poll(POLL_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                if (pendingProfile == null)
+                    continue;
+                batch.add(pendingProfile);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                // Not interrupted by shutdown, keep writing until it stops the thread
+            } catch (Throwable t) {
+                t.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // Let the writer threads finish their current batch, then write what is still queued
+    public void shutdown() {
+        running = false;
+        for (Thread thread : new Thread[]{writerThread, drainerThread}) {
+            if (thread != null) {
+                LockSupport.unpark(thread);
+                try {
+                    thread.join(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        flush();
+    }
+
+    // Write everything that is still queued
+    public void flush() {
+        if (ringBuffer != null) {
+            ringBuffer.drain(this::append);
+        }
+        flushQueue();
+        long dropped = getDroppedInvocationCount();
+        if (dropped > 0) {
+            logger.warn("Dropped the object profiles of " + dropped + " invocations because the capture queue or ring buffer was full");
+        }
+    }
+
+    private void flushQueue() {
+        List<PendingProfile> batch = new ArrayList<>(BATCH_SIZE);
+        while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<PendingProfile> batch) {
+        synchronized (writeLock) {
+            Map<String, StringBuilder> profilesByFile = new LinkedHashMap<>();
+            for (PendingProfile pendingProfile : batch) {
+                if (pendingProfile.header != null && profileRecords != null) {
+                    profileRecords.append(pendingProfile.filePath, pendingProfile.header, pendingProfile.xml);
+                } else {
+                    profilesByFile.computeIfAbsent(pendingProfile.filePath, k -> new StringBuilder())
+                            .append(pendingProfile.xml);
+                }
+            }
+            for (Map.Entry<String, StringBuilder> entry : profilesByFile.entrySet()) {
+                profileFiles.append(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
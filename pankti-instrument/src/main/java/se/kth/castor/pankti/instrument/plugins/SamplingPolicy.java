@@ -0,0 +1,177 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.glowroot.agent.plugin.api.Logger;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class decides which invocations of an instrumented method are captured.
+ * Policies are specified as "name:argument":
+ * - "all": every invocation
+ * - "first:N": the first N invocations
+ * - "probability:P": each invocation with probability P (between 0 and 1)
+ * - "rate:N": at most N invocations per second (token bucket, with a burst of N)
+ * - "reservoir:K": invocation n with probability K/n, as decided by reservoir sampling
+ * - "distinct:N": the first N invocations with distinct parameters (by hash)
+ */
+public abstract class SamplingPolicy {
+    private static final Logger logger = Logger.getLogger(SamplingPolicy.class);
+
+    public abstract boolean shouldCapture(Object parameterObjects);
+
+    /**
+     * The policy for a method is read from "sampling.method.<methodFQN>",
+     * falling back to the policy configured for its kind of aspect
+     */
+    public static SamplingPolicy forMethod(String methodFQN, String kindKey, String defaultSpec) {
+        String spec = CaptureConfig.getString(CaptureConfig.SAMPLING_METHOD_PREFIX + methodFQN,
+                CaptureConfig.getString(kindKey, defaultSpec));
+        try {
+            return parse(spec);
+        } catch (IllegalArgumentException e) {
+            logger.warn(e.getMessage() + " for " + methodFQN + ", using " + defaultSpec);
+            return parse(defaultSpec);
+        }
+    }
+
+    public static SamplingPolicy parse(String spec) {
+        String[] parts = spec.trim().split(":", 2);
+        String name = parts[0].trim().toLowerCase();
+        if (name.equals("all"))
+            return new All();
+        if (parts.length < 2)
+            throw new IllegalArgumentException("Invalid sampling policy \"" + spec + "\"");
+        try {
+            String argument = parts[1].trim();
+            switch (name) {
+                case "first":
+                    return new FirstN(Integer.parseInt(argument));
+                case "probability":
+                    return new Probability(Double.parseDouble(argument));
+                case "rate":
+                    return new Rate(Double.parseDouble(argument));
+                case "reservoir":
+                    return new Reservoir(Integer.parseInt(argument));
+                case "distinct":
+                    return new DistinctParameters(Integer.parseInt(argument));
+                default:
+                    throw new IllegalArgumentException("Unknown sampling policy \"" + spec + "\"");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid sampling policy \"" + spec + "\"");
+        }
+    }
+
+    static final class All extends SamplingPolicy {
+        @Override
+        public boolean shouldCapture(Object parameterObjects) {
+            return true;
+        }
+    }
+
+    static final class FirstN extends SamplingPolicy {
+        private final int limit;
+        private final AtomicInteger captured = new AtomicInteger();
+
+        FirstN(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean shouldCapture(Object parameterObjects) {
+            // Checked first, so that the counter stops growing once the limit is reached
+            return captured.get() < limit && captured.incrementAndGet() <= limit;
+        }
+    }
+
+    static final class Probability extends SamplingPolicy {
+        private final double probability;
+
+        Probability(double probability) {
+            this.probability = probability;
+        }
+
+        @Override
+        public boolean shouldCapture(Object parameterObjects) {
+            return ThreadLocalRandom.current().nextDouble() < probability;
+        }
+    }
+
+    static final class Rate extends SamplingPolicy {
+        private final long nanosPerToken;
+        private final long burstNanos;
+        // Time at which all tokens taken so far are replenished
+        private final AtomicLong replenishedAt = new AtomicLong(Long.MIN_VALUE / 2);
+
+        Rate(double perSecond) {
+            if (perSecond <= 0)
+                throw new NumberFormatException();
+            this.nanosPerToken = Math.max(1L, (long) (1_000_000_000L / perSecond));
+            this.burstNanos = nanosPerToken * Math.max(1L, (long) perSecond);
+        }
+
+        @Override
+        public boolean shouldCapture(Object parameterObjects) {
+            long now = System.nanoTime();
+            while (true) {
+                long current = replenishedAt.get();
+                long next = Math.max(current, now) + nanosPerToken;
+                if (next - now > burstNanos)
+                    return false;
+                if (replenishedAt.compareAndSet(current, next))
+                    return true;
+            }
+        }
+    }
+
+    static final class Reservoir extends SamplingPolicy {
+        private final int size;
+        private final AtomicLong seen = new AtomicLong();
+
+        Reservoir(int size) {
+            this.size = size;
+        }
+
+        // Profiles are appended, so earlier samples are kept rather than replaced
+        @Override
+        public boolean shouldCapture(Object parameterObjects) {
+            long n = seen.incrementAndGet();
+            return n <= size || ThreadLocalRandom.current().nextLong(n) < size;
+        }
+    }
+
+    static final class DistinctParameters extends SamplingPolicy {
+        private final int limit;
+        private final Set<Integer> parameterHashes = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger captured = new AtomicInteger();
+
+        DistinctParameters(int limit) {
+            this.limit = limit;
+        }
+
+        static int hash(Object parameterObjects) {
+            if (parameterObjects instanceof Object[])
+                return Arrays.deepHashCode((Object[]) parameterObjects);
+            return Objects.hashCode(parameterObjects);
+        }
+
+        @Override
+        public boolean shouldCapture(Object parameterObjects) {
+            if (captured.get() >= limit)
+                return false;
+            int hash;
+            try {
+                hash = hash(parameterObjects);
+            } catch (RuntimeException e) {
+                return false;
+            }
+            return parameterHashes.add(hash) && captured.incrementAndGet() <= limit;
+        }
+    }
+}
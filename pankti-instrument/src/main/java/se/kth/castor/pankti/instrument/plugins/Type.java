@@ -6,7 +6,6 @@ public enum Type {
     PARAMS,
     RETURNED,
     INVOKED_METHODS,
-    INVOCATION_COUNT,
     OBJECT_PROFILE_SIZE,
     LIBRARY_METHOD_INV
 }
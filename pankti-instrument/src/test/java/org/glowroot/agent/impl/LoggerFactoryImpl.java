@@ -0,0 +1,181 @@
+package org.glowroot.agent.impl;
+
+import org.glowroot.agent.plugin.api.Logger;
+import org.glowroot.agent.plugin.api.internal.LoggerFactory;
+
+/**
+ * Stands in for the logger factory of the Glowroot agent, which is not on the
+ * test classpath, so that classes logging through {@link Logger} can be tested.
+ * Messages at info level and above are printed to stderr.
+ */
+public class LoggerFactoryImpl implements LoggerFactory {
+
+    @Override
+    public Logger getLogger(Class<?> clazz) {
+        return new StderrLogger(clazz.getName());
+    }
+
+    static class StderrLogger extends Logger {
+        private final String name;
+
+        StderrLogger(String name) {
+            this.name = name;
+        }
+
+        private void print(String level, String format, Object... args) {
+            StringBuilder message = new StringBuilder(format);
+            for (Object arg : args) {
+                int placeholder = message.indexOf("{}");
+                if (arg instanceof Throwable || placeholder < 0)
+                    continue;
+                message.replace(placeholder, placeholder + 2, String.valueOf(arg));
+            }
+            System.err.println(level + " " + name + " - " + message);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean isTraceEnabled() {
+            return false;
+        }
+
+        @Override
+        public void trace(String msg) {
+        }
+
+        @Override
+        public void trace(String format, Object arg) {
+        }
+
+        @Override
+        public void trace(String format, Object arg1, Object arg2) {
+        }
+
+        @Override
+        public void trace(String format, Object... arguments) {
+        }
+
+        @Override
+        public void trace(String msg, Throwable t) {
+        }
+
+        @Override
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        @Override
+        public void debug(String msg) {
+        }
+
+        @Override
+        public void debug(String format, Object arg) {
+        }
+
+        @Override
+        public void debug(String format, Object arg1, Object arg2) {
+        }
+
+        @Override
+        public void debug(String format, Object... arguments) {
+        }
+
+        @Override
+        public void debug(String msg, Throwable t) {
+        }
+
+        @Override
+        public boolean isInfoEnabled() {
+            return true;
+        }
+
+        @Override
+        public void info(String msg) {
+            print("INFO", msg);
+        }
+
+        @Override
+        public void info(String format, Object arg) {
+            print("INFO", format, arg);
+        }
+
+        @Override
+        public void info(String format, Object arg1, Object arg2) {
+            print("INFO", format, arg1, arg2);
+        }
+
+        @Override
+        public void info(String format, Object... arguments) {
+            print("INFO", format, arguments);
+        }
+
+        @Override
+        public void info(String msg, Throwable t) {
+            print("INFO", msg, t);
+        }
+
+        @Override
+        public boolean isWarnEnabled() {
+            return true;
+        }
+
+        @Override
+        public void warn(String msg) {
+            print("WARN", msg);
+        }
+
+        @Override
+        public void warn(String format, Object arg) {
+            print("WARN", format, arg);
+        }
+
+        @Override
+        public void warn(String format, Object... arguments) {
+            print("WARN", format, arguments);
+        }
+
+        @Override
+        public void warn(String format, Object arg1, Object arg2) {
+            print("WARN", format, arg1, arg2);
+        }
+
+        @Override
+        public void warn(String msg, Throwable t) {
+            print("WARN", msg, t);
+        }
+
+        @Override
+        public boolean isErrorEnabled() {
+            return true;
+        }
+
+        @Override
+        public void error(String msg) {
+            print("ERROR", msg);
+        }
+
+        @Override
+        public void error(String format, Object arg) {
+            print("ERROR", format, arg);
+        }
+
+        @Override
+        public void error(String format, Object arg1, Object arg2) {
+            print("ERROR", format, arg1, arg2);
+        }
+
+        @Override
+        public void error(String format, Object... arguments) {
+            print("ERROR", format, arguments);
+        }
+
+        @Override
+        public void error(String msg, Throwable t) {
+            print("ERROR", msg, t);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package se.kth.castor.pankti.instrument.plugins;
 
 import org.junit.jupiter.api.Test;
 
+import java.io.IOException;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -11,17 +12,27 @@ public class AdviceTemplateTest {
     static final String pathName = "methodFQN";
     static final Map<Type, String> files = AdviceTemplate.setUpFiles(pathName);
 
-    public long filterFileByExtension(String extension, Map<Type, String> fileMap) {
-        return fileMap.values().stream().filter(v -> v.contains(pathName) & v.endsWith(extension)).count();
+    public long filterFileByExtension(String extension, Map<Type, String> fileMap) throws IOException {
+        String uniqueCode = AdviceTemplate.getUniqueCode(pathName);
+        return fileMap.values().stream().filter(v -> v.contains(uniqueCode) & v.endsWith(extension)).count();
     }
 
-    // Test that 4 xml, 2 txt, and 1 csv file are set up
+    // Test that 4 xml, 1 txt, and 1 csv file are set up
     @Test
-    public void testFileSetup() {
-        assertEquals(7, files.size());
+    public void testFileSetup() throws IOException {
+        assertEquals(6, files.size());
         assertEquals(4, filterFileByExtension(".xml", files));
-        assertEquals(2, filterFileByExtension(".txt", files));
+        assertEquals(1, filterFileByExtension(".txt", files));
         assertEquals(1, files.values().stream().filter(v -> v.endsWith(".csv")).count());
         assertFalse(files.get(Type.INVOKED_METHODS).contains(pathName));
     }
+
+    // Test that a method keeps its unique code, and that it is saved in paths.properties
+    @Test
+    public void testUniqueCodeIsReused() throws IOException {
+        String uniqueCode = AdviceTemplate.getUniqueCode(pathName);
+        assertEquals(AdviceTemplate.FILE_NAME_LENGTH, uniqueCode.length());
+        assertEquals(uniqueCode, AdviceTemplate.getUniqueCode(pathName));
+        assertEquals(uniqueCode, AdviceTemplate.loadProperties().getProperty(pathName));
+    }
 }
@@ -0,0 +1,61 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BlobStoreTest {
+    static final String largeXML = "<some.package.Service>\n  <name>" + new String(new char[200]).replace('\0', 'x')
+            + "</name>\n</some.package.Service>";
+
+    @TempDir
+    Path tempDir;
+
+    // Test that an object captured several times is stored once, and referenced by its hash
+    @Test
+    public void testObjectsAreStoredOnce() throws Exception {
+        Path blobFile = tempDir.resolve(BlobStore.FILE_NAME);
+        CaptureBudget captureBudget = new CaptureBudget(10, 10);
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8, captureBudget);
+        BlobStore blobStore = new BlobStore(profileFiles, blobFile.toString(), true, 100, captureBudget);
+        String reference = blobStore.deduplicate(largeXML);
+        assertTrue(reference.matches("<pankti-blob-ref hash=\"[0-9a-f]{40}\"/>"));
+        assertEquals(reference, blobStore.deduplicate(largeXML));
+        profileFiles.closeAll();
+        byte[] blobs = Files.readAllBytes(blobFile);
+        assertEquals(BlobStore.MAGIC.length + 20 + 4 + largeXML.length(), blobs.length);
+        assertEquals(blobs.length, captureBudget.getUsedBytes());
+    }
+
+    // Test that the blob file counts towards the total quota, but is not limited like the files of a method
+    @Test
+    public void testBlobsCountTowardsTheTotalQuotaOnly() {
+        CaptureBudget captureBudget = new CaptureBudget(10, 1);
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8, captureBudget);
+        BlobStore blobStore = new BlobStore(profileFiles, tempDir.resolve(BlobStore.FILE_NAME).toString(),
+                true, 100, captureBudget);
+        for (int i = 0; i < 6000; i++) {
+            blobStore.deduplicate(largeXML + i);
+        }
+        profileFiles.closeAll();
+        assertTrue(captureBudget.getUsedBytes() > captureBudget.getMethodLimitBytes());
+        assertTrue(captureBudget.getUsedBytesByMethod().isEmpty());
+        assertFalse(captureBudget.isTotalLimitReached());
+    }
+
+    // Test that small objects, and all objects if deduplication is disabled, are kept as they are
+    @Test
+    public void testSmallObjectsAreNotStored() {
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8);
+        String blobFile = tempDir.resolve(BlobStore.FILE_NAME).toString();
+        assertEquals("<int>1</int>",
+                new BlobStore(profileFiles, blobFile, true, 100, null).deduplicate("<int>1</int>"));
+        assertEquals(largeXML,
+                new BlobStore(profileFiles, blobFile, false, 100, null).deduplicate(largeXML));
+        assertFalse(Files.exists(tempDir.resolve(BlobStore.FILE_NAME)));
+    }
+}
@@ -0,0 +1,76 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CaptureBudgetTest {
+    static final int MB = 1024 * 1024;
+
+    @TempDir
+    Path tempDir;
+
+    // Test that capture stops for a method once its files reach the method quota
+    @Test
+    public void testMethodLimit() {
+        CaptureBudget captureBudget = new CaptureBudget(10, 1);
+        CaptureBudget.MethodBudget first = captureBudget.forMethod("first");
+        CaptureBudget.MethodBudget second = captureBudget.forMethod("second");
+        first.trackFiles("first-params.xml");
+        second.trackFiles("second-params.xml");
+        captureBudget.record("first-params.xml", MB - 1);
+        assertTrue(first.isWithinLimits());
+        captureBudget.record("first-params.xml", 1);
+        assertFalse(first.isWithinLimits());
+        assertTrue(second.isWithinLimits());
+        assertEquals(MB, captureBudget.getUsedBytesByMethod().get("first"));
+    }
+
+    // Test that capture stops for all methods once all files reach the total quota
+    @Test
+    public void testTotalLimit() {
+        CaptureBudget captureBudget = new CaptureBudget(1, 1);
+        CaptureBudget.MethodBudget first = captureBudget.forMethod("first");
+        CaptureBudget.MethodBudget second = captureBudget.forMethod("second");
+        first.trackFiles("first-params.xml");
+        second.trackFiles("second-params.xml");
+        captureBudget.record("first-params.xml", MB / 2);
+        captureBudget.record("second-params.xml", MB / 2);
+        assertTrue(captureBudget.isTotalLimitReached());
+        assertFalse(first.isWithinLimits());
+        assertFalse(second.isWithinLimits());
+        assertEquals(MB, captureBudget.getUsedBytes());
+    }
+
+    // Test that files written by an earlier run count once, and untracked files not at all
+    @Test
+    public void testExistingFilesAreCounted() throws Exception {
+        Path existingFile = tempDir.resolve("existing.xml");
+        Files.write(existingFile, new byte[100]);
+        CaptureBudget captureBudget = new CaptureBudget(10, 1);
+        CaptureBudget.MethodBudget methodBudget = captureBudget.forMethod("method");
+        methodBudget.trackFiles(existingFile.toString());
+        methodBudget.trackFiles(existingFile.toString());
+        captureBudget.record(tempDir.resolve("untracked.xml").toString(), 50);
+        assertEquals(100, methodBudget.getUsedBytes());
+        assertEquals(100, captureBudget.getUsedBytes());
+    }
+
+    // Test that bytes appended through the registry are recorded
+    @Test
+    public void testRegistryRecordsAppends() {
+        String filePath = tempDir.resolve("params.xml").toString();
+        CaptureBudget captureBudget = new CaptureBudget(10, 1);
+        CaptureBudget.MethodBudget methodBudget = captureBudget.forMethod("method");
+        methodBudget.trackFiles(filePath);
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(8192, 1000, 16, captureBudget);
+        profileFiles.append(filePath, "<int>1</int>\n");
+        profileFiles.append(filePath, "<int>2</int>\n");
+        assertEquals(26, methodBudget.getUsedBytes());
+        profileFiles.closeAll();
+    }
+}
@@ -0,0 +1,118 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.mapper.MapperWrapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CaptureLimitsTest {
+
+    static class Node {
+        String name;
+        Node next;
+        List<Integer> values = new ArrayList<>();
+        Thread.State state = Thread.State.NEW;
+        String cache = "cached";
+    }
+
+    static XStream setUpXStream(CaptureLimits captureLimits) {
+        XStream xStream = new XStream() {
+            @Override
+            protected MapperWrapper wrapMapper(MapperWrapper next) {
+                return captureLimits.wrapMapper(next);
+            }
+        };
+        xStream.setMarshallingStrategy(captureLimits.marshallingStrategy());
+        return xStream;
+    }
+
+    static Node chain(int length) {
+        Node first = new Node();
+        Node node = first;
+        for (int i = 0; i < length; i++) {
+            node.name = "node" + i;
+            if (i < length - 1) {
+                node.next = new Node();
+                node = node.next;
+            }
+        }
+        return first;
+    }
+
+    // Test that objects nested deeper than the maximum depth are written as marked, empty elements
+    @Test
+    public void testMaxDepth() {
+        XStream xStream = setUpXStream(new CaptureLimits(2, 0, 0,
+                Collections.emptyList(), Collections.emptySet()));
+        String xml = xStream.toXML(chain(5));
+        assertTrue(xml.contains("<name>node2</name>"));
+        assertFalse(xml.contains("node3"));
+        assertTrue(xml.contains("<next " + CaptureLimits.TRUNCATED + "=\"depth\"/>"));
+        // The truncated profile can still be deserialized
+        Node node = (Node) xStream.fromXML(xml);
+        assertEquals("node2", node.next.next.name);
+        assertNull(node.next.next.next.name);
+    }
+
+    // Test that collections and strings are cut, and marked with their original size
+    @Test
+    public void testMaxCollectionElementsAndStringLength() {
+        XStream xStream = setUpXStream(new CaptureLimits(0, 3, 4,
+                Collections.emptyList(), Collections.emptySet()));
+        Node node = chain(1);
+        node.values.addAll(Arrays.asList(1, 2, 3, 4, 5));
+        node.name = "a long name";
+        String xml = xStream.toXML(node);
+        assertTrue(xml.contains("<name " + CaptureLimits.TRUNCATED + "=\"11\">a lo</name>"));
+        assertTrue(xml.contains("<values " + CaptureLimits.TRUNCATED + "=\"5\">"));
+        assertEquals(Arrays.asList(1, 2, 3), ((Node) xStream.fromXML(xml)).values);
+        assertArrayEquals(new int[]{1, 2, 3},
+                (int[]) xStream.fromXML(xStream.toXML(new int[]{1, 2, 3, 4})));
+    }
+
+    // Test that sorted sets and maps are cut to copies of the same kind, with their comparator
+    @Test
+    public void testMaxElementsOfSortedCollections() {
+        XStream xStream = setUpXStream(new CaptureLimits(0, 3, 0,
+                Collections.emptyList(), Collections.emptySet()));
+        TreeSet<Integer> set = new TreeSet<>(Comparator.reverseOrder());
+        set.addAll(Arrays.asList(1, 2, 3, 4, 5));
+        String xml = xStream.toXML(set);
+        assertTrue(xml.contains(CaptureLimits.TRUNCATED + "=\"5\""));
+        TreeSet<Integer> truncatedSet = (TreeSet<Integer>) xStream.fromXML(xml);
+        assertEquals(Arrays.asList(5, 4, 3), new ArrayList<>(truncatedSet));
+        assertNotNull(truncatedSet.comparator());
+
+        TreeMap<String, Integer> map = new TreeMap<>();
+        for (int i = 0; i < 5; i++) {
+            map.put("key" + i, i);
+        }
+        xml = xStream.toXML(map);
+        assertTrue(xml.contains(CaptureLimits.TRUNCATED + "=\"5\""));
+        TreeMap<String, Integer> truncatedMap = (TreeMap<String, Integer>) xStream.fromXML(xml);
+        assertEquals(Arrays.asList("key0", "key1", "key2"), new ArrayList<>(truncatedMap.keySet()));
+    }
+
+    // Test that objects of excluded packages, and excluded fields, are left out
+    @Test
+    public void testExclusions() {
+        XStream xStream = setUpXStream(new CaptureLimits(0, 0, 0,
+                Collections.singletonList("java.util"),
+                new HashSet<>(Collections.singletonList("*.cache"))));
+        String xml = xStream.toXML(chain(1));
+        assertTrue(xml.contains("<values " + CaptureLimits.TRUNCATED + "=\"excluded\"/>"));
+        assertTrue(xml.contains("<state>NEW</state>"));
+        assertFalse(xml.contains("cache"));
+        assertTrue(xml.contains("<name>node0</name>"));
+    }
+}
@@ -0,0 +1,93 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.core.ClassLoaderReference;
+import com.thoughtworks.xstream.core.util.CompositeClassLoader;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.XppDriver;
+import org.junit.jupiter.api.Test;
+import se.kth.castor.pankti.instrument.converters.OmittedTypesConverter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClassValueConverterLookupTest {
+
+    static class Service {
+        String name = "service";
+        Connection connection = new Connection();
+    }
+
+    static class Connection {
+        int port = 8080;
+    }
+
+    static XStream setUpXStream(ClassValueConverterLookup converterLookup) {
+        return new XStream(null, new XppDriver(),
+                new ClassLoaderReference(new CompositeClassLoader()), null, converterLookup, converterLookup);
+    }
+
+    // Test that the converters are scanned once per type, and again after a converter is registered
+    @Test
+    public void testConvertersAreScannedOncePerType() {
+        ClassValueConverterLookup converterLookup = new ClassValueConverterLookup();
+        XStream xStream = setUpXStream(converterLookup);
+        AtomicInteger scans = new AtomicInteger();
+        xStream.registerConverter(new Converter() {
+            @Override
+            public void marshal(Object o, HierarchicalStreamWriter writer, MarshallingContext context) {
+            }
+
+            @Override
+            public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+                return null;
+            }
+
+            @Override
+            public boolean canConvert(Class aClass) {
+                if (aClass == Service.class) {
+                    scans.incrementAndGet();
+                }
+                return false;
+            }
+        });
+        Converter converter = converterLookup.lookupConverterForType(Service.class);
+        assertSame(converter, converterLookup.lookupConverterForType(Service.class));
+        xStream.toXML(new Service());
+        assertEquals(1, scans.get());
+        xStream.registerConverter(new OmittedTypesConverter());
+        xStream.toXML(new Service());
+        assertEquals(2, scans.get());
+    }
+
+    // Test that types that could not be converted are written as empty elements once omitted
+    @Test
+    public void testOmittedTypes() {
+        ClassValueConverterLookup converterLookup = new ClassValueConverterLookup();
+        XStream xStream = setUpXStream(converterLookup);
+        OmittedTypesConverter omittedTypes = new OmittedTypesConverter();
+        xStream.registerConverter(omittedTypes);
+        assertTrue(xStream.toXML(new Service()).contains("<port>8080</port>"));
+        omittedTypes.omit(Connection.class.getName());
+        // Types are omitted after their lookup failed, a converter that was found is kept until the cache is flushed
+        converterLookup.flushCache();
+        String xml = xStream.toXML(new Service());
+        assertTrue(xml.contains("<connection/>"));
+        assertTrue(xml.contains("<name>service</name>"));
+    }
+
+    // Test that converters can not be registered once the lookup is frozen
+    @Test
+    public void testFrozenLookup() {
+        ClassValueConverterLookup converterLookup = new ClassValueConverterLookup();
+        XStream xStream = setUpXStream(converterLookup);
+        converterLookup.freeze();
+        assertThrows(IllegalStateException.class, () -> xStream.registerConverter(new OmittedTypesConverter()));
+        assertTrue(xStream.toXML(new Service()).contains("<port>8080</port>"));
+    }
+}
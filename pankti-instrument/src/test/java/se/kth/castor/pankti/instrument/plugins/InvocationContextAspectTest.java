@@ -0,0 +1,80 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvocationContextAspectTest {
+    static class ParentAdvice {
+    }
+
+    // A task that got the mixin
+    static class HolderTask implements Runnable, InvocationContextAspect.ContextHolder {
+        private Object invocationContext;
+
+        @Override
+        public void run() {
+        }
+
+        @Override
+        public Object pankti$getInvocationContext() {
+            return invocationContext;
+        }
+
+        @Override
+        public void pankti$setInvocationContext(Object invocationContext) {
+            this.invocationContext = invocationContext;
+        }
+    }
+
+    // Test that lambda tasks, which never get the mixin, are wrapped with the context of their submission
+    @Test
+    public void testLambdaTasksCarryTheContext() throws Exception {
+        long invocationId = InvocationIds.next();
+        AtomicLong inRunnable = new AtomicLong();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            InvocationContext.enter(ParentAdvice.class, invocationId);
+            Runnable runnable = InvocationContextAspect.withContext(
+                    (Runnable) () -> inRunnable.set(InvocationContext.getInvocationId(ParentAdvice.class)));
+            Callable<Long> callable = InvocationContextAspect.withContext(
+                    () -> InvocationContext.getInvocationId(ParentAdvice.class));
+            Collection<Callable<Long>> callables = InvocationContextAspect.withContext(
+                    Arrays.asList(() -> InvocationContext.getInvocationId(ParentAdvice.class)));
+            InvocationContext.exit(ParentAdvice.class);
+            executor.submit(runnable).get();
+            assertEquals(invocationId, inRunnable.get());
+            assertEquals(invocationId, executor.submit(callable).get());
+            List<Future<Long>> results = executor.invokeAll(callables);
+            assertEquals(invocationId, results.get(0).get());
+            // The context is detached from the executor thread after the task
+            assertEquals(InvocationIds.NONE, executor.submit(() -> InvocationContext.getInvocationId(ParentAdvice.class)).get());
+        } finally {
+            executor.shutdown();
+        }
+        Runnable withoutContext = () -> {
+        };
+        assertSame(withoutContext, InvocationContextAspect.withContext(withoutContext));
+    }
+
+    // Test that a task submitted again, outside of an invocation, does not keep the context of its first submission
+    @Test
+    public void testReusedTasksDoNotKeepAStaleContext() {
+        HolderTask task = new HolderTask();
+        InvocationContext.enter(ParentAdvice.class, InvocationIds.next());
+        assertSame(task, InvocationContextAspect.withContext((Runnable) task));
+        assertNotNull(task.pankti$getInvocationContext());
+        InvocationContext.exit(ParentAdvice.class);
+        InvocationContextAspect.withContext((Runnable) task);
+        assertNull(task.pankti$getInvocationContext());
+    }
+}
@@ -0,0 +1,86 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvocationContextTest {
+    static class ParentAdvice {
+    }
+
+    static class OtherParentAdvice {
+    }
+
+    // Test that the parent invocation id is found only while the parent invocation is in progress
+    @Test
+    public void testParentInvocationIdIsFoundWhileInProgress() {
+        long invocationId = InvocationIds.next();
+        assertEquals(InvocationIds.NONE, InvocationContext.getInvocationId(ParentAdvice.class));
+        InvocationContext.enter(ParentAdvice.class, invocationId);
+        InvocationContext.enter(OtherParentAdvice.class, InvocationIds.next());
+        assertEquals(invocationId, InvocationContext.getInvocationId(ParentAdvice.class));
+        InvocationContext.exit(OtherParentAdvice.class);
+        assertEquals(invocationId, InvocationContext.getInvocationId(ParentAdvice.class));
+        InvocationContext.exit(ParentAdvice.class);
+        assertEquals(InvocationIds.NONE, InvocationContext.getInvocationId(ParentAdvice.class));
+    }
+
+    // Test that an invocation entered without id is in progress, and hides the id of an outer invocation
+    @Test
+    public void testInvocationWithoutIdIsInProgress() {
+        assertFalse(InvocationContext.isInProgress(ParentAdvice.class));
+        InvocationContext.enter(ParentAdvice.class, InvocationIds.next());
+        InvocationContext.enter(ParentAdvice.class, InvocationIds.NONE);
+        assertTrue(InvocationContext.isInProgress(ParentAdvice.class));
+        assertEquals(InvocationIds.NONE, InvocationContext.getInvocationId(ParentAdvice.class));
+        InvocationContext.exit(ParentAdvice.class);
+        InvocationContext.exit(ParentAdvice.class);
+        assertFalse(InvocationContext.isInProgress(ParentAdvice.class));
+    }
+
+    // Test that recursive invocations see the innermost invocation id, and that the context is per thread
+    @Test
+    public void testContextIsPerThread() throws Exception {
+        long outer = InvocationIds.next();
+        long inner = InvocationIds.next();
+        InvocationContext.enter(ParentAdvice.class, outer);
+        InvocationContext.enter(ParentAdvice.class, inner);
+        assertEquals(inner, InvocationContext.getInvocationId(ParentAdvice.class));
+        AtomicLong fromOtherThread = new AtomicLong(outer);
+        Thread thread = new Thread(() -> fromOtherThread.set(InvocationContext.getInvocationId(ParentAdvice.class)));
+        thread.start();
+        thread.join();
+        assertEquals(InvocationIds.NONE, fromOtherThread.get());
+        InvocationContext.exit(ParentAdvice.class);
+        assertEquals(outer, InvocationContext.getInvocationId(ParentAdvice.class));
+        InvocationContext.exit(ParentAdvice.class);
+    }
+
+    // Test that a captured context is seen by the thread it is attached to, until it is detached
+    @Test
+    public void testCapturedContextIsAttachedToTaskThread() throws Exception {
+        long invocationId = InvocationIds.next();
+        InvocationContext.enter(ParentAdvice.class, invocationId);
+        Object captured = InvocationContext.capture();
+        InvocationContext.exit(ParentAdvice.class);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            long inTask = executor.submit(() -> {
+                Object previous = InvocationContext.attach(captured);
+                try {
+                    return InvocationContext.getInvocationId(ParentAdvice.class);
+                } finally {
+                    InvocationContext.detach(previous);
+                }
+            }).get();
+            assertEquals(invocationId, inTask);
+            assertEquals(InvocationIds.NONE, executor.submit(() -> InvocationContext.getInvocationId(ParentAdvice.class)).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
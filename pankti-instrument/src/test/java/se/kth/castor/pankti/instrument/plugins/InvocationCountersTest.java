@@ -0,0 +1,56 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvocationCountersTest {
+
+    // Test that aspects for the same method share a counter
+    @Test
+    public void testCounterIsSharedForMethod() {
+        LongAdder counter = InvocationCounters.counterFor("some.package.SomeClass.someMethod");
+        assertSame(counter, InvocationCounters.counterFor("some.package.SomeClass.someMethod"));
+        assertNotSame(counter, InvocationCounters.counterFor("nested-some.package.SomeClass.someMethod"));
+    }
+
+    // Test that all counts are written to a single file, on top of the counts of earlier runs
+    @Test
+    public void testSnapshotIsWrittenToCountsFile() throws IOException {
+        String methodName = "some.package.SomeClass.otherMethod_int%5b%5d";
+        LongAdder counter = InvocationCounters.counterFor("some.package.SomeClass.otherMethod_int[]");
+        counter.add(3);
+        InvocationCounters.writeSnapshot();
+        long count = InvocationCounters.readCounts(Paths.get(InvocationCounters.COUNTS_FILE_PATH)).get(methodName);
+        assertTrue(count >= 3);
+        counter.increment();
+        InvocationCounters.writeSnapshot();
+        String content = new String(Files.readAllBytes(Paths.get(InvocationCounters.COUNTS_FILE_PATH)),
+                StandardCharsets.UTF_8);
+        assertTrue(content.contains("Invocation count for " + methodName + ": " + (count + 1)));
+    }
+
+    // Test that counts of earlier runs are read back and added to the counts of this run
+    @Test
+    public void testCountsAccumulateAcrossRuns(@TempDir Path tempDir) throws IOException {
+        Path countsFile = tempDir.resolve("invocation-counts.txt");
+        Files.write(countsFile, ("Invocation count for some.package.SomeClass.countedMethod_int%5b%5d: 5\n" +
+                "Invocation count for some.package.SomeClass.notInvokedMethod: 2\n").getBytes(StandardCharsets.UTF_8));
+        Map<String, Long> earlierCounts = InvocationCounters.readCounts(countsFile);
+        assertEquals(2, earlierCounts.size());
+        InvocationCounters.counterFor("some.package.SomeClass.countedMethod_int[]").add(3);
+        String content = InvocationCounters.snapshot(earlierCounts);
+        assertTrue(content.contains("Invocation count for some.package.SomeClass.countedMethod_int%5b%5d: 8"));
+        assertTrue(content.contains("Invocation count for some.package.SomeClass.notInvokedMethod: 2"));
+        assertTrue(InvocationCounters.readCounts(tempDir.resolve("missing.txt")).isEmpty());
+    }
+}
@@ -0,0 +1,41 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvocationIdsTest {
+
+    // Test that ids handed out to several threads are unique, and never NONE
+    @Test
+    public void testIdsAreUniqueAcrossThreads() throws Exception {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 4; i++) {
+            executor.submit(() -> {
+                for (int j = 0; j < 3000; j++) {
+                    ids.add(InvocationIds.next());
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(12000, ids.size());
+        assertFalse(ids.contains(InvocationIds.NONE));
+    }
+
+    // Test that ids are written with the prefix of this run
+    @Test
+    public void testIdStringHasRunPrefix() {
+        String first = InvocationIds.toString(InvocationIds.next());
+        String second = InvocationIds.toString(InvocationIds.next());
+        assertNotEquals(first, second);
+        assertEquals(first.substring(0, first.indexOf('-')), second.substring(0, second.indexOf('-')));
+    }
+}
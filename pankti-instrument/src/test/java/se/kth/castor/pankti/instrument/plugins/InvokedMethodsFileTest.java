@@ -0,0 +1,48 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvokedMethodsFileTest {
+    static final String row = "public,some.package.SomeClass,someMethod,(int),int,(I)I,false,";
+
+    @TempDir
+    Path tempDir;
+
+    // Test that a row is appended once, even when added concurrently
+    @Test
+    public void testRowIsAppendedOnce() throws Exception {
+        Path csvFile = tempDir.resolve("invoked-methods.csv");
+        InvokedMethodsFile invokedMethods = new InvokedMethodsFile(csvFile.toString());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 100; i++) {
+            executor.submit(() -> invokedMethods.add(row));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        List<String> lines = Files.readAllLines(csvFile);
+        assertEquals(2, lines.size());
+        assertEquals(String.join(",", InvokedMethodsFile.HEADERS), lines.get(0));
+        assertEquals(row, lines.get(1));
+    }
+
+    // Test that rows already in the file are not appended again
+    @Test
+    public void testExistingRowsAreLoaded() throws Exception {
+        Path csvFile = tempDir.resolve("invoked-methods.csv");
+        assertTrue(new InvokedMethodsFile(csvFile.toString()).add(row));
+        InvokedMethodsFile invokedMethods = new InvokedMethodsFile(csvFile.toString());
+        assertFalse(invokedMethods.add(row));
+        assertTrue(invokedMethods.add(row.replace("someMethod", "otherMethod")));
+        assertEquals(3, Files.readAllLines(csvFile).size());
+    }
+}
@@ -0,0 +1,75 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.SingleValueConverter;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ObjectSerializerTest {
+
+    static class Point {
+        int x;
+        int y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    // Test that objects serialized from several threads, with reused buffers, match XStream
+    @Test
+    public void testSerializationFromSeveralThreads() throws Exception {
+        XStream xStream = new XStream();
+        ObjectSerializer serializer = new ObjectSerializer(xStream, 64);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                // Some of the objects grow the buffer beyond the retained size
+                Object object = i % 10 == 0 ? Arrays.asList(new Point(i, i), new Point(i, -i)) : new Point(i, -i);
+                results.add(executor.submit(() -> xStream.toXML(object).equals(serializer.toXML(object))));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Test that an object serialized while the buffer of the thread is in use gets its own buffer
+    @Test
+    public void testNestedSerialization() {
+        XStream xStream = new XStream();
+        ObjectSerializer serializer = new ObjectSerializer(xStream, 1024);
+        xStream.registerConverter(new SingleValueConverter() {
+            @Override
+            public String toString(Object o) {
+                Point point = (Point) o;
+                return String.valueOf(serializer.toXML(point.x).length());
+            }
+
+            @Override
+            public Object fromString(String s) {
+                return null;
+            }
+
+            @Override
+            public boolean canConvert(Class type) {
+                return type == Point.class;
+            }
+        });
+        assertEquals("<list>\n  <" + Point.class.getName().replace("$", "_-") + ">16</"
+                        + Point.class.getName().replace("$", "_-") + ">\n</list>",
+                serializer.toXML(new ArrayList<>(Arrays.asList(new Point(12345, 0)))));
+    }
+}
@@ -0,0 +1,130 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfileFileRegistryTest {
+
+    @TempDir
+    Path tempDir;
+
+    static String decompress(byte[] file) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(file));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertArrayEquals(ProfileFileRegistry.COMPRESSED_MAGIC, magic);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (in.available() > 0) {
+            byte[] block = new byte[in.readInt()];
+            byte[] compressedBlock = new byte[in.readInt()];
+            in.readFully(compressedBlock);
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressedBlock);
+            assertEquals(block.length, inflater.inflate(block));
+            assertTrue(inflater.finished());
+            inflater.end();
+            out.write(block);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // Test that appended profiles are written in blocks that can be decompressed on their own
+    @Test
+    public void testCompressedBlocks() throws Exception {
+        Path filePath = tempDir.resolve("compressed-receiving.xml");
+        CaptureBudget captureBudget = new CaptureBudget(10, 10);
+        captureBudget.forMethod("method").trackFiles(filePath.toString());
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8, captureBudget, true);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            String xml = "<some.package.SomeClass>\n  <value>" + i + "</value>\n</some.package.SomeClass>\n";
+            profileFiles.append(filePath.toString(), xml);
+            expected.append(xml);
+        }
+        profileFiles.closeAll();
+        byte[] file = Files.readAllBytes(filePath);
+        assertEquals(expected.toString(), decompress(file));
+        assertTrue(file.length < expected.length() / 4);
+        assertEquals(file.length, captureBudget.getUsedBytes());
+    }
+
+    // Test that files appended to by several threads share the deflater, and are still compressed after shutdown
+    @Test
+    public void testCompressedBlocksFromSeveralThreads() throws Exception {
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8, null, true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String filePath = tempDir.resolve("thread" + t + "-params.xml").toString();
+            results.add(executor.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    profileFiles.append(filePath, "<int>" + i + "</int>\n");
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+        profileFiles.closeAll();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            expected.append("<int>").append(i).append("</int>\n");
+        }
+        for (int t = 0; t < 4; t++) {
+            assertEquals(expected.toString(), decompress(Files.readAllBytes(tempDir.resolve("thread" + t + "-params.xml"))));
+        }
+        Path filePath = tempDir.resolve("thread0-params.xml");
+        profileFiles.append(filePath.toString(), "<int>200</int>\n");
+        profileFiles.closeAll();
+        assertEquals(expected + "<int>200</int>\n", decompress(Files.readAllBytes(filePath)));
+    }
+
+    // Test that a file created without compression is still appended to as is
+    @Test
+    public void testExistingFilesKeepTheirFormat() throws Exception {
+        Path filePath = tempDir.resolve("plain-params.xml");
+        Files.write(filePath, "<int>0</int>\n".getBytes(StandardCharsets.UTF_8));
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8, null, true);
+        profileFiles.append(filePath.toString(), "<int>1</int>\n");
+        profileFiles.closeAll();
+        assertEquals("<int>0</int>\n<int>1</int>\n",
+                new String(Files.readAllBytes(filePath), StandardCharsets.UTF_8));
+    }
+
+    // Test that a file is still appended to, and flushed, by a thread that was interrupted
+    @Test
+    public void testAppendsOfInterruptedThreadsAreWritten() throws Exception {
+        Path filePath = tempDir.resolve("interrupted-receiving.xml");
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8);
+        String largeXML = "<string>" + new String(new char[2000]).replace('\0', 'x') + "</string>\n";
+        try {
+            Thread.currentThread().interrupt();
+            profileFiles.append(filePath.toString(), "<int>1</int>\n");
+            profileFiles.append(filePath.toString(), largeXML);
+            profileFiles.flushAll();
+            profileFiles.append(filePath.toString(), "<int>2</int>\n");
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        profileFiles.closeAll();
+        assertEquals("<int>1</int>\n" + largeXML + "<int>2</int>\n",
+                new String(Files.readAllBytes(filePath), StandardCharsets.UTF_8));
+    }
+}
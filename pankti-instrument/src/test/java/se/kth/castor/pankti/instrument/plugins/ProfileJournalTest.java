@@ -0,0 +1,78 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfileJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Test that the files of several methods are appended to one journal, and indexed by file name
+    @Test
+    public void testFilesAreAppendedToTheJournal() throws Exception {
+        Path journalDir = tempDir.resolve(ProfileJournal.DIRECTORY_NAME);
+        CaptureBudget captureBudget = new CaptureBudget(10, 10);
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8, captureBudget, false,
+                new ProfileJournal(journalDir.toString(), 1 << 16, false));
+        String receivingFilePath = tempDir.resolve("first-receiving.xml").toString();
+        String paramsFilePath = tempDir.resolve("second-params.xml").toString();
+        captureBudget.forMethod("first").trackFiles(receivingFilePath);
+        captureBudget.forMethod("second").trackFiles(paramsFilePath);
+        profileFiles.append(receivingFilePath, "<int>1</int>\n");
+        profileFiles.append(paramsFilePath, "<int>2</int>\n");
+        profileFiles.append(receivingFilePath, "<int>3</int>\n");
+        assertEquals(26, profileFiles.size(receivingFilePath));
+        profileFiles.flushAll();
+        profileFiles.append(receivingFilePath, "<int>5</int>\n");
+        profileFiles.closeAll();
+
+        assertFalse(Files.exists(tempDir.resolve("first-receiving.xml")));
+        List<String> index = Files.readAllLines(journalDir.resolve(ProfileJournal.INDEX_FILE_NAME));
+        assertEquals(3, index.size());
+        assertTrue(index.get(2).startsWith("first-receiving.xml\t1\t59\t13\t13\t0"));
+        byte[] segment = Files.readAllBytes(journalDir.resolve(ProfileJournal.getSegmentFileName(1)));
+        assertEquals("<int>5</int>\n", new String(segment, 67, 13, StandardCharsets.UTF_8));
+        assertEquals(segment.length, captureBudget.getUsedBytes() + ProfileJournal.MAGIC.length);
+
+        // A later run knows the sizes of the files, and appends to a new segment
+        ProfileJournal journal = new ProfileJournal(journalDir.toString(), 1 << 16, true);
+        assertEquals(39, journal.size(receivingFilePath));
+        journal.append(paramsFilePath, "<int>4</int>\n".getBytes(StandardCharsets.UTF_8), 13);
+        journal.close();
+        assertTrue(Files.exists(journalDir.resolve(ProfileJournal.getSegmentFileName(2))));
+        ProfileJournal laterJournal = new ProfileJournal(journalDir.toString(), 1 << 16, false);
+        assertEquals(26, laterJournal.size(paramsFilePath));
+        assertEquals(16, laterJournal.storedSize(receivingFilePath) - laterJournal.size(receivingFilePath));
+    }
+
+    // Test that chunks appended by a thread that was interrupted are still written and indexed
+    @Test
+    public void testChunksOfInterruptedThreadsAreAppended() throws Exception {
+        Path journalDir = tempDir.resolve(ProfileJournal.DIRECTORY_NAME);
+        ProfileJournal journal = new ProfileJournal(journalDir.toString(), 1 << 16, false);
+        String receivingFilePath = tempDir.resolve("first-receiving.xml").toString();
+        String paramsFilePath = tempDir.resolve("second-params.xml").toString();
+        try {
+            Thread.currentThread().interrupt();
+            journal.append(receivingFilePath, "<int>1</int>\n".getBytes(StandardCharsets.UTF_8), 13);
+            journal.append(paramsFilePath, "<int>2</int>\n".getBytes(StandardCharsets.UTF_8), 13);
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        journal.append(receivingFilePath, "<int>3</int>\n".getBytes(StandardCharsets.UTF_8), 13);
+        journal.close();
+        assertEquals(3, Files.readAllLines(journalDir.resolve(ProfileJournal.INDEX_FILE_NAME)).size());
+        ProfileJournal laterJournal = new ProfileJournal(journalDir.toString(), 1 << 16, false);
+        assertEquals(26, laterJournal.size(receivingFilePath));
+        assertEquals(13, laterJournal.size(paramsFilePath));
+    }
+}
@@ -0,0 +1,72 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfileRecordsTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Test that names are defined once, before the first record that uses them
+    @Test
+    public void testRecordsAreLengthPrefixed() throws Exception {
+        Path filePath = tempDir.resolve("records-params.xml");
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8);
+        ProfileRecords profileRecords = new ProfileRecords(profileFiles);
+        profileRecords.append(filePath.toString(),
+                new ProfileRecords.Header("some.Class.method", 1, 42L, 1000L), "<int>1</int>");
+        profileRecords.append(filePath.toString(),
+                new ProfileRecords.Header("some.Class.method", 2, 43L, 2000L), "<int>2</int>");
+        profileFiles.closeAll();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(filePath)));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertArrayEquals(ProfileRecords.MAGIC, magic);
+        assertEquals(ProfileRecords.SECTION, in.readByte());
+        assertEquals(ProfileRecords.DEFINITION, in.readByte());
+        assertEquals(0, in.readInt());
+        assertEquals("some.Class.method", in.readUTF());
+        assertEquals(ProfileRecords.DEFINITION, in.readByte());
+        assertEquals(1, in.readInt());
+        assertEquals("java.lang.Integer", in.readUTF());
+        for (int i = 1; i <= 2; i++) {
+            assertEquals(ProfileRecords.OBJECT, in.readByte());
+            assertEquals(0, in.readInt());
+            assertEquals(1, in.readInt());
+            assertEquals(InvocationIds.getRunId(), in.readLong());
+            assertEquals(41L + i, in.readLong());
+            assertEquals(1000L * i, in.readLong());
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            assertEquals("<int>" + i + "</int>", new String(payload, StandardCharsets.UTF_8));
+        }
+        assertEquals(-1, in.read());
+    }
+
+    // Test that profiles with a record header are written as records by the writer
+    @Test
+    public void testWriterAppendsRecords() throws Exception {
+        Path filePath = tempDir.resolve("writer-returned.xml");
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8);
+        ProfileWriter profileWriter = new ProfileWriter(profileFiles, true, 16, false,
+                new ProfileRecords(profileFiles));
+        assertTrue(profileWriter.isBinary());
+        profileWriter.submit(filePath.toString(),
+                new ProfileRecords.Header("some.Class.method", null, 1L, 0L), "<null/>");
+        profileWriter.shutdown();
+        profileFiles.closeAll();
+        byte[] bytes = Files.readAllBytes(filePath);
+        assertEquals('P', bytes[0]);
+        assertTrue(new String(bytes, StandardCharsets.UTF_8).endsWith("<null/>"));
+    }
+}
@@ -0,0 +1,123 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfileRingBufferTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Test that configured sizes are kept within what a direct buffer can hold
+    @Test
+    public void testSizesAreCappedToDirectBuffers() {
+        assertEquals(64 << 20, ProfileRingBuffer.capacityOfSizeMB(64));
+        assertEquals(2047 << 20, ProfileRingBuffer.capacityOfSizeMB(2048));
+        assertEquals(2047 << 20, ProfileRingBuffer.capacityOfSizeMB(1L << 40));
+        assertEquals(1 << 20, ProfileRingBuffer.capacityOfSizeMB(0));
+        assertEquals(1 << 20, ProfileRingBuffer.ofSizeMB(-1).getCapacity());
+    }
+
+    // Test that records are drained in order, across the end of the buffer, and refused when it is full
+    @Test
+    public void testRecordsWrapAroundTheBuffer() {
+        ProfileRingBuffer ringBuffer = new ProfileRingBuffer(4 * ProfileRingBuffer.ALIGNMENT);
+        ProfileRecords.Header header = new ProfileRecords.Header("some.package.SomeClass.someMethod", 1, 42L, 7L);
+        List<String> drained = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(ProfileRingBuffer.Result.APPENDED, ringBuffer.offer("params.xml", null, "<int>" + i + "</int>"));
+            assertEquals(ProfileRingBuffer.Result.APPENDED, ringBuffer.offer("receiving.xml", header, "<int>" + -i + "</int>"));
+            ringBuffer.drain((filePath, recordHeader, xml) -> {
+                drained.add(filePath + xml);
+                if (recordHeader != null) {
+                    assertEquals("java.lang.Integer", recordHeader.typeName);
+                    assertEquals(42L, recordHeader.invocationId);
+                }
+            });
+        }
+        assertEquals(20, drained.size());
+        assertEquals("receiving.xml<int>-9</int>", drained.get(19));
+        for (int i = 0; i < 4; i++) {
+            ringBuffer.offer("params.xml", null, "<int>" + i + "</int>");
+        }
+        assertEquals(ProfileRingBuffer.Result.FULL, ringBuffer.offer("params.xml", null, "<int>4</int>"));
+        assertEquals(ProfileRingBuffer.Result.FULL,
+                ringBuffer.offer("params.xml", null, new String(new char[300]).replace('\0', 'x')));
+    }
+
+    // Test that a record larger than the buffer is drained in the order of its claim, between queued records
+    @Test
+    public void testOversizedRecordsKeepTheirOrder() throws Exception {
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8);
+        ProfileRingBuffer ringBuffer = new ProfileRingBuffer(4 * ProfileRingBuffer.ALIGNMENT);
+        ProfileWriter profileWriter = new ProfileWriter(profileFiles, false, 1, true, null, ringBuffer);
+        String filePath = tempDir.resolve("oversized-params.xml").toString();
+        String largeXML = "<string>" + new String(new char[1000]).replace('\0', 'x') + "</string>";
+        assertEquals(ProfileRingBuffer.Result.APPENDED, ringBuffer.offer(filePath, null, "<int>0</int>\n"));
+        assertEquals(ProfileRingBuffer.Result.APPENDED, ringBuffer.offer(filePath, null, largeXML + "\n"));
+        assertEquals(ProfileRingBuffer.Result.APPENDED, ringBuffer.offer(filePath, null, "<int>1</int>\n"));
+        profileWriter.write(filePath, "<int>2</int>\n");
+        profileWriter.write(filePath, largeXML + "\n");
+        profileWriter.write(filePath, "<int>3</int>\n");
+        profileWriter.shutdown();
+        profileFiles.closeAll();
+        assertEquals(Arrays.asList("<int>0</int>", largeXML, "<int>1</int>", "<int>2</int>", largeXML, "<int>3</int>"),
+                Files.readAllLines(Paths.get(filePath)));
+    }
+
+    // Test that invocations are admitted while at most half of the ring buffer is used
+    @Test
+    public void testInvocationsAreAdmittedWhileTheRingHasRoom() {
+        ProfileRingBuffer ringBuffer = new ProfileRingBuffer(4 * ProfileRingBuffer.ALIGNMENT);
+        ProfileWriter profileWriter = new ProfileWriter(new ProfileFileRegistry(1024, 60000, 8), false, 1, true,
+                null, ringBuffer);
+        assertTrue(profileWriter.admit());
+        for (int i = 0; i < 3; i++) {
+            ringBuffer.offer("params.xml", null, "<int>" + i + "</int>");
+        }
+        assertFalse(profileWriter.admit());
+        assertEquals(1, profileWriter.getDroppedInvocationCount());
+    }
+
+    // Test that profiles written from several threads reach their files through the drainer
+    @Test
+    public void testProfilesAreDrainedToTheirFiles() throws Exception {
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8);
+        ProfileWriter profileWriter = new ProfileWriter(profileFiles, false, 1, false, null,
+                new ProfileRingBuffer(1 << 12));
+        String filePath = tempDir.resolve("ring-returned.xml").toString();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                int value = i;
+                results.add(executor.submit(() -> profileWriter.write(filePath, "<int>" + value + "</int>\n")));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        profileWriter.shutdown();
+        profileFiles.flushAll();
+        Set<String> lines = new HashSet<>(Files.readAllLines(Paths.get(filePath)));
+        assertEquals(1000, lines.size());
+        assertTrue(lines.contains("<int>999</int>"));
+        assertEquals(0, profileWriter.getDroppedInvocationCount());
+    }
+}
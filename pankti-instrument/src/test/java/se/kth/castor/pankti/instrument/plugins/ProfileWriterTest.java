@@ -0,0 +1,136 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfileWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    // Registry whose appends wait until released, to keep the writer thread busy
+    static class BlockingProfileFileRegistry extends ProfileFileRegistry {
+        final CountDownLatch appendStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingProfileFileRegistry() {
+            super(1024, 60000, 8);
+        }
+
+        @Override
+        public void append(String filePath, CharSequence text) {
+            appendStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.append(filePath, text);
+        }
+    }
+
+    // Test that queued profiles are appended when the writer shuts down
+    @Test
+    public void testAsyncProfilesAreWrittenOnFlush() throws Exception {
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8);
+        ProfileWriter profileWriter = new ProfileWriter(profileFiles, true, 16, false);
+        String filePath = tempDir.resolve("async-receiving.xml").toString();
+        for (int i = 0; i < 5; i++) {
+            profileWriter.submit(filePath, "<int>" + i + "</int>\n");
+        }
+        profileWriter.shutdown();
+        profileFiles.flushAll();
+        assertEquals(5, Files.readAllLines(Paths.get(filePath)).size());
+        assertEquals(0, profileWriter.getDroppedInvocationCount());
+    }
+
+    // Test that shutdown waits for the batch being written instead of interrupting the writer thread
+    @Test
+    public void testShutdownLetsTheWriterFinishItsBatch() throws Exception {
+        BlockingProfileFileRegistry profileFiles = new BlockingProfileFileRegistry();
+        ProfileWriter profileWriter = new ProfileWriter(profileFiles, true, 16, false);
+        String filePath = tempDir.resolve("shutdown-receiving.xml").toString();
+        profileWriter.submit(filePath, "<int>0</int>\n");
+        profileFiles.appendStarted.await();
+        Thread shutdownThread = new Thread(profileWriter::shutdown);
+        shutdownThread.start();
+        // Wait until shutdown joins the writer thread
+        while (shutdownThread.getState() != Thread.State.TIMED_WAITING) {
+            Thread.yield();
+        }
+        profileFiles.release.countDown();
+        shutdownThread.join();
+        profileFiles.append(filePath, "<int>1</int>\n");
+        profileFiles.closeAll();
+        assertEquals(2, Files.readAllLines(Paths.get(filePath)).size());
+    }
+
+    // Test that whole invocations are dropped and counted when the queue is full, never single profiles
+    @Test
+    public void testInvocationsAreDroppedWhenQueueIsFull() throws Exception {
+        BlockingProfileFileRegistry profileFiles = new BlockingProfileFileRegistry();
+        ProfileWriter profileWriter = new ProfileWriter(profileFiles, true, 2, true);
+        String filePath = tempDir.resolve("dropped-receiving.xml").toString();
+        profileWriter.submit(filePath, "<int>0</int>\n");
+        profileFiles.appendStarted.await();
+        assertTrue(profileWriter.admit());
+        // Both profiles of an admitted invocation are queued, even though the second one fills the queue
+        profileWriter.submit(filePath, "<int>1</int>\n");
+        profileWriter.submit(filePath, "<int>2</int>\n");
+        assertFalse(profileWriter.admit());
+        assertEquals(1, profileWriter.getDroppedInvocationCount());
+        profileFiles.release.countDown();
+        profileWriter.shutdown();
+        profileFiles.closeAll();
+        assertEquals(3, Files.readAllLines(Paths.get(filePath)).size());
+    }
+
+    // Test that profiles submitted after shutdown are appended on the calling thread
+    @Test
+    public void testProfilesSubmittedAfterShutdownAreWritten() throws Exception {
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 8);
+        ProfileWriter profileWriter = new ProfileWriter(profileFiles, true, 16, true);
+        String filePath = tempDir.resolve("late-returned.xml").toString();
+        profileWriter.submit(filePath, "<int>0</int>\n");
+        profileWriter.shutdown();
+        assertTrue(profileWriter.admit());
+        profileWriter.submit(filePath, "<int>1</int>\n");
+        profileFiles.closeAll();
+        assertEquals(Arrays.asList("<int>0</int>", "<int>1</int>"), Files.readAllLines(Paths.get(filePath)));
+    }
+
+    // Test that profile sizes are the lengths of the profiles in UTF-8
+    @Test
+    public void testSizeOfProfiles() {
+        for (String xml : new String[]{"<int>1</int>\n", "<string>caf\u00e9 \u20ac</string>", "<string>\ud83d\ude00</string>", ""}) {
+            assertEquals(xml.getBytes(StandardCharsets.UTF_8).length, ProfileWriter.sizeOf(xml));
+        }
+    }
+
+    // Test that appended profiles are buffered until flushed, and that sizes include buffered bytes
+    @Test
+    public void testRegistryBuffersAppendsUntilFlushed() throws Exception {
+        ProfileFileRegistry profileFiles = new ProfileFileRegistry(1024, 60000, 1);
+        String firstFilePath = tempDir.resolve("first-params.xml").toString();
+        String secondFilePath = tempDir.resolve("second-params.xml").toString();
+        profileFiles.append(firstFilePath, "<int>1</int>\n");
+        assertEquals(0, Files.size(Paths.get(firstFilePath)));
+        assertEquals(13, profileFiles.size(firstFilePath));
+        // Only one file may be open, so the first one is flushed and closed
+        profileFiles.append(secondFilePath, "<int>2</int>\n");
+        assertEquals(13, Files.size(Paths.get(firstFilePath)));
+        profileFiles.append(firstFilePath, "<int>3</int>\n");
+        profileFiles.closeAll();
+        assertEquals(2, Files.readAllLines(Paths.get(firstFilePath)).size());
+        assertEquals(1, Files.readAllLines(Paths.get(secondFilePath)).size());
+    }
+}
@@ -0,0 +1,59 @@
+package se.kth.castor.pankti.instrument.plugins;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SamplingPolicyTest {
+
+    private long countCaptured(SamplingPolicy samplingPolicy, int invocations) {
+        return IntStream.range(0, invocations)
+                .filter(i -> samplingPolicy.shouldCapture(new Object[]{i % 7}))
+                .count();
+    }
+
+    // Test that policies are parsed from their specification
+    @Test
+    public void testPoliciesAreParsed() {
+        assertTrue(SamplingPolicy.parse("all") instanceof SamplingPolicy.All);
+        assertTrue(SamplingPolicy.parse("first:1") instanceof SamplingPolicy.FirstN);
+        assertTrue(SamplingPolicy.parse(" probability : 0.5") instanceof SamplingPolicy.Probability);
+        assertTrue(SamplingPolicy.parse("rate:5") instanceof SamplingPolicy.Rate);
+        assertTrue(SamplingPolicy.parse("reservoir:100") instanceof SamplingPolicy.Reservoir);
+        assertTrue(SamplingPolicy.parse("distinct:3") instanceof SamplingPolicy.DistinctParameters);
+        assertThrows(IllegalArgumentException.class, () -> SamplingPolicy.parse("first"));
+        assertThrows(IllegalArgumentException.class, () -> SamplingPolicy.parse("first:many"));
+        assertThrows(IllegalArgumentException.class, () -> SamplingPolicy.parse("sometimes:1"));
+    }
+
+    // Test that the default policy is used when the configured one is invalid
+    @Test
+    public void testDefaultPolicyIsUsedForInvalidConfiguration() {
+        System.setProperty("pankti.sampling.method.some.package.SomeClass.someMethod", "rate:-1");
+        try {
+            SamplingPolicy samplingPolicy = SamplingPolicy.forMethod("some.package.SomeClass.someMethod",
+                    CaptureConfig.SAMPLING_TARGET, "first:2");
+            assertEquals(2, countCaptured(samplingPolicy, 10));
+        } finally {
+            System.clearProperty("pankti.sampling.method.some.package.SomeClass.someMethod");
+        }
+    }
+
+    // Test that the number of captured invocations is bounded
+    @Test
+    public void testCapturedInvocationsAreBounded() {
+        assertEquals(1000, countCaptured(SamplingPolicy.parse("all"), 1000));
+        assertEquals(3, countCaptured(SamplingPolicy.parse("first:3"), 1000));
+        assertEquals(0, countCaptured(SamplingPolicy.parse("probability:0"), 1000));
+        // A burst of 5, and another token every 200ms
+        long rateCaptured = countCaptured(SamplingPolicy.parse("rate:5"), 1000);
+        assertTrue(rateCaptured >= 5 && rateCaptured < 10);
+        // Only 7 distinct parameters are passed
+        assertEquals(7, countCaptured(SamplingPolicy.parse("distinct:50"), 1000));
+        assertEquals(2, countCaptured(SamplingPolicy.parse("distinct:2"), 1000));
+        long reservoirCaptured = countCaptured(SamplingPolicy.parse("reservoir:10"), 100000);
+        assertTrue(reservoirCaptured >= 10 && reservoirCaptured < 500);
+    }
+}
@@ -3,6 +3,7 @@ package se.kth.castor.pankti.generate.generators;
 import org.apache.commons.compress.utils.Sets;
 import se.kth.castor.pankti.generate.util.MethodInvocationUtil;
 import se.kth.castor.pankti.generate.data.SerializedObject;
+import se.kth.castor.pankti.generate.util.GenerationContext;
 import se.kth.castor.pankti.generate.util.MockGeneratorUtil;
 import spoon.reflect.code.CtBlock;
 import spoon.reflect.code.CtStatement;
@@ -17,10 +18,12 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 public class MethodSequenceGenerator {
-    private static Factory factory;
+    private final Factory factory;
+    private final MockGeneratorUtil mockGeneratorUtil;
 
-    public MethodSequenceGenerator(Factory factory) {
-        MethodSequenceGenerator.factory = factory;
+    public MethodSequenceGenerator(GenerationContext context) {
+        this.factory = context.getFactory();
+        this.mockGeneratorUtil = new MockGeneratorUtil(context);
     }
 
     public CtMethod<?> cleanUpGeneratedMockMethod(CtMethod<?> baseMethod) {
@@ -150,13 +153,13 @@ public class MethodSequenceGenerator {
             if (nested.getInvocationTimestamp().equals(sortedTimestamps.get(i))) {
                 // Mockito.verify(mockField, times(n)).mockedMethod(param1, param2)
                 String declaringTypeToMock = MethodInvocationUtil.getDeclaringTypeFromInvocationFQN(nested.getInvocationFQN());
-                CtTypeReference mockFieldType = MockGeneratorUtil.findOrCreateTypeReference(declaringTypeToMock);
+                CtTypeReference mockFieldType = mockGeneratorUtil.findOrCreateTypeReference(declaringTypeToMock);
                 String mockField = String.format("mock%s", mockFieldType.getSimpleName());
                 String mockedMethodWithParams = MethodInvocationUtil.getMethodWithParamsFromInvocationFQN(nested.getInvocationFQN());
                 String mockedMethod = MethodInvocationUtil.getMethodName(mockedMethodWithParams);
                 List<String> params = MethodInvocationUtil.getMethodParams(mockedMethodWithParams);
                 List<CtExecutableReference<?>> paramExecutables =
-                        MockGeneratorUtil.convertParamsToMockitoArgumentMatchers(params);
+                        mockGeneratorUtil.convertParamsToMockitoArgumentMatchers(params);
 
                 verificationStatements.put(key,
                         factory.createCodeSnippetStatement(
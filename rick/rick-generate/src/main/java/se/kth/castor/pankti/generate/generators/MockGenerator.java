@@ -4,6 +4,7 @@ import se.kth.castor.pankti.generate.data.InstrumentedMethod;
 import se.kth.castor.pankti.generate.util.MethodInvocationUtil;
 import se.kth.castor.pankti.generate.data.NestedInvocation;
 import se.kth.castor.pankti.generate.data.SerializedObject;
+import se.kth.castor.pankti.generate.util.GenerationContext;
 import se.kth.castor.pankti.generate.util.MockGeneratorUtil;
 import se.kth.castor.pankti.generate.util.TestGeneratorUtil;
 import spoon.reflect.code.*;
@@ -17,8 +18,8 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 public class MockGenerator {
-    static Factory factory;
-    static int counter;
+    private final Factory factory;
+    private final MockGeneratorUtil mockGeneratorUtil;
     private static final String JUNIT_EXTEND_WITH_REFERENCE = "org.junit.jupiter.api.extension.ExtendWith";
     private static final String JUNIT_JUPITER_TEST_REFERENCE = "org.junit.jupiter.api.Test";
     private static final String MOCKITO_EXTENSION_REFERENCE = "org.mockito.junit.jupiter.MockitoExtension";
@@ -26,13 +27,13 @@ public class MockGenerator {
     private static final String MOCKITO_REFERENCE = "org.mockito.Mockito";
 
     /**
-     * Initialize MockGenerator with factory
+     * Initialize MockGenerator with the context of the generation run
      *
-     * @param factory
+     * @param context
      */
-    MockGenerator(Factory factory) {
-        MockGenerator.factory = factory;
-        MockGeneratorUtil.factory = factory;
+    MockGenerator(GenerationContext context) {
+        this.factory = context.getFactory();
+        this.mockGeneratorUtil = new MockGeneratorUtil(context);
     }
 
     /**
@@ -164,7 +165,7 @@ public class MockGenerator {
                             }
                             if (generatedTestClass.getMethodsByName(helperMethodName).size() == 0) {
                                 CtMethod<?> helperMethodForMockFieldInjection =
-                                        MockGeneratorUtil.generateHelperMethodForMockFieldInjection(
+                                        mockGeneratorUtil.generateHelperMethodForMockFieldInjection(
                                                 helperMethodName,
                                                 mockVariableTypeFQN,
                                                 mockVariableTypeSimple,
@@ -188,7 +189,7 @@ public class MockGenerator {
                         }
                     } else {
                         // if invocationTargetType is parameter, mock parameter object
-                        CtStatement mockParameterStatement = MockGeneratorUtil.generateLocalVariableForMockParameter(
+                        CtStatement mockParameterStatement = mockGeneratorUtil.generateLocalVariableForMockParameter(
                                 mockVariableName,
                                 mockVariableTypeSimple);
                         mockParameterFQNs.add(mockVariableTypeFQN);
@@ -221,7 +222,7 @@ public class MockGenerator {
             }
         }
 
-        generatedTest = MockGeneratorUtil.cleanUpBaseMethodCloneForMocking(baseMethod,
+        generatedTest = mockGeneratorUtil.cleanUpBaseMethodCloneForMocking(baseMethod,
                 MockGeneratorUtil.arePrimitiveOrString(Arrays.asList(targetMUT.getReturnType())),
                 targetMUT.getReturnType().equals("void"),
                 new LinkedHashSet<>(mockedParamIndices),
@@ -252,12 +253,12 @@ public class MockGenerator {
 
         // mut(param1, param2, ...)
         for (int i = 0; i < mockedParamIndices.size(); i++) {
-            mutCallStatement = MockGeneratorUtil.updateAssertionForInvocationOnParametersBasedOnIndex(mutCallStatement,
+            mutCallStatement = mockGeneratorUtil.updateAssertionForInvocationOnParametersBasedOnIndex(mutCallStatement,
                     targetMUT.getParamList(), mockedParamIndices.get(i), mockParameterNames.get(i));
         }
 
         if (testCategory.equals(MockOracle.OO)) {
-            List<CtStatement> actAndAssertStatements = MockGeneratorUtil.refactorAssertionStatementIntoActAndAssertion(
+            List<CtStatement> actAndAssertStatements = mockGeneratorUtil.refactorAssertionStatementIntoActAndAssertion(
                     targetMUT.getReturnType(), mutCallStatement);
             actAndAssertStatements.forEach(s -> generatedTest.getBody().addStatement(s));
         }
@@ -281,7 +282,7 @@ public class MockGenerator {
                 factory.createCtTypeReference(Class.forName(JUNIT_JUPITER_DISABLED_REFERENCE)));
         generatedTest.removeAnnotation(disabledAnnotation);
         generatedTest.addAnnotation(
-                MockGeneratorUtil.generateDisplayName(testMethodCounter, testCategory, targetMUT.getMethodName(),
+                mockGeneratorUtil.generateDisplayName(testMethodCounter, testCategory, targetMUT.getMethodName(),
                         targetMUT.getNestedInvocations().stream().map(NestedInvocation::getInvocation).collect(Collectors.toList()).toString()));
         return generatedTest;
     }
@@ -301,9 +302,9 @@ public class MockGenerator {
 
         if (nestedParams.contains("<object-array>")) {
             if (nestedParams.length() < 1000) {
-                whenThenStatements = MockGeneratorUtil.createParamVariableAndParse(paramTypes, nestedParams);
+                whenThenStatements = mockGeneratorUtil.createParamVariableAndParse(paramTypes, nestedParams);
             } else {
-                whenThenStatements = MockGeneratorUtil.createParamFileAndParse(paramTypes, nestedParams,
+                whenThenStatements = mockGeneratorUtil.createParamFileAndParse(paramTypes, nestedParams,
                         mockedMethodWithParams + objectFileUUID);
             }
             nestedParams = MockGeneratorUtil.getNestedParamsArgumentForInvocations(paramTypes);
@@ -312,9 +313,9 @@ public class MockGenerator {
         CtStatementList returnStatements;
         if (nestedReturned != null & !MockGeneratorUtil.arePrimitiveOrString(Arrays.asList(returnType))) {
             if (nestedReturned.length() < 1000) {
-                returnStatements = MockGeneratorUtil.createReturnedVariableAndParse(returnType, nestedReturned);
+                returnStatements = mockGeneratorUtil.createReturnedVariableAndParse(returnType, nestedReturned);
             } else {
-                returnStatements = MockGeneratorUtil.createReturnedFileAndParse(returnType, nestedReturned,
+                returnStatements = mockGeneratorUtil.createReturnedFileAndParse(returnType, nestedReturned,
                         mockedMethodWithParams + objectFileUUID);
             }
             for (int i = 0; i < returnStatements.getStatements().size(); i++) {
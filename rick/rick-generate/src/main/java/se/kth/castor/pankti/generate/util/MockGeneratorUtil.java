@@ -12,9 +12,8 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 public class MockGeneratorUtil {
-    public static Factory factory;
-
-    static TestGeneratorUtil testGenUtil = new TestGeneratorUtil();
+    private final Factory factory;
+    private final TestGeneratorUtil testGenUtil;
 
     private static final String MOCKITO_ARGUMENT_MATCHER_REFERENCE = "org.mockito.ArgumentMatchers";
     private static final String JUNIT_JUPITER_DISPLAYNAME_REFERENCE = "org.junit.jupiter.api.DisplayName";
@@ -22,7 +21,12 @@ public class MockGeneratorUtil {
     private static final List<String> primitives = Arrays.asList(
             "boolean", "byte", "char", "double", "float", "int", "long", "short", "java.lang.String");
 
-    public static CtTypeReference<?> findOrCreateTypeReference(String type) {
+    public MockGeneratorUtil(GenerationContext context) {
+        this.factory = context.getFactory();
+        this.testGenUtil = new TestGeneratorUtil(context);
+    }
+
+    public CtTypeReference<?> findOrCreateTypeReference(String type) {
         CtTypeReference<?> typeToFind;
         try {
             typeToFind = factory.createCtTypeReference(Class.forName(type));
@@ -68,13 +72,13 @@ public class MockGeneratorUtil {
         return index;
     }
 
-    public static CtMethod<?> generateHelperMethodForMockFieldInjection(String helperMethodName,
-                                                                        String mockFieldType,
-                                                                        String mockFieldTypeSimple,
-                                                                        String mockVariableName,
-                                                                        String targetFieldName,
-                                                                        boolean targetFieldIsPrivate,
-                                                                        String receivingObjectType) {
+    public CtMethod<?> generateHelperMethodForMockFieldInjection(String helperMethodName,
+                                                                 String mockFieldType,
+                                                                 String mockFieldTypeSimple,
+                                                                 String mockVariableName,
+                                                                 String targetFieldName,
+                                                                 boolean targetFieldIsPrivate,
+                                                                 String receivingObjectType) {
         CtMethod<?> helperMethod = factory.createMethod();
         helperMethod.setVisibility(ModifierKind.PRIVATE);
 
@@ -127,11 +131,11 @@ public class MockGeneratorUtil {
      * @param targetReturnsPrimitive Whether the target method returns a primitive value
      * @return The generated base method, updated to support mocks
      */
-    public static CtMethod<?> cleanUpBaseMethodCloneForMocking(CtMethod<?> baseMethod,
-                                                               boolean targetReturnsPrimitive,
-                                                               boolean targetReturnsVoid,
-                                                               Set<Integer> paramIndices,
-                                                               boolean invocationMadeOnLibraryMethod) {
+    public CtMethod<?> cleanUpBaseMethodCloneForMocking(CtMethod<?> baseMethod,
+                                                        boolean targetReturnsPrimitive,
+                                                        boolean targetReturnsVoid,
+                                                        Set<Integer> paramIndices,
+                                                        boolean invocationMadeOnLibraryMethod) {
         CtMethod<?> updatedBaseMethod = factory.createMethod();
         baseMethod.getAnnotations().forEach(updatedBaseMethod::addAnnotation);
         updatedBaseMethod.addThrownType(factory.createCtTypeReference(Exception.class));
@@ -192,8 +196,8 @@ public class MockGeneratorUtil {
         return updatedBaseMethod;
     }
 
-    public static List<CtStatement> refactorAssertionStatementIntoActAndAssertion(String returnTypeMUT,
-                                                                                  CtStatement mutCallStatement) {
+    public List<CtStatement> refactorAssertionStatementIntoActAndAssertion(String returnTypeMUT,
+                                                                           CtStatement mutCallStatement) {
         List<CtStatement> actAndAssertStatements = new ArrayList<>();
         String action = mutCallStatement.toString().replaceAll("(.+)(receivingObject.+\\))\\)", "$2");
         actAndAssertStatements.add(factory.createCodeSnippetStatement(String.format(
@@ -212,17 +216,17 @@ public class MockGeneratorUtil {
      * @param mockParameterType
      * @return
      */
-    public static CtStatement generateLocalVariableForMockParameter(String mockVariableName, String mockParameterType) {
+    public CtStatement generateLocalVariableForMockParameter(String mockVariableName, String mockParameterType) {
         CtStatement mockParameterVariable = factory.createCodeSnippetStatement(String.format(
                 "%s %s = Mockito.mock(%s.class)",
                 mockParameterType, mockVariableName, mockParameterType));
         return mockParameterVariable;
     }
 
-    public static CtStatement updateAssertionForInvocationOnParametersBasedOnIndex(CtStatement assertionStatement,
-                                                                                   List<String> paramList,
-                                                                                   int paramIndex,
-                                                                                   String mockFieldName) {
+    public CtStatement updateAssertionForInvocationOnParametersBasedOnIndex(CtStatement assertionStatement,
+                                                                            List<String> paramList,
+                                                                            int paramIndex,
+                                                                            String mockFieldName) {
         CtStatement updatedAssertStatement = null;
         for (int i = 0; i < paramList.size(); i++) {
             if (i == paramIndex) {
@@ -235,7 +239,7 @@ public class MockGeneratorUtil {
         return updatedAssertStatement;
     }
 
-    public static CtStatement delegateClassLoaderVariableCreation() {
+    public CtStatement delegateClassLoaderVariableCreation() {
         return testGenUtil.addClassLoaderVariableToTestMethod(factory);
     }
 
@@ -339,7 +343,7 @@ public class MockGeneratorUtil {
      * @param typeToFind
      * @return a list of types found for the given name
      */
-    public static List<CtTypeReference<?>> findTypeFromModel(final String typeToFind) {
+    public List<CtTypeReference<?>> findTypeFromModel(final String typeToFind) {
         return factory.getModel()
                 .getAllTypes()
                 .stream()
@@ -391,7 +395,7 @@ public class MockGeneratorUtil {
         return modes;
     }
 
-    public static CtExecutableReference<?> createArgumentMatcher(String name) throws ClassNotFoundException {
+    public CtExecutableReference<?> createArgumentMatcher(String name) throws ClassNotFoundException {
         CtExecutableReference<?> executableReferenceForArgumentMatcher = factory.createExecutableReference();
         executableReferenceForArgumentMatcher.setSimpleName(name);
         executableReferenceForArgumentMatcher.setStatic(true);
@@ -399,7 +403,7 @@ public class MockGeneratorUtil {
         return executableReferenceForArgumentMatcher;
     }
 
-    public static List<CtExecutableReference<?>> convertParamsToMockitoArgumentMatchers(List<String> params) throws ClassNotFoundException {
+    public List<CtExecutableReference<?>> convertParamsToMockitoArgumentMatchers(List<String> params) throws ClassNotFoundException {
         List<CtExecutableReference<?>> mockitoArgumentMatchers = new ArrayList<>();
         for (String param : params) {
             if (param.isEmpty())
@@ -469,7 +473,7 @@ public class MockGeneratorUtil {
         return arguments.toString();
     }
 
-    public static CtStatementList parseNestedParamObjectFromFileOrString(List<String> paramTypes, String fileOrStringVar) {
+    public CtStatementList parseNestedParamObjectFromFileOrString(List<String> paramTypes, String fileOrStringVar) {
         CtStatementList statements = factory.createStatementList();
         CtStatement parseNestedParams = factory.createCodeSnippetStatement(
                 String.format("Object[] nestedParamObjects = deserializeObject(%s)",
@@ -488,7 +492,7 @@ public class MockGeneratorUtil {
         return statements;
     }
 
-    public static CtStatementList createParamVariableAndParse(List<String> paramTypes, String nestedParams) {
+    public CtStatementList createParamVariableAndParse(List<String> paramTypes, String nestedParams) {
         CtStatementList statements = factory.createStatementList();
         CtLocalVariable<String> nestedParamsVariable = testGenUtil.addStringVariableToTestMethod(
                 factory, "nestedParamObjectStr", nestedParams);
@@ -500,7 +504,7 @@ public class MockGeneratorUtil {
         return statements;
     }
 
-    public static CtStatementList createParamFileAndParse(List<String> paramTypes, String nestedParams, String nestedParamIdentifier) {
+    public CtStatementList createParamFileAndParse(List<String> paramTypes, String nestedParams, String nestedParamIdentifier) {
         CtStatementList statements = factory.createStatementList();
         String type = "nestedParams";
         String fileName = testGenUtil.createLongObjectStringFile(nestedParamIdentifier, type, nestedParams);
@@ -525,14 +529,14 @@ public class MockGeneratorUtil {
         return returnedObject;
     }
 
-    public static CtStatement parseNestedReturnedObjectFromFileOrString(String returnType, String fileOrStringVar) {
+    public CtStatement parseNestedReturnedObjectFromFileOrString(String returnType, String fileOrStringVar) {
         return factory.createCodeSnippetStatement(
                 String.format("%s nestedReturnedObject = deserializeObject(%s)",
                         returnType,
                         fileOrStringVar));
     }
 
-    public static CtStatementList createReturnedVariableAndParse(String returnType, String nestedReturned) {
+    public CtStatementList createReturnedVariableAndParse(String returnType, String nestedReturned) {
         String fieldName = "nestedReturnedObjectStr";
         CtStatementList statements = factory.createStatementList();
         CtLocalVariable<String> nestedReturnedVariable = testGenUtil.addStringVariableToTestMethod(
@@ -543,9 +547,9 @@ public class MockGeneratorUtil {
         return statements;
     }
 
-    public static CtStatementList createReturnedFileAndParse(String returnType,
-                                                             String nestedReturned,
-                                                             String nestedReturnedIdentifier) {
+    public CtStatementList createReturnedFileAndParse(String returnType,
+                                                      String nestedReturned,
+                                                      String nestedReturnedIdentifier) {
         CtStatementList statements = factory.createStatementList();
         String type = "nestedReturned";
         String fileName = testGenUtil.createLongObjectStringFile(nestedReturnedIdentifier, type, nestedReturned);
@@ -590,9 +594,9 @@ public class MockGeneratorUtil {
         return nestedParamsBuilder.toString();
     }
 
-    public static CtAnnotation<?> generateDisplayName(int testMethodCounter,
-                                                      MockOracle category, String mutName,
-                                                      String mockables)
+    public CtAnnotation<?> generateDisplayName(int testMethodCounter,
+                                               MockOracle category, String mutName,
+                                               String mockables)
             throws ClassNotFoundException {
         CtAnnotation<?> displayNameAnnotation = factory.createAnnotation(
                 factory.createCtTypeReference(Class.forName(JUNIT_JUPITER_DISPLAYNAME_REFERENCE)));